@@ -14,12 +14,16 @@
 package org.audux.bgg
 
 import co.touchlab.kermit.Logger
+import io.ktor.client.engine.HttpClientEngine
 import io.ktor.client.engine.cio.CIO
 import java.time.LocalDate
 import java.time.LocalDateTime
 import kotlin.time.Duration
 import kotlin.time.Duration.Companion.seconds
 import org.audux.bgg.BggClient.authToken
+import org.audux.bgg.cache.CachePolicy
+import org.audux.bgg.cache.InMemoryResponseCache
+import org.audux.bgg.cache.ResponseCache
 import org.audux.bgg.common.Domain
 import org.audux.bgg.common.FamilyType
 import org.audux.bgg.common.ForumListType
@@ -28,6 +32,8 @@ import org.audux.bgg.common.Inclusion
 import org.audux.bgg.common.PlayThingType
 import org.audux.bgg.common.SubType
 import org.audux.bgg.common.ThingType
+import org.audux.bgg.plugin.RateLimitStrategy
+import org.audux.bgg.plugin.ThrottleRegistry
 import org.audux.bgg.request.collection
 import org.audux.bgg.request.familyItems
 import org.audux.bgg.request.forum
@@ -105,6 +111,56 @@ object BggClient {
 
     @JvmStatic private fun authToken() = setOnlyAuthToken.ifBlank { configuration.authToken }
 
+    private var sharedClient: SharedClient? = null
+
+    /**
+     * Clients that were replaced by [sharedClient] and still have calls in-flight, closed along
+     * with it by [close].
+     */
+    private val replacedClients = mutableListOf<InstantiableClient>()
+
+    /**
+     * Returns the [InstantiableClient] that's shared by all requests made through the BggClient.
+     * Whenever the auth token, [configuration] or [engine] change a new client is created. The
+     * previous one is closed as soon as the calls and requests in-flight on it completed.
+     */
+    @Synchronized
+    internal fun client(): InstantiableClient {
+        val authToken = authToken()
+        sharedClient?.let {
+            if (
+                it.authToken == authToken &&
+                    it.configuration === configuration &&
+                    it.engine === engine
+            ) {
+                return it.client
+            }
+        }
+
+        replacedClients.removeIf { it.isClosed }
+        sharedClient?.let {
+            it.client.closeWhenIdle()
+            if (!it.client.isClosed) replacedClients.add(it.client)
+        }
+        val client = InstantiableClient(authToken, engine, configuration)
+        sharedClient = SharedClient(authToken, configuration, engine, client)
+        return client
+    }
+
+    /**
+     * Closes the underlying HTTP client, as well as the clients it replaced after a configuration
+     * change that still have calls in-flight, and releases their connections. Any subsequent
+     * request will create a new client.
+     */
+    @JvmStatic
+    @Synchronized
+    fun close() {
+        replacedClients.forEach { it.close() }
+        replacedClients.clear()
+        sharedClient?.client?.close()
+        sharedClient = null
+    }
+
     /**
      * Request details about a user's collection and returning a
      * [org.audux.bgg.response.Collection].
@@ -224,7 +280,7 @@ object BggClient {
         collectionId: Int? = null,
         modifiedSince: LocalDateTime? = null,
     ) =
-        InstantiableClient(authToken())
+        client()
             .collection(
                 userName,
                 subType,
@@ -288,7 +344,7 @@ object BggClient {
     @JvmStatic
     @JvmOverloads
     fun familyItems(ids: Array<Int>, types: Array<FamilyType> = arrayOf()) =
-        InstantiableClient(authToken()).familyItems(ids, types)
+        client().familyItems(ids, types)
 
     /**
      * Retrieves the list of threads for the given forum id in a [org.audux.bgg.response.Forum].
@@ -330,7 +386,7 @@ object BggClient {
      */
     @JvmStatic
     @JvmOverloads
-    fun forum(id: Int, page: Int? = null) = InstantiableClient(authToken()).forum(id, page)
+    fun forum(id: Int, page: Int? = null) = client().forum(id, page)
 
     /**
      * Retrieves the list of available forums for the given id / type combination, returning a
@@ -364,8 +420,7 @@ object BggClient {
      * @param type Single [ForumListType] to retrieve, either a [Thing] or [Family]
      */
     @JvmStatic
-    fun forumList(id: Int, type: ForumListType) =
-        InstantiableClient(authToken()).forumList(id, type)
+    fun forumList(id: Int, type: ForumListType) = client().forumList(id, type)
 
     /**
      * Geek list endpoint, retrieves a specific geek list by its ID and return a
@@ -407,8 +462,7 @@ object BggClient {
      */
     @JvmStatic
     @JvmOverloads
-    fun geekList(id: Int, comments: Inclusion? = null) =
-        InstantiableClient(authToken()).geekList(id, comments)
+    fun geekList(id: Int, comments: Inclusion? = null) = client().geekList(id, comments)
 
     /**
      * Retrieve information about the given guild (id) like name, description, members etc.
@@ -456,7 +510,7 @@ object BggClient {
     @JvmStatic
     @JvmOverloads
     fun guild(id: Int, members: Inclusion? = null, sort: String? = null, page: Int? = null) =
-        InstantiableClient(authToken()).guild(id, members, sort, page)
+        client().guild(id, members, sort, page)
 
     /**
      * Hotness endpoint that retrieve the list of most 50 active items on the site filtered by type,
@@ -490,7 +544,7 @@ object BggClient {
      */
     @JvmStatic
     @JvmOverloads
-    fun hotList(type: HotListType? = null) = InstantiableClient(authToken()).hotList(type)
+    fun hotList(type: HotListType? = null) = client().hotList(type)
 
     /**
      * Request a list of plays (max 100 at the time) for the given user, returning
@@ -557,7 +611,7 @@ object BggClient {
         maxDate: LocalDate? = null,
         subType: SubType? = null,
         page: Int? = null,
-    ) = InstantiableClient(authToken()).plays(username, id, type, minDate, maxDate, subType, page)
+    ) = client().plays(username, id, type, minDate, maxDate, subType, page)
 
     /**
      * Search endpoint that allows searching by name for things on BGG return a
@@ -595,7 +649,7 @@ object BggClient {
     @JvmStatic
     @JvmOverloads
     fun search(query: String, types: Array<ThingType> = arrayOf(), exactMatch: Boolean = false) =
-        InstantiableClient(authToken()).search(query, types, exactMatch)
+        client().search(query, types, exactMatch)
 
     /**
      * Requests the Sitemap index for the given Domain. Call
@@ -639,8 +693,7 @@ object BggClient {
      *   type.
      */
     @JvmStatic
-    fun sitemapIndex(domain: Domain = Domain.BOARD_GAME_GEEK) =
-        InstantiableClient(authToken()).sitemapIndex(domain)
+    fun sitemapIndex(domain: Domain = Domain.BOARD_GAME_GEEK) = client().sitemapIndex(domain)
 
     /**
      * Request a Thing or list of things. Multiple things can be requested by passing in several
@@ -742,7 +795,11 @@ object BggClient {
      * ```
      *
      * @param ids Specifies the id of the thing(s) to retrieve. To request multiple things with a
-     *   single query, can specify a comma-delimited list of ids.
+     *   single query, can specify a comma-delimited list of ids. More than 20 ids are split into
+     *   multiple concurrent requests of which the things are merged in the order of [ids]. Failed
+     *   requests are logged and their things left out, their ids are listed in
+     *   [Response.failedIds]. [Response.error] is only set when all requests failed, in which case
+     *   [Response.failedIds] lists all [ids], as it does when a single request failed.
      * @param types Specifies that, regardless of the type of thing asked for by id, the results are
      *   filtered by the [ThingType] objects specified. Leave empty to return all types.
      * @param stats Returns ranking and rating stats for the thing.
@@ -775,7 +832,7 @@ object BggClient {
         page: Int = 1,
         pageSize: Int? = null,
     ) =
-        InstantiableClient(authToken())
+        client()
             .things(
                 ids,
                 types,
@@ -793,14 +850,14 @@ object BggClient {
      * Retrieves the list of articles/posts for the given thread - requesting ALL articles/posts.
      * Returning [org.audux.bgg.response.Thread].
      *
-     * If all threads should be retrieved pagination can be used as follows:
+     * Very long threads can be paginated in pages of [count] (or 100) articles as follows:
      * ```
      * Response<Thread> thread = BggClient.thread(id = 3208373).paginate().call()
      * println(forum.data) // Prints thread details and a list of `articles`
      * ```
      *
-     * The actual class returned is [org.audux.bgg.request.Request]) which can then be used to
-     * paginate or make the actual call to the API using `call` or `callAsync`. This will then
+     * The actual class returned is [org.audux.bgg.request.PaginatedThread]) which can then be used
+     * to paginate or make the actual call to the API using `call` or `callAsync`. This will then
      * return a [Response] and wrap a data class (on success). e.g. the above example might return a
      * [org.audux.bgg.response.Thread] looking something as follows:
      * ```
@@ -825,9 +882,10 @@ object BggClient {
      * )
      * ```
      *
-     * Note: Pagination can be achieved using the `count` and `minArticleId` but is not implemented
-     * by this library. As a result some API calls may return a 500, 502 or 408 as there are too
-     * many posts.
+     * Note: Requesting very long threads at once may return a 500, 502 or 408 as there are too many
+     * posts, paginating requests them in pages using `count` and `minArticleId` instead. Use
+     * `paginateAsFlow` or `streamArticles` to process the pages without holding the whole thread in
+     * memory.
      *
      * @param id The id of the thread.
      * @param minArticleId Filters the results so that only articles with an equal or higher id than
@@ -843,7 +901,7 @@ object BggClient {
         minArticleId: Int? = null,
         minArticleDate: LocalDateTime? = null,
         count: Int? = null,
-    ) = InstantiableClient(authToken()).thread(id, minArticleId, minArticleDate, count)
+    ) = client().thread(id, minArticleId, minArticleDate, count)
 
     /**
      * User endpoint that retrieves a specific user by their [name] returning a
@@ -921,7 +979,7 @@ object BggClient {
         hot: Inclusion? = null,
         domain: Domain? = null,
         page: Int? = null,
-    ) = InstantiableClient(authToken()).user(name, buddies, guilds, top, hot, domain, page)
+    ) = client().user(name, buddies, guilds, top, hot, domain, page)
 
     /**
      * Logging level Severity for the BGGClient logging.
@@ -971,8 +1029,21 @@ object BggClient {
  *   per [requestWindowSize], e.g. "60 requests per 60.seconds".
  * @property requestWindowSize Throttles the client to have [requestsPerWindowLimit] request per
  *   [requestWindowSize], e.g. "60 requests per 60.seconds".
+ * @property rateLimitStrategy How requests are spread out over the [requestWindowSize], e.g. all at
+ *   the start of the window or evenly spaced. See [RateLimitStrategy].
+ * @property requestBurst The number of requests that can be made back to back before requests are
+ *   spaced out, only used by [RateLimitStrategy.TOKEN_BUCKET] and [RateLimitStrategy.GCRA].
+ * @property adaptiveRateLimiting Lowers the request rate whenever BGG responds with a 429 (Too Many
+ *   Requests) or a `Retry-After` header and gradually raises it back to [requestsPerWindowLimit]
+ *   on successful responses. See [ThrottleRegistry.effectiveRequestRate].
+ * @property deduplicateRequests Whether concurrent identical requests made through the same client
+ *   share a single request and parsed [Response] instead of each using part of the rate limit.
+ * @property responseCache Where responses are cached, if set. See [InMemoryResponseCache].
+ * @property cachePolicy How long responses are cached per endpoint, see [CachePolicy].
  * @property authToken Authorization Token that's set as the auth header when calling the BGG XML2
  *   api.
+ * @property throttleRegistry Registry of the concurrency and rate limiters, shared by all clients
+ *   using the same auth token and host. Defaults to a process-wide registry.
  */
 data class BggClientConfiguration(
     var maxConcurrentRequests: Int = 10,
@@ -984,7 +1055,22 @@ data class BggClientConfiguration(
     var failOnUnknownProperties: Boolean = true,
     var requestsPerWindowLimit: Int = 60,
     var requestWindowSize: Duration = 60.seconds,
+    var rateLimitStrategy: RateLimitStrategy = RateLimitStrategy.FIXED_WINDOW,
+    var requestBurst: Int = 1,
+    var adaptiveRateLimiting: Boolean = false,
+    var deduplicateRequests: Boolean = true,
+    var responseCache: ResponseCache? = null,
+    var cachePolicy: CachePolicy = CachePolicy(),
     var authToken: String = "",
+    var throttleRegistry: ThrottleRegistry = ThrottleRegistry.DEFAULT,
+)
+
+/** The [InstantiableClient] shared by the [BggClient] and the state it was created for. */
+private class SharedClient(
+    val authToken: String,
+    val configuration: BggClientConfiguration,
+    val engine: () -> HttpClientEngine,
+    val client: InstantiableClient,
 )
 
 /** Thrown whenever any exception is thrown during a request to BGG. */
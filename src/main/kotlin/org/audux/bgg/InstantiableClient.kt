@@ -13,27 +13,55 @@ import io.ktor.client.HttpClient
 import io.ktor.client.engine.HttpClientEngine
 import io.ktor.client.plugins.HttpRequestRetry
 import io.ktor.client.plugins.HttpTimeout
+import io.ktor.client.plugins.api.createClientPlugin
 import io.ktor.client.plugins.compression.ContentEncoding
 import io.ktor.client.plugins.defaultRequest
 import io.ktor.client.request.header
 import java.util.Locale
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
 import kotlinx.coroutines.CoroutineScope
-import kotlinx.coroutines.DelicateCoroutinesApi
 import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.Job
 import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
 import kotlinx.coroutines.future.future
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
-import org.audux.bgg.BggClient.engine
+import org.audux.bgg.cache.CacheStatistics
+import org.audux.bgg.plugin.AdaptiveRateLimitPlugin
 import org.audux.bgg.plugin.ClientConcurrentRateLimitPlugin
 import org.audux.bgg.plugin.ClientRateLimitPlugin
+import org.audux.bgg.request.PolledRequest
 import org.audux.bgg.request.Request
+import org.audux.bgg.request.SingleFlight
 import org.audux.bgg.response.Response
 
-/** BGG Client containing the actual implementations of the API Calls. */
-class InstantiableClient(authToken: String, engine: () -> HttpClientEngine = BggClient.engine) {
+/**
+ * BGG Client containing the actual implementations of the API Calls.
+ *
+ * A single [HttpClient] (and with it the engine's connection pool) is lazily created on first use
+ * and shared by all requests made through this instance. Call [close] once the client is no longer
+ * needed to release the connections and threads held by the engine.
+ *
+ * @param authToken Authorization token sent along as the `Authorization: Bearer` header.
+ * @param engine Factory for the engine backing the shared [HttpClient], invoked at most once.
+ * @param configuration The request strategies used by this client.
+ */
+class InstantiableClient
+@JvmOverloads
+constructor(
+    private val authToken: String,
+    engine: () -> HttpClientEngine = BggClient.engine,
+    internal val configuration: BggClientConfiguration = BggClient.configuration,
+) : AutoCloseable {
     private val clientScope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private val closed = AtomicBoolean(false)
+    private val retired = AtomicBoolean(false)
+
+    /** The number of calls and requests in-flight, see [closeWhenIdle]. */
+    private val activeCalls = AtomicInteger()
 
     init {
         check(authToken.isNotBlank()) {
@@ -41,7 +69,7 @@ class InstantiableClient(authToken: String, engine: () -> HttpClientEngine = Bgg
         }
     }
 
-    val client = {
+    private val httpClientDelegate = lazy {
         HttpClient(engine()) {
             // This plugin serves two primary purposes:
             //
@@ -49,15 +77,33 @@ class InstantiableClient(authToken: String, engine: () -> HttpClientEngine = Bgg
             // * Decodes content received from a server to obtain the original payload.
             install(ContentEncoding) { gzip() }
 
-            // Limit the number of concurrent requests BGGClient makes at any time.
+            // Keep track of the requests in-flight, including those of streamed responses, so a
+            // retired client is only closed once they completed.
+            install(
+                createClientPlugin("ActiveCallsPlugin") {
+                    onRequest { request, _ ->
+                        activeCalls.incrementAndGet()
+                        request.executionContext.invokeOnCompletion { releaseCall() }
+                    }
+                }
+            )
+
+            // Limit the number of concurrent requests BGGClient makes at any time, shared between
+            // all clients using the same auth token.
             install(ClientConcurrentRateLimitPlugin) {
-                requestLimit = BggClient.configuration.maxConcurrentRequests
+                requestLimit = configuration.maxConcurrentRequests
+                authToken = this@InstantiableClient.authToken
+                throttleRegistry = configuration.throttleRegistry
             }
 
             // Limit the number of request that are made per window e.g. (60 request per minute).
             install(ClientRateLimitPlugin) {
-                requestLimit = BggClient.configuration.requestsPerWindowLimit
-                windowSize = BggClient.configuration.requestWindowSize
+                requestLimit = configuration.requestsPerWindowLimit
+                windowSize = configuration.requestWindowSize
+                strategy = configuration.rateLimitStrategy
+                burst = configuration.requestBurst
+                authToken = this@InstantiableClient.authToken
+                throttleRegistry = configuration.throttleRegistry
             }
 
             // HttpTimeout handles the following behaviours:
@@ -69,7 +115,7 @@ class InstantiableClient(authToken: String, engine: () -> HttpClientEngine = Bgg
             // * Socket timeout — a maximum time of inactivity between two data packets when
             //  exchanging data with a server.
             install(HttpTimeout) {
-                requestTimeoutMillis = BggClient.configuration.requestTimeoutMillis
+                requestTimeoutMillis = configuration.requestTimeoutMillis
             }
 
             // Plugin to configure the retry policy for failed requests in various ways: specify
@@ -77,38 +123,65 @@ class InstantiableClient(authToken: String, engine: () -> HttpClientEngine = Bgg
             // request before retrying.
             install(HttpRequestRetry) {
                 exponentialDelay(
-                    base = BggClient.configuration.retryBase,
-                    maxDelayMs = BggClient.configuration.retryMaxDelayMs,
-                    randomizationMs = BggClient.configuration.retryRandomizationMs,
+                    base = configuration.retryBase,
+                    maxDelayMs = configuration.retryMaxDelayMs,
+                    randomizationMs = configuration.retryRandomizationMs,
                 )
-                retryIf(maxRetries = BggClient.configuration.maxRetries) { request, response ->
+                retryIf(maxRetries = configuration.maxRetries) { request, response ->
+                    // 202 (Accepted) responses of polled requests are polled on their own schedule.
+                    val retryAccepted = !request.attributes.contains(PolledRequest)
                     response.status.value.let {
                         // Add 429 (TooManyRequests) and 202 (Accepted) for retries, see:
                         // https://boardgamegeek.com/thread/1188687/export-collections-has-been-updated-xmlapi-develop
-                        (it in (500..599) + 202 + 429).also { shouldRetry ->
-                            if (shouldRetry) {
-                                Logger.i("HttpRequestRetry") {
-                                    "Got status code $it Retrying request[${request.url}"
-                                }
+                        val shouldRetry = it in (500..599) + 429 || (it == 202 && retryAccepted)
+                        if (shouldRetry) {
+                            Logger.i("HttpRequestRetry") {
+                                "Got status code $it Retrying request[${request.url}"
                             }
                         }
+                        shouldRetry
                     }
                 }
             }
 
+            // Adapt the request rate to 429 (TooManyRequests) responses and Retry-After headers.
+            // Installed after HttpRequestRetry so retried requests are paced and observed as well.
+            if (configuration.adaptiveRateLimiting) {
+                install(AdaptiveRateLimitPlugin) {
+                    requestLimit = configuration.requestsPerWindowLimit
+                    windowSize = configuration.requestWindowSize
+                    authToken = this@InstantiableClient.authToken
+                    throttleRegistry = configuration.throttleRegistry
+                }
+            }
+
             defaultRequest { header("Authorization", "Bearer $authToken") }
 
             expectSuccess = true
         }
     }
 
+    private val httpClient by httpClientDelegate
+
+    /** Returns the [HttpClient] shared by all requests made through this client. */
+    val client: () -> HttpClient = {
+        check(!closed.get()) { "InstantiableClient has been closed" }
+        httpClient
+    }
+
+    /** Shares the responses of identical in-flight requests, see [BggClientConfiguration]. */
+    internal val singleFlight = SingleFlight()
+
+    /** Statistics of the requests served using [BggClientConfiguration.responseCache]. */
+    val cacheStatistics = CacheStatistics()
+
     internal val mapper: ObjectMapper =
         XmlMapper.builder()
             .apply {
                 configure(MapperFeature.ACCEPT_CASE_INSENSITIVE_PROPERTIES, true)
                 configure(
                     DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES,
-                    BggClient.configuration.failOnUnknownProperties,
+                    configuration.failOnUnknownProperties,
                 )
 
                 addModule(JacksonXmlModule())
@@ -132,19 +205,74 @@ class InstantiableClient(authToken: String, engine: () -> HttpClientEngine = Bgg
     /**
      * Calls/Launches a request async, once a response is available it will call [responseCallback].
      */
-    fun <T> callAsync(request: suspend () -> T, responseCallback: (T) -> Unit) =
-        clientScope.launch {
+    fun <T> callAsync(request: suspend () -> T, responseCallback: (T) -> Unit): Job {
+        val call = track {
             val response = request()
             withContext(Dispatchers.Default) { responseCallback(response) }
         }
+        return clientScope.launch { call() }
+    }
 
     /** Calls/Launches a request and returns it's response. */
-    @OptIn(DelicateCoroutinesApi::class)
-    fun <T> callAsync(request: suspend () -> Response<T>) = GlobalScope.future { request() }
+    fun <T> callAsync(request: suspend () -> Response<T>): CompletableFuture<Response<T>> {
+        val call = track(request)
+        return clientScope.future { call() }
+    }
 
     /** Calls/Launches a request and returns it's response. */
-    suspend fun <T> call(request: suspend () -> Response<T>) = request()
+    suspend fun <T> call(request: suspend () -> Response<T>) = track(request)()
 
     /** Returns a wrapped request for later execution. */
     fun <T> request(request: suspend () -> Response<T>) = Request(this, request)
+
+    /** Whether this client has been closed. */
+    internal val isClosed
+        get() = closed.get()
+
+    /**
+     * Closes this client as soon as no calls or requests are in-flight anymore, which may be
+     * straight away. Used for clients that are replaced, e.g. after a configuration change.
+     */
+    internal fun closeWhenIdle() {
+        retired.set(true)
+        if (activeCalls.get() == 0) close(cancelCalls = false)
+    }
+
+    /**
+     * Returns [block] as an active call, counted from now on so [closeWhenIdle] waits for it to
+     * complete even when it's launched later.
+     */
+    private fun <T> track(block: suspend () -> T): suspend () -> T {
+        activeCalls.incrementAndGet()
+        return {
+            try {
+                block()
+            } finally {
+                releaseCall()
+            }
+        }
+    }
+
+    private fun releaseCall() {
+        // Nothing is left to cancel, the calls completing right now must not be cancelled.
+        if (activeCalls.decrementAndGet() == 0 && retired.get()) close(cancelCalls = false)
+    }
+
+    /**
+     * Closes the shared [HttpClient] and its engine. Requests that are in-flight are allowed to
+     * complete, new requests will throw an [IllegalStateException]. Requests launched using
+     * [callAsync] are cancelled, so their callbacks are no longer called and their futures are
+     * cancelled.
+     */
+    override fun close() = close(cancelCalls = true)
+
+    private fun close(cancelCalls: Boolean) {
+        if (!closed.compareAndSet(false, true)) return
+        if (cancelCalls) clientScope.cancel()
+        if (!httpClientDelegate.isInitialized()) return
+
+        httpClient.close()
+        // The engine is created by this client and not managed by the HttpClient, close it as well.
+        httpClient.engine.close()
+    }
 }
@@ -0,0 +1,90 @@
+/**
+ * Copyright 2023-2024 Bram Wijnands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.audux.bgg.cache
+
+import io.ktor.http.Url
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.hours
+import kotlin.time.Duration.Companion.minutes
+import org.audux.bgg.common.Constants
+
+/**
+ * Determines how long responses of each BGG endpoint are cached, e.g. things rarely change while
+ * the hot list changes throughout the day. Endpoints without a time to live, or with a time to live
+ * of [Duration.ZERO], are never cached.
+ *
+ * ```
+ * BggClient.configure {
+ *     responseCache = InMemoryResponseCache()
+ *     cachePolicy = CachePolicy().withTtl("hot", 5.minutes)
+ * }
+ * ```
+ *
+ * @param ttls Time to live per endpoint, i.e. the path of the API e.g. `thing` or `hot`. Sitemap
+ *   pages, e.g. `sitemap_geekitems_boardgame_page_1`, share the [SITEMAP_PAGES] endpoint.
+ * @param defaultTtl Time to live for the endpoints that are not in [ttls].
+ */
+class CachePolicy
+@JvmOverloads
+constructor(
+    val ttls: Map<String, Duration> = DEFAULT_TTLS,
+    val defaultTtl: Duration = Duration.ZERO,
+) {
+    /** Returns a copy of this policy caching responses of [endpoint] for [ttl]. */
+    fun withTtl(endpoint: String, ttl: Duration) = CachePolicy(ttls + (endpoint to ttl), defaultTtl)
+
+    /** Returns the time to live of responses for requests to [url]. */
+    fun ttl(url: Url) = endpoint(url)?.let { ttls[it] } ?: defaultTtl
+
+    /** @suppress */
+    companion object {
+        /**
+         * Default time to live per endpoint. Collections aren't cached, their (export) responses
+         * are personal and are frequently `202 Accepted`.
+         */
+        val DEFAULT_TTLS =
+            mapOf(
+                Constants.PATH_FAMILY to 24.hours,
+                Constants.PATH_FORUM_LIST to 1.hours,
+                Constants.PATH_FORUM to 5.minutes,
+                Constants.PATH_GEEK_LIST to 1.hours,
+                Constants.PATH_GUILDS to 1.hours,
+                Constants.PATH_HOT to 15.minutes,
+                Constants.PATH_PLAYS to 5.minutes,
+                Constants.PATH_SEARCH to 1.hours,
+                Constants.PATH_SITEMAP to 24.hours,
+                SITEMAP_PAGES to 24.hours,
+                Constants.PATH_THING to 24.hours,
+                Constants.PATH_THREAD to 5.minutes,
+                Constants.PATH_USER to 1.hours,
+            )
+
+        /** Endpoint of all sitemap pages, their paths differ per page e.g. `sitemap_..._page_1`. */
+        const val SITEMAP_PAGES = "sitemap"
+
+        /**
+         * Returns the endpoint of [url], i.e. the first path segment after the API root, e.g.
+         * `thing` for `/xmlapi2/thing` and `geeklist` for `/xmlapi/geeklist/123`.
+         */
+        internal fun endpoint(url: Url) =
+            url.segments
+                .dropWhile { it == XML1_API_ROOT || it == XML2_API_ROOT }
+                .firstOrNull()
+                ?.let { if (it.startsWith(SITEMAP_PAGE_PREFIX)) SITEMAP_PAGES else it }
+
+        private const val XML1_API_ROOT = "xmlapi"
+        private const val XML2_API_ROOT = "xmlapi2"
+        private const val SITEMAP_PAGE_PREFIX = "sitemap_"
+    }
+}
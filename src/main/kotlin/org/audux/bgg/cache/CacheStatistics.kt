@@ -0,0 +1,56 @@
+/**
+ * Copyright 2023-2024 Bram Wijnands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.audux.bgg.cache
+
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Statistics of the requests served using a [ResponseCache], kept per
+ * [org.audux.bgg.InstantiableClient].
+ */
+class CacheStatistics internal constructor() {
+    private val hitCount = AtomicLong()
+    private val missCount = AtomicLong()
+    private val notModifiedCount = AtomicLong()
+    private val bytesSavedCount = AtomicLong()
+
+    /** The number of requests served from the cache without making a request. */
+    val hits
+        get() = hitCount.get()
+
+    /** The number of requests that were not (or no longer) cached and were requested again. */
+    val misses
+        get() = missCount.get()
+
+    /** The number of expired responses that BGG confirmed had not changed (304 Not Modified). */
+    val notModified
+        get() = notModifiedCount.get()
+
+    /** The number of response bytes that didn't have to be downloaded thanks to [notModified]. */
+    val bytesSaved
+        get() = bytesSavedCount.get()
+
+    internal fun recordHit() = hitCount.incrementAndGet()
+
+    internal fun recordMiss() = missCount.incrementAndGet()
+
+    internal fun recordNotModified(bytes: Int) {
+        notModifiedCount.incrementAndGet()
+        bytesSavedCount.addAndGet(bytes.toLong())
+    }
+
+    override fun toString() =
+        "CacheStatistics(hits=$hits, misses=$misses, notModified=$notModified, " +
+            "bytesSaved=$bytesSaved)"
+}
@@ -0,0 +1,440 @@
+/**
+ * Copyright 2023-2024 Bram Wijnands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.audux.bgg.cache
+
+import co.touchlab.kermit.Logger
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption.CREATE
+import java.nio.file.StandardOpenOption.READ
+import java.nio.file.StandardOpenOption.WRITE
+import java.time.Instant
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import java.util.zip.CRC32
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+import kotlin.io.path.deleteIfExists
+import kotlin.io.path.listDirectoryEntries
+import kotlin.io.path.name
+import kotlin.math.max
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.days
+import kotlin.time.toJavaDuration
+
+/**
+ * [ResponseCache] persisting responses in [directory], so the cache survives restarts of the
+ * application. Response bodies are stored gzip compressed.
+ *
+ * Responses are appended to segment files of at most [maxSegmentSize] bytes, an in-memory index
+ * points to the latest record of every key and is rebuilt by reading the segments when the cache
+ * is created. Records that were overwritten, invalidated or expired more than [expiredRetention]
+ * ago are removed by compacting the segments. Expired responses with an `ETag` or `Last-Modified`
+ * header can still be revalidated with a conditional request, so they're kept for
+ * [validatedRetention] instead.
+ *
+ * Compaction happens automatically once more than half of the stored bytes are no longer used, or
+ * once the segments exceed [maximumSize]. When the remaining responses would still take up more
+ * than three quarters of [maximumSize], the least recently stored responses are evicted.
+ *
+ * The cache is safe for concurrent use, but [directory] must not be shared by multiple instances.
+ * Close the cache once it's no longer used.
+ *
+ * @param directory The directory the segment files are stored in, created if it doesn't exist.
+ * @param maxSegmentSize The size from which on a new segment file is started.
+ * @param expiredRetention How long expired responses without validators are kept before
+ *   compaction removes them.
+ * @param maximumSize The maximum total size of the segment files in bytes.
+ * @param validatedRetention How long expired responses with validators are kept before compaction
+ *   removes them.
+ */
+class DiskResponseCache
+@JvmOverloads
+constructor(
+    private val directory: Path,
+    private val maxSegmentSize: Long = DEFAULT_MAX_SEGMENT_SIZE,
+    private val expiredRetention: Duration = Duration.ZERO,
+    private val maximumSize: Long = DEFAULT_MAXIMUM_SIZE,
+    private val validatedRetention: Duration = DEFAULT_VALIDATED_RETENTION,
+) : ResponseCache, AutoCloseable {
+    private val lock = ReentrantReadWriteLock()
+    private val segments = sortedMapOf<Int, FileChannel>()
+    private val index = HashMap<String, Location>()
+    private var activeSegment = 0
+    private var totalBytes = 0L
+    private var liveBytes = 0L
+    private var closed = false
+
+    init {
+        require(maxSegmentSize > 0) { "maxSegmentSize must be positive" }
+        require(maximumSize > 0) { "maximumSize must be positive" }
+
+        Files.createDirectories(directory)
+        lock.write {
+            directory
+                .listDirectoryEntries("$SEGMENT_PREFIX*$SEGMENT_SUFFIX")
+                .mapNotNull { path -> segmentId(path)?.let { it to path } }
+                .sortedBy { it.first }
+                .forEach { (id, path) -> load(id, path) }
+            if (segments.isEmpty()) openSegment(0)
+            activeSegment = segments.lastKey()
+            compactIfNeeded()
+        }
+    }
+
+    /** The number of cached responses. */
+    val size
+        get() = lock.read { index.size }
+
+    /** The total size of all segment files in bytes. */
+    val sizeOnDisk
+        get() = lock.read { totalBytes }
+
+    override fun get(key: String): CachedResponse? =
+        lock.read {
+            check(!closed) { "DiskResponseCache has been closed" }
+            val location = index[key] ?: return null
+            val buffer = ByteBuffer.allocate(location.validatorsLength + location.bodyLength)
+            segments.getValue(location.segment).readFully(buffer, location.validatorsOffset)
+            val (etag, lastModified) =
+                decodeValidators(buffer.array().copyOf(location.validatorsLength))
+
+            try {
+                CachedResponse(
+                    body =
+                        decompress(
+                            buffer.array().copyOfRange(location.validatorsLength, buffer.capacity())
+                        ),
+                    storedAt = Instant.ofEpochMilli(location.storedAt),
+                    expiresAt = Instant.ofEpochMilli(location.expiresAt),
+                    etag = etag,
+                    lastModified = lastModified,
+                )
+            } catch (e: IOException) {
+                Logger.w("Could not read cached response $key", e)
+                null
+            }
+        }
+
+    override fun put(key: String, response: CachedResponse) {
+        val body = compress(response.body)
+        lock.write {
+            check(!closed) { "DiskResponseCache has been closed" }
+            append(key, body, encodeValidators(response), response.storedAt, response.expiresAt)
+            compactIfNeeded()
+        }
+    }
+
+    override fun invalidate(key: String) {
+        lock.write {
+            check(!closed) { "DiskResponseCache has been closed" }
+            if (index.containsKey(key)) {
+                append(key, null, ByteArray(0), Instant.EPOCH, Instant.EPOCH)
+            }
+        }
+    }
+
+    override fun invalidateAll() {
+        lock.write {
+            check(!closed) { "DiskResponseCache has been closed" }
+            deleteSegments(segments.keys.toList())
+            index.clear()
+            totalBytes = 0
+            liveBytes = 0
+            activeSegment = 0
+            openSegment(activeSegment)
+        }
+    }
+
+    /**
+     * Rewrites all responses that are still in use into new segments and deletes the old segments,
+     * reclaiming the space of overwritten, invalidated and expired responses. Evicts the least
+     * recently stored responses when the remaining responses take up more than three quarters of
+     * [maximumSize].
+     */
+    fun compact() {
+        lock.write {
+            check(!closed) { "DiskResponseCache has been closed" }
+            val oldSegments = segments.keys.toList()
+            val now = Instant.now()
+            val expiredBefore = (now - expiredRetention.toJavaDuration()).toEpochMilli()
+            val validatedBefore = (now - validatedRetention.toJavaDuration()).toEpochMilli()
+
+            // Keep the most recently stored responses that aren't expired beyond their retention.
+            var keptBytes = 0L
+            val locations =
+                index.entries
+                    .filter { (_, location) ->
+                        val canRevalidate = location.validatorsLength > 0
+                        val removeBefore = if (canRevalidate) validatedBefore else expiredBefore
+                        location.expiresAt > removeBefore
+                    }
+                    .sortedByDescending { it.value.storedAt }
+                    .takeWhile { (_, location) ->
+                        keptBytes += location.length
+                        keptBytes <= maximumSize / 4 * 3
+                    }
+                    .sortedWith(compareBy({ it.value.segment }, { it.value.offset }))
+
+            index.clear()
+            totalBytes = 0
+            liveBytes = 0
+            activeSegment = oldSegments.last() + 1
+            openSegment(activeSegment)
+
+            for ((key, location) in locations) {
+                val record = ByteBuffer.allocate(location.length)
+                segments.getValue(location.segment).readFully(record, location.offset)
+                write(key, record.flip(), location)
+            }
+
+            // Only delete the old segments once the new segments are safely stored.
+            segments.filterKeys { it !in oldSegments }.values.forEach { it.force(true) }
+            deleteSegments(oldSegments)
+        }
+    }
+
+    override fun close() {
+        lock.write {
+            if (closed) return
+            closed = true
+            segments.values.forEach { it.close() }
+            segments.clear()
+        }
+    }
+
+    /** Appends a record for [key] to the active segment, a `null` [body] invalidates the key. */
+    private fun append(
+        key: String,
+        body: ByteArray?,
+        validators: ByteArray,
+        storedAt: Instant,
+        expiresAt: Instant,
+    ) {
+        val payload = key.toByteArray() + validators + (body ?: ByteArray(0))
+        val location =
+            Location(
+                segment = 0,
+                offset = 0,
+                length = HEADER_SIZE + payload.size,
+                keyLength = payload.size - validators.size - (body?.size ?: 0),
+                validatorsLength = validators.size,
+                bodyLength = body?.size ?: TOMBSTONE,
+                storedAt = storedAt.toEpochMilli(),
+                expiresAt = expiresAt.toEpochMilli(),
+            )
+        val record =
+            ByteBuffer.allocate(location.length)
+                .putInt(MAGIC)
+                .putInt(location.keyLength)
+                .putLong(location.storedAt)
+                .putLong(location.expiresAt)
+                .putInt(location.bodyLength)
+                .putInt(checksum(payload))
+                .putInt(location.validatorsLength)
+                .put(payload)
+        write(key, record.flip(), location)
+    }
+
+    /** Writes [record] to the active segment, starting a new segment when it's full. */
+    private fun write(key: String, record: ByteBuffer, location: Location) {
+        var channel = segments.getValue(activeSegment)
+        if (channel.size() > 0 && channel.size() + record.remaining() > maxSegmentSize) {
+            activeSegment++
+            channel = openSegment(activeSegment)
+        }
+
+        val offset = channel.size()
+        while (record.hasRemaining()) channel.write(record, offset + record.position())
+        index(key, location.copy(segment = activeSegment, offset = offset))
+    }
+
+    /** Updates the index with the record of [key] at [location]. */
+    private fun index(key: String, location: Location) {
+        index.remove(key)?.let { liveBytes -= it.length }
+        totalBytes += location.length
+        if (location.bodyLength != TOMBSTONE) {
+            index[key] = location
+            liveBytes += location.length
+        }
+    }
+
+    /**
+     * Indexes all records in the segment [id], truncating the segment at the first record that's
+     * incomplete or corrupt, e.g. because the application stopped while writing it.
+     */
+    private fun load(id: Int, path: Path) {
+        val channel = openSegment(id)
+        val header = ByteBuffer.allocate(HEADER_SIZE)
+        var offset = 0L
+        while (offset < channel.size()) {
+            val location = readRecord(channel, header.clear(), offset, id) ?: break
+            val payload = ByteBuffer.allocate(location.length - HEADER_SIZE)
+            channel.readFully(payload, offset + HEADER_SIZE)
+            if (checksum(payload.array()) != header.getInt(CHECKSUM_OFFSET)) break
+
+            index(payload.array().decodeToString(0, location.keyLength), location)
+            offset += location.length
+        }
+
+        if (offset < channel.size()) {
+            Logger.w("Truncating corrupt cache segment ${path.name} at $offset")
+            channel.truncate(offset)
+        }
+    }
+
+    /** Reads the header of the record at [offset], returns `null` when it's not a valid record. */
+    private fun readRecord(
+        channel: FileChannel,
+        header: ByteBuffer,
+        offset: Long,
+        segment: Int,
+    ): Location? {
+        if (channel.readFully(header, offset) < HEADER_SIZE) return null
+        if (header.getInt(0) != MAGIC) return null
+
+        val keyLength = header.getInt(4)
+        val bodyLength = header.getInt(24)
+        val validatorsLength = header.getInt(32)
+        if (keyLength < 0 || bodyLength < TOMBSTONE || validatorsLength < 0) return null
+
+        val length = HEADER_SIZE.toLong() + keyLength + validatorsLength + max(bodyLength, 0)
+        if (offset + length > channel.size()) return null
+
+        return Location(
+            segment = segment,
+            offset = offset,
+            length = length.toInt(),
+            keyLength = keyLength,
+            validatorsLength = validatorsLength,
+            bodyLength = bodyLength,
+            storedAt = header.getLong(8),
+            expiresAt = header.getLong(16),
+        )
+    }
+
+    /**
+     * Compacts the segments once more than half of the stored bytes are no longer used, or once
+     * they exceed [maximumSize].
+     */
+    private fun compactIfNeeded() {
+        val mostlyUnused = totalBytes >= MIN_COMPACTION_SIZE && liveBytes < totalBytes / 2
+        if (mostlyUnused || totalBytes > maximumSize) compact()
+    }
+
+    private fun openSegment(id: Int) =
+        FileChannel.open(segmentPath(id), CREATE, READ, WRITE).also { segments[id] = it }
+
+    private fun deleteSegments(ids: List<Int>) {
+        for (id in ids) {
+            segments.remove(id)?.close()
+            segmentPath(id).deleteIfExists()
+        }
+    }
+
+    private fun segmentPath(id: Int) = directory.resolve("$SEGMENT_PREFIX$id$SEGMENT_SUFFIX")
+
+    private fun segmentId(path: Path) =
+        path.name.removePrefix(SEGMENT_PREFIX).removeSuffix(SEGMENT_SUFFIX).toIntOrNull()
+
+    /**
+     * Location of a record in a segment file.
+     *
+     * @property offset The offset of the record in the segment.
+     * @property length The length of the whole record, including header, key, validators and body.
+     */
+    private data class Location(
+        val segment: Int,
+        val offset: Long,
+        val length: Int,
+        val keyLength: Int,
+        val validatorsLength: Int,
+        val bodyLength: Int,
+        val storedAt: Long,
+        val expiresAt: Long,
+    ) {
+        val validatorsOffset
+            get() = offset + HEADER_SIZE + keyLength
+    }
+
+    /** @suppress */
+    companion object {
+        /** Default maximum size of a single segment file: 64MB. */
+        const val DEFAULT_MAX_SEGMENT_SIZE = 64L * 1024 * 1024
+
+        /** Default maximum total size of the segment files: 512MB. */
+        const val DEFAULT_MAXIMUM_SIZE = 512L * 1024 * 1024
+
+        /** Default time expired responses with validators are kept: 30 days. */
+        val DEFAULT_VALIDATED_RETENTION = 30.days
+
+        /** Segments smaller than this are never compacted. */
+        private const val MIN_COMPACTION_SIZE = 1024 * 1024
+
+        private const val SEGMENT_PREFIX = "segment-"
+        private const val SEGMENT_SUFFIX = ".log"
+
+        /** Marks the start of a record: "BGG2". */
+        private const val MAGIC = 0x42474732
+
+        /**
+         * Records start with a header of the magic number, key length, stored at, expires at, body
+         * length, checksum and validators length, followed by the key, validators and body.
+         */
+        private const val HEADER_SIZE = 36
+        private const val CHECKSUM_OFFSET = 28
+
+        /** Body length of records invalidating a key. */
+        private const val TOMBSTONE = -1
+
+        /** Returns the checksum of the [payload] of a record, i.e. everything after the header. */
+        private fun checksum(payload: ByteArray) = CRC32().apply { update(payload) }.value.toInt()
+
+        /** Encodes the `ETag` and `Last-Modified` validators, separated by a newline. */
+        private fun encodeValidators(response: CachedResponse) =
+            if (!response.hasValidators()) ByteArray(0)
+            else "${response.etag.orEmpty()}\n${response.lastModified.orEmpty()}".toByteArray()
+
+        private fun decodeValidators(validators: ByteArray): Pair<String?, String?> {
+            if (validators.isEmpty()) return null to null
+
+            val (etag, lastModified) = validators.decodeToString().split('\n', limit = 2)
+            return etag.ifEmpty { null } to lastModified.ifEmpty { null }
+        }
+
+        private fun compress(body: ByteArray) =
+            ByteArrayOutputStream()
+                .also { output -> GZIPOutputStream(output).use { it.write(body) } }
+                .toByteArray()
+
+        private fun decompress(body: ByteArray) =
+            GZIPInputStream(body.inputStream()).use { it.readBytes() }
+
+        /**
+         * Reads from [position] until [buffer] is full or the end of the file is reached, returning
+         * the number of bytes read.
+         */
+        private fun FileChannel.readFully(buffer: ByteBuffer, position: Long): Int {
+            while (buffer.hasRemaining()) {
+                if (read(buffer, position + buffer.position()) < 0) break
+            }
+            return buffer.position()
+        }
+    }
+}
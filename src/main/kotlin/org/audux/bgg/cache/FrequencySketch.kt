@@ -0,0 +1,88 @@
+/**
+ * Copyright 2023-2024 Bram Wijnands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.audux.bgg.cache
+
+/**
+ * Count-Min sketch estimating how often keys were seen, used as the admission filter of
+ * [InMemoryResponseCache] (TinyLFU). Counters are capped at 15 and halved once the number of
+ * increments reaches ten times the width of the sketch, so the popularity of keys ages over time.
+ *
+ * Not thread safe, access must be synchronized by the caller.
+ *
+ * @param expectedEntries The expected number of entries in the cache, used to size the sketch.
+ */
+internal class FrequencySketch(expectedEntries: Int) {
+    private val width = ceilingPowerOfTwo(expectedEntries.coerceIn(MIN_WIDTH, MAX_WIDTH))
+    private val table = Array(SEEDS.size) { ByteArray(width) }
+    private val sampleSize = 10 * width
+    private var additions = 0
+
+    /** Returns the estimated number of times [key] was seen, at most 15. */
+    fun frequency(key: Any): Int {
+        val hash = spread(key.hashCode())
+        return table.indices.minOf { row -> table[row][indexOf(hash, row)].toInt() }
+    }
+
+    /** Increments the popularity of [key], ageing all counters once the sample size is reached. */
+    fun increment(key: Any) {
+        val hash = spread(key.hashCode())
+        var added = false
+        for (row in table.indices) {
+            val index = indexOf(hash, row)
+            if (table[row][index] < MAX_FREQUENCY) {
+                table[row][index]++
+                added = true
+            }
+        }
+
+        if (added && ++additions >= sampleSize) reset()
+    }
+
+    /** Halves every counter. */
+    private fun reset() {
+        for (row in table) {
+            for (index in row.indices) row[index] = (row[index].toInt() ushr 1).toByte()
+        }
+        additions /= 2
+    }
+
+    private fun indexOf(hash: Int, row: Int): Int {
+        var h = (hash.toLong() + SEEDS[row]) * SEEDS[row]
+        h += h ushr 32
+        return h.toInt() and (width - 1)
+    }
+
+    private companion object {
+        const val MAX_FREQUENCY: Byte = 15
+        const val MIN_WIDTH = 16
+        const val MAX_WIDTH = 1 shl 24
+
+        /** A seed per row of the sketch. */
+        val SEEDS =
+            longArrayOf(
+                -0x3C5A37A36834CED9L,
+                -0x4B6D499041670D8DL,
+                -0x651E95C4D06FBFB1L,
+                -0x340D631B7BDDDCDBL,
+            )
+
+        /** Spreads the bits of [hash] to defend against poor hash codes. */
+        fun spread(hash: Int): Int {
+            val h = hash * 0x31848BAB
+            return h xor (h ushr 14)
+        }
+
+        fun ceilingPowerOfTwo(value: Int) = 1 shl (32 - Integer.numberOfLeadingZeros(value - 1))
+    }
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright 2023-2024 Bram Wijnands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.audux.bgg.cache
+
+/**
+ * [ResponseCache] keeping responses in memory, bounded by the total weight (estimated size in
+ * bytes) of the cached responses.
+ *
+ * Uses the W-TinyLFU policy: new responses enter a small LRU window (1% of [maximumWeight]), when
+ * they're pushed out of the window they only replace a response in the main segmented LRU if they
+ * were requested more often, as estimated by a [FrequencySketch]. This keeps popular responses,
+ * e.g. frequently viewed things, cached while one-off requests quickly make way.
+ *
+ * @param maximumWeight The maximum total weight of the cached responses, see [weigh].
+ */
+class InMemoryResponseCache
+@JvmOverloads
+constructor(private val maximumWeight: Long = DEFAULT_MAXIMUM_WEIGHT) : ResponseCache {
+    private val windowMaximum = (maximumWeight / 100).coerceAtLeast(1)
+    private val protectedMaximum = (maximumWeight - windowMaximum) * 4 / 5
+    private val sketch =
+        FrequencySketch(
+            (maximumWeight / AVERAGE_RESPONSE_WEIGHT).coerceAtMost(Int.MAX_VALUE.toLong()).toInt()
+        )
+
+    private val entries = HashMap<String, Entry>()
+    private val windowEntries = LinkedHashMap<String, Entry>()
+    private val probationEntries = LinkedHashMap<String, Entry>()
+    private val protectedEntries = LinkedHashMap<String, Entry>()
+    private var windowWeight = 0L
+    private var protectedWeight = 0L
+    private var mainWeight = 0L
+
+    init {
+        require(maximumWeight > 0) { "maximumWeight must be positive" }
+    }
+
+    /** The total weight of the cached responses. */
+    val weight
+        @Synchronized get() = windowWeight + mainWeight
+
+    /** The number of cached responses. */
+    val size
+        @Synchronized get() = entries.size
+
+    @Synchronized
+    override fun get(key: String): CachedResponse? {
+        sketch.increment(key)
+        val entry = entries[key] ?: return null
+        onHit(entry)
+        return entry.response
+    }
+
+    @Synchronized
+    override fun put(key: String, response: CachedResponse) {
+        val weight = weigh(key, response)
+        sketch.increment(key)
+        remove(key)
+        // Responses that can never fit are not cached at all.
+        if (weight > maximumWeight) return
+
+        val entry = Entry(key, response, weight)
+        entries[key] = entry
+        windowEntries[key] = entry
+        windowWeight += weight
+        evict()
+    }
+
+    @Synchronized
+    override fun invalidate(key: String) {
+        remove(key)
+    }
+
+    @Synchronized
+    override fun invalidateAll() {
+        entries.clear()
+        windowEntries.clear()
+        probationEntries.clear()
+        protectedEntries.clear()
+        windowWeight = 0
+        protectedWeight = 0
+        mainWeight = 0
+    }
+
+    /** Moves [entry] to the most recently used position, promoting it when it's on probation. */
+    private fun onHit(entry: Entry) {
+        when {
+            windowEntries.containsKey(entry.key) -> windowEntries.moveToEnd(entry)
+            protectedEntries.containsKey(entry.key) -> protectedEntries.moveToEnd(entry)
+            probationEntries.remove(entry.key) != null -> {
+                protectedEntries[entry.key] = entry
+                protectedWeight += entry.weight
+                // Demote the least recently used protected entries back to probation.
+                while (protectedWeight > protectedMaximum && protectedEntries.size > 1) {
+                    val demoted = protectedEntries.removeEldest()
+                    protectedWeight -= demoted.weight
+                    probationEntries[demoted.key] = demoted
+                }
+            }
+        }
+    }
+
+    /** Moves entries pushed out of the window to the main segment if they're admitted. */
+    private fun evict() {
+        while (windowWeight > windowMaximum) {
+            val candidate = windowEntries.removeEldest()
+            windowWeight -= candidate.weight
+            admit(candidate)
+        }
+    }
+
+    /**
+     * Adds [candidate] to the main segment, evicting the least recently used entries on probation
+     * as long as [candidate] is more popular. Otherwise [candidate] itself is evicted.
+     */
+    private fun admit(candidate: Entry) {
+        val mainMaximum = maximumWeight - windowMaximum
+        if (candidate.weight > mainMaximum) {
+            entries.remove(candidate.key)
+            return
+        }
+
+        while (mainWeight + candidate.weight > mainMaximum) {
+            val victim =
+                probationEntries.values.firstOrNull() ?: protectedEntries.values.firstOrNull()
+            if (victim == null || sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+                entries.remove(candidate.key)
+                return
+            }
+            remove(victim.key)
+        }
+
+        probationEntries[candidate.key] = candidate
+        mainWeight += candidate.weight
+    }
+
+    private fun remove(key: String) {
+        val entry = entries.remove(key) ?: return
+        when {
+            windowEntries.remove(key) != null -> windowWeight -= entry.weight
+            protectedEntries.remove(key) != null -> {
+                protectedWeight -= entry.weight
+                mainWeight -= entry.weight
+            }
+            probationEntries.remove(key) != null -> mainWeight -= entry.weight
+        }
+    }
+
+    private fun LinkedHashMap<String, Entry>.moveToEnd(entry: Entry) {
+        remove(entry.key)
+        put(entry.key, entry)
+    }
+
+    private fun LinkedHashMap<String, Entry>.removeEldest(): Entry {
+        val entry = values.first()
+        remove(entry.key)
+        return entry
+    }
+
+    private class Entry(val key: String, val response: CachedResponse, val weight: Long)
+
+    /** @suppress */
+    companion object {
+        /** Default maximum weight of the cache: 32MB. */
+        const val DEFAULT_MAXIMUM_WEIGHT = 32L * 1024 * 1024
+
+        /** Estimated weight of a response, used to size the frequency sketch. */
+        private const val AVERAGE_RESPONSE_WEIGHT = 8 * 1024
+
+        /** Estimated weight of the entry and response objects themselves. */
+        private const val ENTRY_OVERHEAD = 128
+
+        /**
+         * Estimated weight of a parsed response relative to its body: the object graph holds the
+         * same text as UTF-16 strings along with the objects wrapping them.
+         */
+        private const val PARSED_WEIGHT_RATIO = 3
+
+        /**
+         * Returns the estimated weight of a cached [response], roughly its size in bytes. Includes
+         * the parsed response when it's kept alongside the body, see [CachedResponse.parsed].
+         */
+        internal fun weigh(key: String, response: CachedResponse): Long {
+            val bodyWeight = response.body.size.toLong()
+            val parsedWeight = if (response.parsed != null) PARSED_WEIGHT_RATIO * bodyWeight else 0
+            return ENTRY_OVERHEAD + 2L * key.length + bodyWeight + parsedWeight
+        }
+    }
+}
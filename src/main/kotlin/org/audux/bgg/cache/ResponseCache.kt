@@ -0,0 +1,71 @@
+/**
+ * Copyright 2023-2024 Bram Wijnands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.audux.bgg.cache
+
+import java.time.Instant
+import org.audux.bgg.response.Response
+
+/**
+ * Cache of raw BGG response bodies, keyed by the canonical URL of the request (the query
+ * parameters sorted by name). Responses are only cached when they were successfully parsed, as
+ * configured by [CachePolicy]: `202 Accepted` and erroneous responses are never cached.
+ *
+ * Implementations must be safe for concurrent use, methods are called from the IO dispatcher and
+ * may block. Expired entries may still be returned by [get], callers check
+ * [CachedResponse.isExpired] and revalidate expired responses when they have validators.
+ *
+ * @see InMemoryResponseCache
+ */
+interface ResponseCache {
+    /** Returns the response cached for [key], or `null` if there is none. */
+    fun get(key: String): CachedResponse?
+
+    /** Caches [response] for [key], replacing any previously cached response. */
+    fun put(key: String, response: CachedResponse)
+
+    /** Removes the response cached for [key], if any. */
+    fun invalidate(key: String)
+
+    /** Removes all cached responses. */
+    fun invalidateAll()
+}
+
+/**
+ * A cached response body.
+ *
+ * @property body The raw (XML) response body.
+ * @property storedAt When the response was received, or last revalidated.
+ * @property expiresAt From when on the response should no longer be used without revalidating it.
+ * @property etag The `ETag` header of the response, used to revalidate the response once expired.
+ * @property lastModified The `Last-Modified` header of the response, used to revalidate the
+ *   response once expired.
+ */
+class CachedResponse
+@JvmOverloads
+constructor(
+    val body: ByteArray,
+    val storedAt: Instant,
+    val expiresAt: Instant,
+    val etag: String? = null,
+    val lastModified: String? = null,
+) {
+    /** The parsed body, so it isn't parsed again while the response is cached in memory. */
+    @Volatile internal var parsed: Response<*>? = null
+
+    /** Whether the response should no longer be used at the given moment. */
+    fun isExpired(now: Instant = Instant.now()) = !now.isBefore(expiresAt)
+
+    /** Whether the response can be revalidated with a conditional request once it has expired. */
+    fun hasValidators() = etag != null || lastModified != null
+}
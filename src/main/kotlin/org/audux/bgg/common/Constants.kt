@@ -20,6 +20,9 @@ internal object Constants {
     /** Base URL for the XML API(1). */
     const val XML1_API_URL = "https://boardgamegeek.com/xmlapi"
 
+    /** The maximum number of ids the thing endpoint accepts in a single request. */
+    const val MAX_THING_IDS = 20
+
     const val PATH_COLLECTION = "collection"
     const val PATH_FAMILY = "family"
     const val PATH_FORUM_LIST = "forumlist"
@@ -510,6 +510,27 @@ enum class SitemapLocationType(private val urlPart: String) {
     WIKI_PAGES("wiki_page");
 
     companion object {
+        /**
+         * Types of sitemaps listing things, i.e. the ids in their URLs can be requested using the
+         * `thing` endpoint. All other sitemaps list ids of other kinds of objects, e.g. versions,
+         * files or designers.
+         */
+        @JvmField
+        val THINGS =
+            setOf(
+                BOARD_GAMES,
+                BOARD_GAME_ACCESSORIES,
+                BOARD_GAME_COMPILATIONS,
+                BOARD_GAME_EXPANSIONS,
+                BOARD_GAME_ISSUES,
+                RPG_ISSUE,
+                RPG_ITEM,
+                VIDEO_GAMES,
+                VIDEO_GAME_COMPILATION,
+                VIDEO_GAME_EXPANSION,
+                VIDEO_GAME_HARDWARE,
+            )
+
         /**
          * Given an URL does a partial match as specified by [urlPart] to identify the type of
          * Sitemap.
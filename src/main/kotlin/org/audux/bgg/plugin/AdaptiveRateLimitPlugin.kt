@@ -0,0 +1,211 @@
+/**
+ * Copyright 2023-2024 Bram Wijnands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.audux.bgg.plugin
+
+import co.touchlab.kermit.Logger
+import io.ktor.client.plugins.api.Send
+import io.ktor.client.plugins.api.createClientPlugin
+import io.ktor.client.request.HttpRequestBuilder
+import io.ktor.client.statement.HttpResponse
+import io.ktor.http.HttpHeaders
+import io.ktor.http.HttpStatusCode
+import io.ktor.http.isSuccess
+import java.time.Instant
+import java.time.ZonedDateTime
+import java.time.format.DateTimeFormatter
+import java.time.format.DateTimeParseException
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.math.max
+import kotlin.math.min
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.milliseconds
+import kotlin.time.Duration.Companion.nanoseconds
+import kotlin.time.Duration.Companion.seconds
+import kotlinx.coroutines.delay
+
+/**
+ * Ktor plugin adapting the request rate to the responses BGG gives. Whenever a 429 (Too Many
+ * Requests) or a `Retry-After` header is seen the rate is halved and requests are paused for the
+ * given time, successful responses gradually increase the rate back up to the configured limit.
+ *
+ * This plugin hooks into [Send] so it must be installed _after_
+ * [io.ktor.client.plugins.HttpRequestRetry], that way retries are paced and observed as well.
+ */
+internal val AdaptiveRateLimitPlugin =
+    createClientPlugin(
+        "AdaptiveRateLimitPlugin",
+        createConfiguration = ::RequestLimiterConfiguration,
+    ) {
+        val config = pluginConfig
+        on(Send) { request ->
+            val controller =
+                config.throttleRegistry.adaptiveRateController(
+                    config.authToken,
+                    request.url.host,
+                    config.requestLimit,
+                    config.windowSize,
+                )
+            controller.onNewRequest(request)
+            proceed(request).also { controller.onResponse(it.response) }
+        }
+    }
+
+/**
+ * Additive increase/multiplicative decrease (AIMD) controller for the request rate. Requests are
+ * evenly spaced at the current [effectiveRate] whenever it's below [requestLimit], at the full rate
+ * pacing is left to the configured [RateLimitStrategy].
+ *
+ * @param requestLimit The maximum number of requests per [windowLength].
+ * @param windowLength The window the [requestLimit] applies to.
+ */
+internal class AdaptiveRateController(
+    @Volatile private var requestLimit: Int,
+    windowLength: Duration,
+    private val nanoTime: () -> Long = System::nanoTime,
+) : RateLimiter {
+    @Volatile private var windowNanos = windowLength.inWholeNanoseconds
+    @Volatile private var minimumRate = max(1.0, requestLimit * MINIMUM_RATE_FACTOR)
+    @Volatile private var additiveIncrease = max(1.0, requestLimit.toDouble() / RECOVERY_STEPS)
+
+    private val rate = AtomicLong(requestLimit.toDouble().toRawBits())
+    private val theoreticalArrivalTime = AtomicLong(nanoTime())
+    private val pausedUntil = AtomicLong(nanoTime())
+    private val lastDecrease = AtomicLong(nanoTime() - windowNanos)
+
+    /** The current number of requests allowed per window. */
+    val effectiveRate: Double
+        get() = Double.fromBits(rate.get())
+
+    override suspend fun onNewRequest(request: HttpRequestBuilder) {
+        val waitNanos = reserve()
+        if (waitNanos <= 0) return
+
+        logger.v(tag = "AdaptiveRateController") {
+            "Delaying request ${waitNanos.nanoseconds}, current rate $effectiveRate"
+        }
+        delay(waitNanos.nanoseconds)
+    }
+
+    /**
+     * Lowers the limit to [requestLimit] per [windowLength] when that's more restrictive than the
+     * current limit, the current rate is lowered to the new limit if needed. Less restrictive
+     * limits are ignored, so clients with different limits sharing this controller are all held to
+     * the lowest one.
+     */
+    @Synchronized
+    fun restrict(requestLimit: Int, windowLength: Duration) {
+        val windowNanos = windowLength.inWholeNanoseconds
+        val currentRate = this.requestLimit.toDouble() / this.windowNanos
+        if (requestLimit.toDouble() / windowNanos >= currentRate) return
+
+        this.requestLimit = requestLimit
+        this.windowNanos = windowNanos
+        minimumRate = max(1.0, requestLimit * MINIMUM_RATE_FACTOR)
+        additiveIncrease = max(1.0, requestLimit.toDouble() / RECOVERY_STEPS)
+        rate.updateAndGet { min(requestLimit.toDouble(), Double.fromBits(it)).toRawBits() }
+    }
+
+    /** Reserves a slot for a single request, returning the nanoseconds to wait before sending. */
+    internal fun reserve(): Long {
+        while (true) {
+            val now = nanoTime()
+            val paused = pausedUntil.get()
+            val currentRate = effectiveRate
+            if (currentRate >= requestLimit && paused - now <= 0) return 0
+
+            val arrivalTime = theoreticalArrivalTime.get()
+            val start = max(max(arrivalTime, now), paused)
+            val interval = (windowNanos / currentRate).toLong()
+            if (theoreticalArrivalTime.compareAndSet(arrivalTime, start + interval)) {
+                return start - now
+            }
+        }
+    }
+
+    /** Updates the rate based on the status code and `Retry-After` header of [response]. */
+    fun onResponse(response: HttpResponse) {
+        val retryAfter = response.headers[HttpHeaders.RetryAfter]?.let(::parseRetryAfter)
+        when {
+            response.status == HttpStatusCode.TooManyRequests || retryAfter != null ->
+                onThrottled(retryAfter)
+            // 202 means the request is queued by BGG, which says nothing about the rate.
+            response.status.isSuccess() && response.status != HttpStatusCode.Accepted ->
+                onSuccess()
+        }
+    }
+
+    /**
+     * Multiplicative decrease: halves the rate, at most once per request interval so a burst of
+     * 429s for requests that were already in-flight only counts once. Pauses all requests for
+     * [retryAfter] if set.
+     */
+    internal fun onThrottled(retryAfter: Duration?) {
+        val now = nanoTime()
+        retryAfter?.let { pausedUntil.accumulateAndGet(now + it.inWholeNanoseconds, ::max) }
+
+        val last = lastDecrease.get()
+        if (now - last < (windowNanos / effectiveRate).toLong()) return
+        if (!lastDecrease.compareAndSet(last, now)) return
+
+        val newRate =
+            Double.fromBits(
+                rate.updateAndGet {
+                    max(minimumRate, Double.fromBits(it) * DECREASE_FACTOR).toRawBits()
+                }
+            )
+        logger.i(tag = "AdaptiveRateController") {
+            "Throttled by BGG, lowering rate to $newRate/$requestLimit per window"
+        }
+    }
+
+    /** Additive increase: raises the rate by a fixed step up to the [requestLimit]. */
+    internal fun onSuccess() {
+        rate.updateAndGet {
+            min(requestLimit.toDouble(), Double.fromBits(it) + additiveIncrease).toRawBits()
+        }
+    }
+
+    companion object {
+        private val logger = Logger.withTag("ClientRateLimitPlugin")
+
+        /** Factor the rate is multiplied by whenever BGG throttles requests. */
+        private const val DECREASE_FACTOR = 0.5
+
+        /** The rate never drops below this factor of the request limit (or 1 per window). */
+        private const val MINIMUM_RATE_FACTOR = 0.05
+
+        /** The number of successful responses needed to recover from 0 to the full rate. */
+        private const val RECOVERY_STEPS = 20
+
+        /**
+         * Parses the `Retry-After` header which is either the number of seconds to wait or a
+         * HTTP-date after which to retry.
+         */
+        internal fun parseRetryAfter(value: String): Duration? {
+            value.trim().toLongOrNull()?.let {
+                return it.coerceAtLeast(0).seconds
+            }
+
+            return try {
+                val retryAt =
+                    ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME)
+                (retryAt.toInstant().toEpochMilli() - Instant.now().toEpochMilli())
+                    .coerceAtLeast(0)
+                    .milliseconds
+            } catch (e: DateTimeParseException) {
+                null
+            }
+        }
+    }
+}
@@ -16,71 +16,168 @@ package org.audux.bgg.plugin
 import co.touchlab.kermit.Logger
 import io.ktor.client.plugins.api.createClientPlugin
 import io.ktor.client.request.HttpRequestBuilder
+import io.ktor.util.AttributeKey
 import java.util.concurrent.atomic.AtomicInteger
-import kotlinx.coroutines.delay
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
 
 /**
  * Ktor plugin to configure the client to limit the number of concurrent requests it can make.
- * Additional requests will be canceled and re-queued to be send whenever another request has been
- * completed.
+ * Additional requests are queued and sent, in order, whenever another request has been completed.
+ *
+ * The limit is shared with all other clients using the same auth token and host through the
+ * configured [ThrottleRegistry].
  */
 internal val ClientConcurrentRateLimitPlugin =
     createClientPlugin(
         "ClientConcurrentRateLimitPlugin",
         createConfiguration = ::ConcurrentRequestLimiterConfiguration,
     ) {
-        val requestLimiter = ConcurrentRequestLimiter(pluginConfig.requestLimit)
-        onRequest { request, _ -> requestLimiter.onNewRequest(request) }
+        val config = pluginConfig
+        onRequest { request, _ ->
+            config.throttleRegistry
+                .concurrentRequestLimiter(config.authToken, request.url.host, config.requestLimit)
+                .onNewRequest(request)
+        }
     }
 
 /**
  * Implementation of [ClientConcurrentRateLimitPlugin] ensuring not more than
  * [ConcurrentRequestLimiterConfiguration.requestLimit] are being made concurrently.
+ *
+ * Requests exceeding the limit are queued and resumed one at a time in order of arrival as soon as
+ * another request completes. The limit can be lowered while requests are in-flight using
+ * [restrict].
  */
-internal class ConcurrentRequestLimiter(private val requestLimit: Int) {
+internal class ConcurrentRequestLimiter(@Volatile private var requestLimit: Int) {
+    private val lock = Any()
+    private val waiters = ArrayDeque<Permit>()
     internal val inFlightRequests = AtomicInteger()
 
+    /** The number of requests currently waiting for another request to complete. */
+    val queueDepth
+        get() = synchronized(lock) { waiters.size }
+
     /**
-     * Keeps an counter for the number of requests that are active/in-flight. If ever the limit is
-     * reached the request is held indefinitely until this request or other requests are
-     * completed/cancelled.
+     * Lowers the maximum number of concurrent requests to [requestLimit] when it's lower than the
+     * current limit, higher limits are ignored. Requests already in-flight are unaffected, queued
+     * requests wait until the number of in-flight requests drops below the new limit.
+     */
+    fun restrict(requestLimit: Int) {
+        if (requestLimit >= this.requestLimit) return
+
+        synchronized(lock) { this.requestLimit = minOf(this.requestLimit, requestLimit) }
+    }
+
+    /**
+     * Acquires a permit for the request, suspending until one is available if [requestLimit]
+     * requests are already in-flight. The permit is released whenever this request is
+     * completed/cancelled, it's available as [ConcurrentRequestPermit] in the request attributes.
      *
      * Called on [io.ktor.client.plugins.api.ClientPluginBuilder.onRequest].
      */
     suspend fun onNewRequest(request: HttpRequestBuilder) {
         logger.v(tag = "ConcurrentRequestLimiter") { "#OnNewRequest()" }
-        // Ensure inFlight requests count is decremented whenever a request [Job] completes.
+        val permit = Permit()
+        permit.acquire()
+        request.attributes.put(ConcurrentRequestPermit, permit)
+
+        // Ensure the permit is released whenever a request [Job] completes.
         request.executionContext.invokeOnCompletion {
             logger.v(tag = "ConcurrentRequestLimiter") { "Request completed" }
-            inFlightRequests.decrementAndGet()
+            permit.release()
         }
+    }
 
-        // Check whether the `inFlightRequests` count has been reached, if so delay and check again.
-        do {
-            val currentInFlightRequests = inFlightRequests.get()
-            if (currentInFlightRequests < requestLimit) {
-                inFlightRequests.incrementAndGet()
-                break
-            }
+    /** Hands permits to queued requests, in order, for as long as the limit allows. */
+    private fun resumeWaiters() {
+        while (waiters.isNotEmpty() && inFlightRequests.get() < requestLimit) {
+            waiters.removeFirst().grant()
+        }
+    }
+
+    /** The permit of a single request, which can be released and acquired again while it runs. */
+    inner class Permit {
+        private var waiter: CompletableDeferred<Unit>? = null
+
+        /** Whether the permit is held, guarded by the lock. */
+        private var held = false
+
+        /** Acquires the permit, suspending until one is available. */
+        suspend fun acquire() {
+            val deferred =
+                synchronized(lock) {
+                    if (held) return
+                    if (waiters.isEmpty() && inFlightRequests.get() < requestLimit) {
+                        grant()
+                        null
+                    } else {
+                        CompletableDeferred<Unit>().also {
+                            waiter = it
+                            waiters.addLast(this)
+                        }
+                    }
+                } ?: return
 
             logger.v(tag = "ConcurrentRequestLimiter") {
-                "Concurrent Requests limit reached[$currentInFlightRequests/$requestLimit]"
+                "Concurrent Requests limit reached[$requestLimit], $queueDepth request(s) queued"
             }
+            try {
+                deferred.await()
+            } catch (e: CancellationException) {
+                // The permit may have been handed over right before cancelling, give it back.
+                synchronized(lock) { waiters.remove(this) }
+                release()
+                throw e
+            }
+        }
 
-            // Delay and yield as we've reached the concurrent request limit.
-            delay(IDLING_DELAY)
-        } while (true)
+        /** Releases the permit, if held, resuming the next queued request. */
+        fun release() {
+            synchronized(lock) {
+                if (!held) return
+                held = false
+                inFlightRequests.decrementAndGet()
+                resumeWaiters()
+            }
+        }
+
+        /**
+         * Runs [block] without holding the permit, acquiring it again afterwards. Used while a
+         * request waits for something other than BGG, e.g. a collector of streamed items.
+         */
+        suspend fun <T> released(block: suspend () -> T): T {
+            release()
+            return block().also { acquire() }
+        }
+
+        /** Hands the permit to this request, called while holding the lock. */
+        fun grant() {
+            held = true
+            inFlightRequests.incrementAndGet()
+            waiter?.complete(Unit)
+            waiter = null
+        }
     }
 
     companion object {
         private val logger = Logger.withTag("ClientRateLimitPlugin")
-        private const val IDLING_DELAY = 50L
     }
 }
 
+/** The [ConcurrentRequestLimiter.Permit] held by a request. */
+internal val ConcurrentRequestPermit =
+    AttributeKey<ConcurrentRequestLimiter.Permit>("ConcurrentRequestPermit")
+
 /**
  * Configuration for the concurrent request limiter.
  *
  * @property requestLimit The maximum number of concurrent requests that can be made.
+ * @property authToken The auth token used by the client, part of the key in [throttleRegistry].
+ * @property throttleRegistry Registry holding the limiters shared between clients.
  */
-internal data class ConcurrentRequestLimiterConfiguration(var requestLimit: Int = 10)
+internal data class ConcurrentRequestLimiterConfiguration(
+    var requestLimit: Int = 10,
+    var authToken: String = "",
+    var throttleRegistry: ThrottleRegistry = ThrottleRegistry.DEFAULT,
+)
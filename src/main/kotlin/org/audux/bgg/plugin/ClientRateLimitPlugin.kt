@@ -31,41 +31,58 @@ import org.jetbrains.annotations.VisibleForTesting
  *
  * <p>This configures the client to limit the number of requests it can make per [Duration]. For
  * example the plugin can be configured to do 60 requests per minute, or 1 request per second etc.
+ * The budget is shared with all other clients using the same auth token and host through the
+ * configured [ThrottleRegistry].
  */
 internal val ClientRateLimitPlugin =
     createClientPlugin(
         "ClientRateLimitPlugin",
         createConfiguration = ::RequestLimiterConfiguration,
     ) {
-        val requestLimiter = RequestLimiter(pluginConfig.requestLimit, pluginConfig.windowSize)
-        onRequest { request, _ -> requestLimiter.onNewRequest(request) }
+        val config = pluginConfig
+        onRequest { request, _ ->
+            config.throttleRegistry
+                .requestLimiter(
+                    config.authToken,
+                    request.url.host,
+                    config.requestLimit,
+                    config.windowSize,
+                    config.strategy,
+                    config.burst,
+                )
+                .onNewRequest(request)
+        }
     }
 
 /**
- * Implementation of [ClientRateLimitPlugin] ensuring not more than [requestLimit] are being within
- * the period of [windowLength].
+ * Fixed window implementation of [ClientRateLimitPlugin] ensuring not more than [requestLimit] are
+ * being within the period of [windowLength].
+ *
+ * @see RateLimitStrategy.FIXED_WINDOW
  */
-internal class RequestLimiter(private val requestLimit: Int, private val windowLength: Duration) {
+internal class RequestLimiter(private val requestLimit: Int, private val windowLength: Duration) :
+    RateLimiter {
     private val timeSource: TimeSource = TimeSource.Monotonic
-    private var currentWindowStart: AtomicReference<TimeMark?> = AtomicReference()
-    private var requestsInDelayed: AtomicInteger = AtomicInteger(0)
+    private val currentWindow: AtomicReference<Window?> = AtomicReference()
+    private val requestsInDelayed: AtomicInteger = AtomicInteger(0)
 
-    @VisibleForTesting internal var requestsInCurrentWindow: AtomicInteger = AtomicInteger(0)
+    @VisibleForTesting
+    internal val requestsInCurrentWindow: AtomicInteger
+        get() = currentWindow.get()?.requests ?: AtomicInteger(0)
 
-    suspend fun onNewRequest(request: HttpRequestBuilder) {
+    override suspend fun onNewRequest(request: HttpRequestBuilder) {
         do {
-            var windowStart = currentWindowStart.get()
-            if (windowStart == null || windowStart.plus(windowLength).hasPassedNow()) {
-                windowStart = timeSource.markNow()
-                currentWindowStart.set(windowStart)
-                requestsInCurrentWindow.set(0)
+            var window = currentWindow.get()
+            if (window == null || window.start.plus(windowLength).hasPassedNow()) {
+                // Atomically swap in the new window, only one request gets to start it.
+                val newWindow = Window(timeSource.markNow())
+                if (!currentWindow.compareAndSet(window, newWindow)) continue
+                window = newWindow
             }
 
-            val requestsMadeInWindow = requestsInCurrentWindow.get()
-            if (requestsMadeInWindow < requestLimit) {
-                requestsInCurrentWindow.incrementAndGet()
-                break
-            }
+            val requestsMadeInWindow =
+                window.requests.getAndUpdate { if (it < requestLimit) it + 1 else it }
+            if (requestsMadeInWindow < requestLimit) break
 
             val requestsBeingDelayed = requestsInDelayed.incrementAndGet()
             logger.i(tag = "RequestLimiter") {
@@ -74,13 +91,21 @@ internal class RequestLimiter(private val requestLimit: Int, private val windowL
 
             // Add `requestsBeingDelayed`ms to the delay to ensure requests retain order after
             // delay.
-            delay(
-                windowLength.minus(windowStart.elapsedNow()).plus(requestsBeingDelayed.milliseconds)
-            )
-            requestsBeingDelayed.dec()
+            try {
+                delay(
+                    windowLength
+                        .minus(window.start.elapsedNow())
+                        .plus(requestsBeingDelayed.milliseconds)
+                )
+            } finally {
+                requestsInDelayed.decrementAndGet()
+            }
         } while (true)
     }
 
+    /** A single window started at [start] with the number of [requests] made within it. */
+    private class Window(val start: TimeMark, val requests: AtomicInteger = AtomicInteger(0))
+
     companion object {
         private val logger = Logger.withTag("ClientRateLimitPlugin")
     }
@@ -93,8 +118,17 @@ internal class RequestLimiter(private val requestLimit: Int, private val windowL
  *   "60 requests per 60.seconds".
  * @property windowSize Throttles the client to have [requestLimit] request per [windowSize], e.g.
  *   "60 requests per 60.seconds".
+ * @property strategy The [RateLimitStrategy] used to spread requests over the window.
+ * @property burst The number of requests that may be made back to back, used by
+ *   [RateLimitStrategy.TOKEN_BUCKET] and [RateLimitStrategy.GCRA].
+ * @property authToken The auth token used by the client, part of the key in [throttleRegistry].
+ * @property throttleRegistry Registry holding the limiters shared between clients.
  */
 internal data class RequestLimiterConfiguration(
     var requestLimit: Int = 60,
     var windowSize: Duration = 60.seconds,
+    var strategy: RateLimitStrategy = RateLimitStrategy.FIXED_WINDOW,
+    var burst: Int = 1,
+    var authToken: String = "",
+    var throttleRegistry: ThrottleRegistry = ThrottleRegistry.DEFAULT,
 )
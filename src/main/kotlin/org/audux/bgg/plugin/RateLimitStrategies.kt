@@ -0,0 +1,152 @@
+/**
+ * Copyright 2023-2024 Bram Wijnands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.audux.bgg.plugin
+
+import co.touchlab.kermit.Logger
+import io.ktor.client.request.HttpRequestBuilder
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReference
+import kotlin.math.max
+import kotlin.math.min
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.nanoseconds
+import kotlinx.coroutines.delay
+
+/**
+ * The strategy [ClientRateLimitPlugin] uses to limit the number of requests per window.
+ *
+ * @see org.audux.bgg.BggClientConfiguration.rateLimitStrategy
+ */
+enum class RateLimitStrategy {
+    /**
+     * Allows up to `requestsPerWindowLimit` requests at the start of each window, any additional
+     * requests are delayed until the next window starts.
+     */
+    FIXED_WINDOW,
+
+    /**
+     * A bucket holding up to `requestBurst` tokens that is refilled at a rate of
+     * `requestsPerWindowLimit` per `requestWindowSize`. Each request takes a token or waits until
+     * one is available.
+     */
+    TOKEN_BUCKET,
+
+    /**
+     * Generic cell rate algorithm: spaces requests evenly at `requestWindowSize /
+     * requestsPerWindowLimit` apart while allowing up to `requestBurst` requests back to back.
+     */
+    GCRA,
+}
+
+/** Limits the rate at which requests are made, see [RateLimitStrategy]. */
+internal interface RateLimiter {
+    /**
+     * Suspends until [request] may be sent.
+     *
+     * Called on [io.ktor.client.plugins.api.ClientPluginBuilder.onRequest].
+     */
+    suspend fun onNewRequest(request: HttpRequestBuilder)
+}
+
+/**
+ * Base class for rate limiters that reserve a send time per request. The reservation itself is
+ * lock-free, the request is then delayed (if needed) outside of any critical section.
+ */
+internal abstract class ReservingRateLimiter(requestLimit: Int, windowLength: Duration) :
+    RateLimiter {
+    /** The time in between requests when requests are evenly spaced out. */
+    protected val emissionIntervalNanos = windowLength.inWholeNanoseconds / requestLimit
+
+    /** Reserves a slot for a single request, returning the nanoseconds to wait before sending. */
+    internal abstract fun reserve(): Long
+
+    override suspend fun onNewRequest(request: HttpRequestBuilder) {
+        val waitNanos = reserve()
+        if (waitNanos <= 0) return
+
+        logger.v(tag = this::class.simpleName.orEmpty()) { "Delaying request ${waitNanos}ns" }
+        delay(waitNanos.nanoseconds)
+    }
+
+    companion object {
+        private val logger = Logger.withTag("ClientRateLimitPlugin")
+    }
+}
+
+/**
+ * Token bucket implementation of [ClientRateLimitPlugin], refilling [burst] tokens at a rate of
+ * [requestLimit] tokens per [windowLength]. When the bucket is empty the token count goes negative,
+ * reserving the next token that will be added so requests are served in order.
+ *
+ * @see RateLimitStrategy.TOKEN_BUCKET
+ */
+internal class TokenBucketRequestLimiter(
+    requestLimit: Int,
+    windowLength: Duration,
+    private val burst: Int,
+    private val nanoTime: () -> Long = System::nanoTime,
+) : ReservingRateLimiter(requestLimit, windowLength) {
+    private val bucket = AtomicReference(Bucket(burst.toDouble(), nanoTime()))
+
+    /** The number of tokens currently in the bucket, negative when requests are waiting. */
+    internal val tokens
+        get() = bucket.get().tokens
+
+    override fun reserve(): Long {
+        while (true) {
+            val now = nanoTime()
+            val current = bucket.get()
+            val refilled =
+                min(
+                    burst.toDouble(),
+                    current.tokens + (now - current.refilledAt).toDouble() / emissionIntervalNanos,
+                )
+            val next = Bucket(refilled - 1, now)
+            if (bucket.compareAndSet(current, next)) {
+                return if (next.tokens >= 0) 0 else (-next.tokens * emissionIntervalNanos).toLong()
+            }
+        }
+    }
+
+    /** Immutable state of the bucket so it can be swapped atomically. */
+    private class Bucket(val tokens: Double, val refilledAt: Long)
+}
+
+/**
+ * Generic cell rate algorithm (GCRA) implementation of [ClientRateLimitPlugin]. Keeps track of the
+ * theoretical arrival time (TAT) of the next request, spacing requests [requestLimit] per
+ * [windowLength] apart while tolerating bursts of up to [burst] requests.
+ *
+ * @see RateLimitStrategy.GCRA
+ */
+internal class GcraRequestLimiter(
+    requestLimit: Int,
+    windowLength: Duration,
+    burst: Int,
+    private val nanoTime: () -> Long = System::nanoTime,
+) : ReservingRateLimiter(requestLimit, windowLength) {
+    private val burstTolerance = emissionIntervalNanos * (max(burst, 1) - 1)
+    private val theoreticalArrivalTime = AtomicLong(nanoTime())
+
+    override fun reserve(): Long {
+        while (true) {
+            val now = nanoTime()
+            val arrivalTime = theoreticalArrivalTime.get()
+            val start = max(arrivalTime, now)
+            if (theoreticalArrivalTime.compareAndSet(arrivalTime, start + emissionIntervalNanos)) {
+                return max(0, start - burstTolerance - now)
+            }
+        }
+    }
+}
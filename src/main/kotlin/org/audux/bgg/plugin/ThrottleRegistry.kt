@@ -0,0 +1,140 @@
+/**
+ * Copyright 2023-2024 Bram Wijnands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.audux.bgg.plugin
+
+import io.ktor.client.request.HttpRequestBuilder
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.time.Duration
+
+/**
+ * Registry of the request limiters used by [ClientConcurrentRateLimitPlugin] and
+ * [ClientRateLimitPlugin]. Limiters are keyed per auth token and host (e.g. `boardgamegeek.com`)
+ * so every client, paginated request and sitemap diffusion using the same token against the same
+ * host draws from the same budget.
+ *
+ * A limiter is never replaced once created. When clients sharing it are configured with different
+ * limits, e.g. after [org.audux.bgg.BggClient.configure] changed the maximum number of concurrent
+ * requests, all of them are held to the most restrictive limits: the lowest concurrency limit and
+ * every configured rate limit, whatever their [RateLimitStrategy]. Use [clear] or a separate
+ * registry (see [org.audux.bgg.BggClientConfiguration.throttleRegistry]) to raise the limits again.
+ */
+class ThrottleRegistry {
+    private val concurrentRequestLimiters =
+        ConcurrentHashMap<ThrottleKey, ConcurrentRequestLimiter>()
+    private val requestLimiters = ConcurrentHashMap<ThrottleKey, SharedRateLimiter>()
+    private val adaptiveRateControllers = ConcurrentHashMap<ThrottleKey, AdaptiveRateController>()
+
+    /** Returns the shared [ConcurrentRequestLimiter] for the given [authToken] and [host]. */
+    internal fun concurrentRequestLimiter(authToken: String, host: String, requestLimit: Int) =
+        concurrentRequestLimiters
+            .computeIfAbsent(ThrottleKey(authToken, host)) {
+                ConcurrentRequestLimiter(requestLimit)
+            }
+            .also { it.restrict(requestLimit) }
+
+    /** Returns the shared [RateLimiter] for the given [authToken] and [host]. */
+    internal fun requestLimiter(
+        authToken: String,
+        host: String,
+        requestLimit: Int,
+        windowSize: Duration,
+        strategy: RateLimitStrategy = RateLimitStrategy.FIXED_WINDOW,
+        burst: Int = 1,
+    ): RateLimiter =
+        requestLimiters
+            .computeIfAbsent(ThrottleKey(authToken, host)) { SharedRateLimiter() }
+            .withLimit(RateLimit(requestLimit, windowSize, strategy, burst))
+
+    /** Returns the shared [AdaptiveRateController] for the given [authToken] and [host]. */
+    internal fun adaptiveRateController(
+        authToken: String,
+        host: String,
+        requestLimit: Int,
+        windowSize: Duration,
+    ) =
+        adaptiveRateControllers
+            .computeIfAbsent(ThrottleKey(authToken, host)) {
+                AdaptiveRateController(requestLimit, windowSize)
+            }
+            .also { it.restrict(requestLimit, windowSize) }
+
+    /**
+     * Returns the number of requests for the given [authToken] and [host] that are waiting for
+     * another request to complete before they can be sent.
+     */
+    fun queueDepth(authToken: String, host: String) =
+        concurrentRequestLimiters[ThrottleKey(authToken, host)]?.queueDepth ?: 0
+
+    /**
+     * Returns the number of requests per window currently allowed for the given [authToken] and
+     * [host] when adaptive rate limiting is enabled, or `null` if it isn't (or no requests have
+     * been made yet).
+     *
+     * @see org.audux.bgg.BggClientConfiguration.adaptiveRateLimiting
+     */
+    fun effectiveRequestRate(authToken: String, host: String) =
+        adaptiveRateControllers[ThrottleKey(authToken, host)]?.effectiveRate
+
+    /** Removes all limiters, requests made afterwards will start with a fresh budget. */
+    fun clear() {
+        concurrentRequestLimiters.clear()
+        requestLimiters.clear()
+        adaptiveRateControllers.clear()
+    }
+
+    /** @suppress */
+    companion object {
+        /** The registry shared by all clients unless configured otherwise. */
+        @JvmStatic val DEFAULT = ThrottleRegistry()
+    }
+}
+
+/** Key of a limiter in the [ThrottleRegistry]. */
+internal data class ThrottleKey(val authToken: String, val host: String)
+
+/** A rate limit as configured by a client, see [org.audux.bgg.BggClientConfiguration]. */
+internal data class RateLimit(
+    val requestLimit: Int,
+    val windowSize: Duration,
+    val strategy: RateLimitStrategy,
+    val burst: Int,
+)
+
+/**
+ * The [RateLimiter] shared by all clients using the same auth token and host. Holds a limiter for
+ * every distinct [RateLimit] the clients were configured with, every request has to pass all of
+ * them. Clients with different limits therefore share a single budget that's held to the most
+ * restrictive of their limits, rather than each getting a budget of their own.
+ */
+internal class SharedRateLimiter : RateLimiter {
+    private val limiters = ConcurrentHashMap<RateLimit, RateLimiter>()
+
+    /** Adds a limiter enforcing [limit], unless it's enforced already, and returns this limiter. */
+    fun withLimit(limit: RateLimit) = apply {
+        limiters.computeIfAbsent(limit) {
+            when (limit.strategy) {
+                RateLimitStrategy.FIXED_WINDOW ->
+                    RequestLimiter(limit.requestLimit, limit.windowSize)
+                RateLimitStrategy.TOKEN_BUCKET ->
+                    TokenBucketRequestLimiter(limit.requestLimit, limit.windowSize, limit.burst)
+                RateLimitStrategy.GCRA ->
+                    GcraRequestLimiter(limit.requestLimit, limit.windowSize, limit.burst)
+            }
+        }
+    }
+
+    override suspend fun onNewRequest(request: HttpRequestBuilder) {
+        limiters.values.forEach { it.onNewRequest(request) }
+    }
+}
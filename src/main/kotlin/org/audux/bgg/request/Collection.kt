@@ -13,8 +13,7 @@
  */
 package org.audux.bgg.request
 
-import io.ktor.client.request.get
-import io.ktor.client.statement.bodyAsText
+import io.ktor.client.request.HttpRequestBuilder
 import io.ktor.http.appendPathSegments
 import java.time.LocalDateTime
 import java.time.format.DateTimeFormatter
@@ -54,7 +53,7 @@ import org.audux.bgg.common.Constants.XML2_API_URL
 import org.audux.bgg.common.Inclusion
 import org.audux.bgg.common.ThingType
 import org.audux.bgg.response.Collection
-import org.audux.bgg.response.Response
+import org.audux.bgg.response.CollectionItem
 
 /** @see org.audux.bgg.BggClient.collection */
 fun InstantiableClient.collection(
@@ -87,47 +86,63 @@ fun InstantiableClient.collection(
     maxPlays: Int?,
     collectionId: Int?,
     modifiedSince: LocalDateTime?,
-) = request {
-    client()
-        .get(XML2_API_URL) {
-            url {
-                appendPathSegments(PATH_COLLECTION)
-                parameters.apply {
-                    append(PARAM_USERNAME, userName)
-                    subType?.let { append(PARAM_SUBTYPE, it.param) }
+): CollectionRequest {
+    val block: HttpRequestBuilder.() -> Unit = {
+        url {
+            appendPathSegments(PATH_COLLECTION)
+            parameters.apply {
+                append(PARAM_USERNAME, userName)
+                subType?.let { append(PARAM_SUBTYPE, it.param) }
 
-                    excludeSubType?.let { append(PARAM_EXCLUDE_SUBTYPE, it.param) }
-                    ids?.let { append(PARAM_ID, it.joinToString(",")) }
-                    if (version) append(PARAM_VERSION, "1")
-                    if (brief) append(PARAM_BRIEF, "1")
-                    if (stats) append(PARAM_STATS, "1")
-                    own?.let { append(PARAM_OWN, it.toParam()) }
-                    rated?.let { append(PARAM_RATED, it.toParam()) }
-                    played?.let { append(PARAM_PLAYED, it.toParam()) }
-                    comment?.let { append(PARAM_COMMENT, it.toParam()) }
-                    trade?.let { append(PARAM_TRADE, it.toParam()) }
-                    want?.let { append(PARAM_WANT, it.toParam()) }
-                    wishlist?.let { append(PARAM_WISHLIST, it.toParam()) }
-                    wishlistPriority?.let { append(PARAM_WISHLIST_PRIORITY, it.toString()) }
-                    preOrdered?.let { append(PARAM_PRE_ORDERED, it.toParam()) }
-                    wantToPlay?.let { append(PARAM_WANT_TO_PLAY, it.toParam()) }
-                    wantToBuy?.let { append(PARAM_WANT_TO_BUY, it.toParam()) }
-                    previouslyOwned?.let { append(PARAM_PREVIOUSLY_OWNED, it.toParam()) }
-                    hasParts?.let { append(PARAM_HAS_PARTS, it.toParam()) }
-                    wantParts?.let { append(PARAM_WANT_PARTS, it.toParam()) }
-                    minRating?.let { append(PARAM_MINIMUM_RATING, it.toString()) }
-                    rating?.let { append(PARAM_RATING, it.toString()) }
-                    minBggRating?.let { append(PARAM_MINIMUM_BGG_RATING, it.toString()) }
-                    bggRating?.let { append(PARAM_BGG_RATING, it.toString()) }
-                    minimumPlays?.let { append(PARAM_MINIMUM_PLAYS, it.toString()) }
-                    maxPlays?.let { append(PARAM_MAX_PLAYS, it.toString()) }
-                    collectionId?.let { append(PARAM_COLLECTION_ID, it.toString()) }
-                    modifiedSince?.let {
-                        val formatter = DateTimeFormatter.ofPattern(REQUEST_DATE_TIME_FORMAT)
-                        append(PARAM_MODIFIED_SINCE, formatter.format(modifiedSince))
-                    }
+                excludeSubType?.let { append(PARAM_EXCLUDE_SUBTYPE, it.param) }
+                ids?.let { append(PARAM_ID, it.joinToString(",")) }
+                if (version) append(PARAM_VERSION, "1")
+                if (brief) append(PARAM_BRIEF, "1")
+                if (stats) append(PARAM_STATS, "1")
+                own?.let { append(PARAM_OWN, it.toParam()) }
+                rated?.let { append(PARAM_RATED, it.toParam()) }
+                played?.let { append(PARAM_PLAYED, it.toParam()) }
+                comment?.let { append(PARAM_COMMENT, it.toParam()) }
+                trade?.let { append(PARAM_TRADE, it.toParam()) }
+                want?.let { append(PARAM_WANT, it.toParam()) }
+                wishlist?.let { append(PARAM_WISHLIST, it.toParam()) }
+                wishlistPriority?.let { append(PARAM_WISHLIST_PRIORITY, it.toString()) }
+                preOrdered?.let { append(PARAM_PRE_ORDERED, it.toParam()) }
+                wantToPlay?.let { append(PARAM_WANT_TO_PLAY, it.toParam()) }
+                wantToBuy?.let { append(PARAM_WANT_TO_BUY, it.toParam()) }
+                previouslyOwned?.let { append(PARAM_PREVIOUSLY_OWNED, it.toParam()) }
+                hasParts?.let { append(PARAM_HAS_PARTS, it.toParam()) }
+                wantParts?.let { append(PARAM_WANT_PARTS, it.toParam()) }
+                minRating?.let { append(PARAM_MINIMUM_RATING, it.toString()) }
+                rating?.let { append(PARAM_RATING, it.toString()) }
+                minBggRating?.let { append(PARAM_MINIMUM_BGG_RATING, it.toString()) }
+                bggRating?.let { append(PARAM_BGG_RATING, it.toString()) }
+                minimumPlays?.let { append(PARAM_MINIMUM_PLAYS, it.toString()) }
+                maxPlays?.let { append(PARAM_MAX_PLAYS, it.toString()) }
+                collectionId?.let { append(PARAM_COLLECTION_ID, it.toString()) }
+                modifiedSince?.let {
+                    val formatter = DateTimeFormatter.ofPattern(REQUEST_DATE_TIME_FORMAT)
+                    append(PARAM_MODIFIED_SINCE, formatter.format(modifiedSince))
                 }
             }
         }
-        .let { Response.from<Collection>(it.bodyAsText(), mapper) }
+    }
+
+    return CollectionRequest(this, userName, block)
 }
+
+/**
+ * A [StreamingRequest] for the collection of [userName], which can also be scheduled on a
+ * [CollectionExportScheduler] to wait for BGG to prepare the collection export.
+ */
+class CollectionRequest
+internal constructor(
+    client: InstantiableClient,
+    val userName: String,
+    internal val block: HttpRequestBuilder.() -> Unit,
+) :
+    StreamingRequest<Collection, CollectionItem>(
+        client,
+        { client.getResponse<Collection>(XML2_API_URL, block) },
+        { client.streamItems(CollectionItem::class.java, block) },
+    )
@@ -0,0 +1,214 @@
+/**
+ * Copyright 2023-2024 Bram Wijnands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.audux.bgg.request
+
+import co.touchlab.kermit.Logger
+import io.ktor.client.request.prepareGet
+import io.ktor.http.HttpStatusCode
+import io.ktor.util.AttributeKey
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.math.pow
+import kotlin.random.Random
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.seconds
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import org.audux.bgg.InstantiableClient
+import org.audux.bgg.common.Constants.XML2_API_URL
+import org.audux.bgg.response.Collection
+import org.audux.bgg.response.Response
+
+/**
+ * Waits for BGG to prepare collection exports, e.g.:
+ * ```
+ * val exports = client.collectionExports()
+ * // Requests all collections, polling those that are not ready yet until they are.
+ * val collections = exports.exportAll(userNames.map { client.collection(it, ...) })
+ * ```
+ *
+ * BGG responds with `202 Accepted` while it prepares the export of a collection. Instead of
+ * retrying these requests using the client's retry policy, which holds on to a concurrent request
+ * slot while waiting and counts towards [org.audux.bgg.BggClientConfiguration.maxRetries], queued
+ * exports are polled again after an exponentially increasing delay: [pollDelay] doubling up to
+ * [maxPollDelay]. No slot is held in between polls, so many exports can be pending at once while
+ * other requests continue. Every poll goes through the client's rate limiters like any other
+ * request.
+ *
+ * @param pollDelay The delay before polling a queued export for the first time.
+ * @param maxPollDelay The maximum delay between polls of a queued export.
+ * @param maxPolls The maximum number of requests per export, after which it fails.
+ */
+class CollectionExportScheduler
+internal constructor(
+    private val client: InstantiableClient,
+    private val pollDelay: Duration,
+    private val maxPollDelay: Duration,
+    private val maxPolls: Int,
+) : AutoCloseable {
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private val exports = ConcurrentHashMap<String, Export>()
+    @Volatile private var closed = false
+
+    init {
+        require(pollDelay.isPositive()) { "pollDelay must be positive" }
+        require(maxPollDelay >= pollDelay) { "maxPollDelay must be at least pollDelay" }
+        require(maxPolls >= 1) { "maxPolls must be at least 1" }
+    }
+
+    /** The number of exports that have been scheduled and are not completed yet. */
+    val pending
+        get() = exports.size
+
+    /** The user names of the exports that have been scheduled and are not completed yet. */
+    val pendingUserNames: Set<String>
+        get() = exports.values.mapTo(mutableSetOf()) { it.userName }
+
+    /**
+     * Schedules the export of the collection of [request], the returned [Deferred] completes once
+     * BGG responded with the collection. Scheduling an identical request while it's pending
+     * returns the same [Deferred].
+     *
+     * The response contains an error when the export was still not ready after [maxPolls]
+     * requests. The [Deferred] fails with an [IllegalStateException] when this scheduler is closed
+     * before the export completed.
+     */
+    fun schedule(request: CollectionRequest): Deferred<Response<Collection>> {
+        check(!closed) { "CollectionExportScheduler has been closed" }
+
+        val key = requestKey(Collection::class.java, requestUrl(XML2_API_URL, request.block))
+        val export = Export(request.userName)
+        exports.putIfAbsent(key, export)?.let { return it.result }
+
+        scope.launch {
+            try {
+                export.result.complete(poll(request))
+            } catch (e: CancellationException) {
+                export.result.completeExceptionally(closedException())
+            } catch (e: Exception) {
+                Logger.w("Error exporting the collection of ${request.userName}", e)
+                export.result.completeExceptionally(e)
+            } finally {
+                exports.remove(key, export)
+            }
+        }
+        // The export is never started when the scheduler was closed in the meantime.
+        if (closed) {
+            exports.remove(key, export)
+            export.result.completeExceptionally(closedException())
+        }
+        return export.result
+    }
+
+    /** Exports the collection of [request], see [schedule]. */
+    suspend fun export(request: CollectionRequest) = schedule(request).await()
+
+    /** Exports all collections of [requests] concurrently, returning them in the same order. */
+    suspend fun exportAll(requests: List<CollectionRequest>): List<Response<Collection>> =
+        requests.map { schedule(it) }.awaitAll()
+
+    /**
+     * Stops polling, exports that are still pending fail with an [IllegalStateException]. Requests
+     * that are in-flight are cancelled.
+     */
+    override fun close() {
+        closed = true
+        scope.cancel()
+        exports.values.forEach { it.result.completeExceptionally(closedException()) }
+    }
+
+    private suspend fun poll(request: CollectionRequest): Response<Collection> {
+        repeat(maxPolls) { attempt ->
+            if (attempt > 0) delay(pollDelay(attempt))
+
+            val response =
+                client
+                    .client()
+                    .prepareGet(XML2_API_URL) {
+                        request.block(this)
+                        attributes.put(PolledRequest, Unit)
+                    }
+                    .execute { response ->
+                        if (response.status == HttpStatusCode.Accepted) null
+                        else Response.from(response, client.mapper, Collection::class.java)
+                    }
+            if (response != null) return response
+            Logger.v { "Collection export of ${request.userName} is queued [poll ${attempt + 1}]" }
+        }
+
+        return Response(
+            error = "Collection export of ${request.userName} not ready after $maxPolls polls"
+        )
+    }
+
+    /**
+     * Returns the delay before the [attempt]th poll: [pollDelay] doubled for every previous poll up
+     * to [maxPollDelay], plus up to 10% to spread out the polls of exports scheduled together.
+     */
+    internal fun pollDelay(attempt: Int): Duration {
+        val delay = (pollDelay * 2.0.pow(minOf(attempt - 1, 30))).coerceAtMost(maxPollDelay)
+        return delay + delay * Random.nextDouble(0.0, 0.1)
+    }
+
+    private fun closedException() =
+        IllegalStateException("CollectionExportScheduler has been closed")
+
+    /** A pending export of the collection of [userName]. */
+    private class Export(val userName: String) {
+        val result = CompletableDeferred<Response<Collection>>()
+    }
+
+    /** @suppress */
+    companion object {
+        /** The default delay before polling a queued export for the first time. */
+        val DEFAULT_POLL_DELAY = 2.seconds
+
+        /** The default maximum delay between polls of a queued export. */
+        val DEFAULT_MAX_POLL_DELAY = 60.seconds
+
+        /** The default maximum number of requests per export. */
+        const val DEFAULT_MAX_POLLS = 15
+    }
+}
+
+/**
+ * Marks requests of which `202 Accepted` responses are polled by a [CollectionExportScheduler], so
+ * they're not retried by the client's retry policy.
+ */
+internal val PolledRequest = AttributeKey<Unit>("PolledRequest")
+
+/**
+ * Creates a [CollectionExportScheduler] polling collection exports that BGG is still preparing,
+ * through this client.
+ *
+ * @see CollectionExportScheduler
+ */
+fun InstantiableClient.collectionExports(
+    pollDelay: Duration = CollectionExportScheduler.DEFAULT_POLL_DELAY,
+    maxPollDelay: Duration = CollectionExportScheduler.DEFAULT_MAX_POLL_DELAY,
+    maxPolls: Int = CollectionExportScheduler.DEFAULT_MAX_POLLS,
+) =
+    CollectionExportScheduler(
+        this,
+        pollDelay = pollDelay,
+        maxPollDelay = maxPollDelay,
+        maxPolls = maxPolls,
+    )
@@ -0,0 +1,225 @@
+/**
+ * Copyright 2023-2024 Bram Wijnands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.audux.bgg.request
+
+import java.time.LocalDateTime
+import java.util.concurrent.ConcurrentHashMap
+import kotlinx.serialization.Serializable
+import org.audux.bgg.InstantiableClient
+import org.audux.bgg.common.ThingType
+import org.audux.bgg.response.Collection
+import org.audux.bgg.response.CollectionItem
+import org.audux.bgg.response.LocalDateTimeSerializer
+import org.audux.bgg.response.Response
+
+/**
+ * Keeps a local snapshot of the collections of users up-to-date, e.g.:
+ * ```
+ * val sync = client.collectionSync(stats = true)
+ * // Requests the full collection the first time, and only the changed items afterwards.
+ * val snapshot = sync.sync("Novaeux").data
+ * ```
+ *
+ * The first sync of a user requests the full collection, later syncs only request the items of
+ * which the status changed since the [CollectionSnapshot.watermark] of the previous sync (using the
+ * `modifiedSince` parameter) and merge them into the snapshot by [CollectionItem.collectionId].
+ * Exports BGG is still preparing are polled using [exports].
+ *
+ * BGG doesn't report items that were removed from a collection, so removed items stay in the
+ * snapshot until the next full sync, i.e. `sync(userName, full = true)`. Snapshots can be stored
+ * between runs, as they're [Serializable], and loaded again using [restore].
+ *
+ * Close the sync when it's no longer used, which also closes the [CollectionExportScheduler] it
+ * created when none was passed to [collectionSync].
+ *
+ * @param subType Which type of items to sync, see [org.audux.bgg.BggClient.collection].
+ * @param excludeSubType Which type of items to exclude.
+ * @param stats Whether to include the expanded rating/ranking info of the items.
+ * @param version Whether to include the version info of the items.
+ * @param exports Used to request the collections, polling the exports that are not ready yet.
+ * @param ownsExports Whether [exports] was created for this sync, and is closed along with it.
+ */
+class CollectionSync
+internal constructor(
+    private val client: InstantiableClient,
+    private val subType: ThingType?,
+    private val excludeSubType: ThingType?,
+    private val stats: Boolean,
+    private val version: Boolean,
+    private val exports: CollectionExportScheduler,
+    private val ownsExports: Boolean,
+) : AutoCloseable {
+    private val snapshots = ConcurrentHashMap<String, CollectionSnapshot>()
+
+    /** Returns the current snapshot of the collection of [userName], if it was synced before. */
+    fun snapshot(userName: String): CollectionSnapshot? = snapshots[userName]
+
+    /** Returns the current snapshots of all synced collections. */
+    fun snapshots(): List<CollectionSnapshot> = snapshots.values.toList()
+
+    /** Restores a previously stored [snapshot], so the next sync of its user is incremental. */
+    fun restore(snapshot: CollectionSnapshot) {
+        snapshots[snapshot.userName] = snapshot
+    }
+
+    /**
+     * Syncs the collection of [userName], requesting only the items that changed since the
+     * previous sync unless [full] is set or the collection wasn't synced before. Returns the
+     * updated snapshot, or the error of the request in which case the snapshot is left untouched.
+     */
+    suspend fun sync(userName: String, full: Boolean = false): Response<CollectionSnapshot> {
+        val modifiedSince = if (full) null else snapshots[userName]?.watermark
+        return update(userName, full, exports.export(request(userName, modifiedSince)))
+    }
+
+    /**
+     * Syncs the collections of all [userNames] concurrently, see [sync]. All collections are
+     * exported at once using [CollectionExportScheduler.exportAll]; only the client's concurrent
+     * request limit, i.e. [org.audux.bgg.BggClientConfiguration.maxConcurrentRequests], caps how
+     * many of their requests are in-flight at a time.
+     */
+    suspend fun syncAll(
+        userNames: List<String>,
+        full: Boolean = false,
+    ): List<Response<CollectionSnapshot>> {
+        val requests = userNames.map { request(it, if (full) null else snapshots[it]?.watermark) }
+        return userNames.zip(exports.exportAll(requests)) { userName, response ->
+            update(userName, full, response)
+        }
+    }
+
+    /** Closes the [CollectionExportScheduler] if it was created for this sync. */
+    override fun close() {
+        if (ownsExports) exports.close()
+    }
+
+    /**
+     * Merges the items of [response] into the snapshot of [userName], or replaces it when [full] is
+     * set, returning the updated snapshot or the error of [response].
+     */
+    private fun update(
+        userName: String,
+        full: Boolean,
+        response: Response<Collection>,
+    ): Response<CollectionSnapshot> {
+        val items = response.data?.items
+        if (response.isError() || items == null) return Response(error = response.error)
+
+        val snapshot =
+            snapshots.compute(userName) { _, current ->
+                // A full sync replaces the snapshot, which drops the items that were removed.
+                if (full || current == null) snapshotOf(userName, items)
+                else current.merge(items)
+            }
+        return Response(data = snapshot)
+    }
+
+    private fun request(userName: String, modifiedSince: LocalDateTime?) =
+        client.collection(
+            userName,
+            subType = subType,
+            excludeSubType = excludeSubType,
+            ids = null,
+            version = version,
+            brief = false,
+            stats = stats,
+            own = null,
+            rated = null,
+            played = null,
+            comment = null,
+            trade = null,
+            want = null,
+            wishlist = null,
+            wishlistPriority = null,
+            preOrdered = null,
+            wantToPlay = null,
+            wantToBuy = null,
+            previouslyOwned = null,
+            hasParts = null,
+            wantParts = null,
+            minRating = null,
+            rating = null,
+            minBggRating = null,
+            bggRating = null,
+            minimumPlays = null,
+            maxPlays = null,
+            collectionId = null,
+            modifiedSince = modifiedSince,
+        )
+}
+
+/**
+ * Snapshot of the collection of [userName] kept by [CollectionSync].
+ *
+ * @property items The items in the collection, keyed by [CollectionItem.collectionId].
+ * @property watermark The most recent [org.audux.bgg.response.Status.lastModified] of the items,
+ *   the next sync requests the items that were modified since.
+ */
+@Serializable
+data class CollectionSnapshot(
+    val userName: String,
+    val items: Map<Int, CollectionItem>,
+    @Serializable(with = LocalDateTimeSerializer::class) val watermark: LocalDateTime?,
+) {
+    /** Returns a copy of this snapshot with the [changed] items added or replaced. */
+    internal fun merge(changed: List<CollectionItem>): CollectionSnapshot {
+        val changedWatermark = changed.watermark()
+        return CollectionSnapshot(
+            userName,
+            items = items + changed.associateBy { it.collectionId },
+            watermark =
+                if (watermark == null || changedWatermark?.isAfter(watermark) == true) {
+                    changedWatermark
+                } else {
+                    watermark
+                },
+        )
+    }
+}
+
+/** Returns a snapshot of the full collection of [userName] consisting of [items]. */
+private fun snapshotOf(userName: String, items: List<CollectionItem>) =
+    CollectionSnapshot(userName, items.associateBy { it.collectionId }, items.watermark())
+
+/**
+ * Returns the most recent modification of these items. The watermark is taken from BGG's own
+ * timestamps, rather than the local clock, so it isn't affected by clock differences or time zones.
+ */
+private fun List<CollectionItem>.watermark() = mapNotNull { it.status?.lastModified }.maxOrNull()
+
+/**
+ * Creates a [CollectionSync] keeping local snapshots of collections up-to-date through this
+ * client.
+ *
+ * @param exports Used to request the collections, by default a [CollectionExportScheduler] is
+ *   created that's closed along with the [CollectionSync].
+ *
+ * @see CollectionSync
+ */
+fun InstantiableClient.collectionSync(
+    subType: ThingType? = null,
+    excludeSubType: ThingType? = null,
+    stats: Boolean = false,
+    version: Boolean = false,
+    exports: CollectionExportScheduler? = null,
+) =
+    CollectionSync(
+        this,
+        subType = subType,
+        excludeSubType = excludeSubType,
+        stats = stats,
+        version = version,
+        exports = exports ?: collectionExports(),
+        ownsExports = exports == null,
+    )
@@ -1,12 +1,31 @@
 package org.audux.bgg.request
 
 import co.touchlab.kermit.Logger
-import java.util.concurrent.ConcurrentHashMap
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.async
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.buffer
+import kotlinx.coroutines.flow.channelFlow
+import kotlinx.coroutines.flow.emitAll
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.launch
+import org.audux.bgg.BggClientConfiguration
+import org.audux.bgg.BggRequestException
 import org.audux.bgg.InstantiableClient
+import org.audux.bgg.common.Constants.MAX_THING_IDS
+import org.audux.bgg.common.Constants.XML2_API_URL
 import org.audux.bgg.common.SitemapLocationType
+import org.audux.bgg.common.ThingType
 import org.audux.bgg.response.Response
 import org.audux.bgg.response.SitemapIndex
+import org.audux.bgg.response.SitemapLocation
 import org.audux.bgg.response.SitemapUrl
+import org.audux.bgg.response.Thing
+import org.audux.bgg.response.Things
 
 /**
  * Handles request diffusion/fanning out for the [sitemapIndex]. After making the initial request to
@@ -31,6 +50,7 @@ internal constructor(
      * @param limitToTypes The type of sitemaps to request e.g. if [SitemapLocationType.BOARD_GAMES]
      *   is set it will only request sitemaps that contain board games, like
      *   `https://boardgamegeek.com/sitemap_geekitems_boardgame_page_15`.
+     * @see diffuseAsFlow
      */
     fun diffuse(
         vararg limitToTypes: SitemapLocationType
@@ -39,30 +59,243 @@ internal constructor(
             // Run the initial sitemap index request.
             request().let { sitemapIndex ->
                 if (sitemapIndex.data == null) return@Request Response(error = sitemapIndex.error)
-                val allSitemaps = ConcurrentHashMap<SitemapLocationType, MutableList<SitemapUrl>>()
+                val allSitemaps = mutableMapOf<SitemapLocationType, MutableList<SitemapUrl>>()
+
+                requestSitemaps(sitemapIndex.data, limitToTypes).collect { (sitemap, response) ->
+                    val urls = response.data ?: return@collect
+                    // Add all URLs to the sitemaps hash map.
+                    allSitemaps.getOrPut(sitemap.type) { mutableListOf() }.addAll(urls)
+                }
+
+                // Finally build the response manually.
+                Response(data = allSitemaps.toMap())
+            }
+        }
+
+    /**
+     * Like [diffuse] but emits the URLs of every sitemap as soon as it has been retrieved, instead
+     * of collecting the URLs of all sitemaps in memory first. E.g. a full site discovery pass:
+     * ```
+     * BggClient.sitemapIndex().diffuseAsFlow().collect { (sitemap, response) ->
+     *     response.data?.let { database.insert(sitemap.type, it) }
+     * }
+     * ```
+     *
+     * At most [BggClientConfiguration.maxConcurrentRequests] sitemaps are requested at the same
+     * time, and requests wait for the collector to keep up. Sitemaps are therefore emitted in the
+     * order they complete. A sitemap that failed is emitted with the error in its response, the
+     * other sitemaps are still requested.
+     *
+     * @param limitToTypes The type of sitemaps to request, see [diffuse].
+     * @throws BggRequestException Thrown when the sitemap index request failed
+     */
+    fun diffuseAsFlow(vararg limitToTypes: SitemapLocationType): Flow<DiffusedSitemap> = flow {
+        val sitemapIndex = request()
+        val data =
+            sitemapIndex.data
+                ?: throw BggRequestException("Error diffusing: ${sitemapIndex.error}")
+        emitAll(requestSitemaps(data, limitToTypes))
+    }
+
+    /**
+     * Crawls all things listed in the sitemaps of the given types, e.g. to mirror the board game
+     * catalog:
+     * ```
+     * BggClient.sitemapIndex().crawlThings(SitemapLocationType.BOARD_GAMES, stats = true).collect {
+     *     database.insert(it)
+     * }
+     * ```
+     *
+     * The crawl runs as a pipeline: sitemaps are retrieved using [diffuseAsFlow], the ids are
+     * extracted from the URLs of each sitemap and batched into [things] requests of up to
+     * [MAX_THING_IDS] ids, of which at most [BggClientConfiguration.maxConcurrentRequests] are
+     * requested ahead of the one being collected. Every stage waits for the next one to keep up, so
+     * the crawl runs in constant memory at the pace of the client's rate limits. Things are emitted
+     * in the order of the batches.
+     *
+     * Sitemaps and batches that fail are logged and skipped.
+     *
+     * @param limitToTypes The type of sitemaps to crawl, [SitemapLocationType.BOARD_GAMES] when not
+     *   set. Only sitemaps listing things can be crawled, see [SitemapLocationType.THINGS].
+     * @param thingTypes Filters the results by the [ThingType] objects specified.
+     * @param stats Returns ranking and rating stats for the things.
+     * @param versions Returns version info for the things.
+     * @param videos Returns videos for the things.
+     * @param marketplace Returns marketplace data.
+     * @throws BggRequestException Thrown when the sitemap index request failed
+     * @throws IllegalArgumentException Thrown when any of [limitToTypes] doesn't list things
+     */
+    fun crawlThings(
+        vararg limitToTypes: SitemapLocationType,
+        thingTypes: Array<ThingType> = arrayOf(),
+        stats: Boolean = false,
+        versions: Boolean = false,
+        videos: Boolean = false,
+        marketplace: Boolean = false,
+    ): Flow<Thing> {
+        val nonThingTypes = limitToTypes.filterNot { it in SitemapLocationType.THINGS }
+        require(nonThingTypes.isEmpty()) { "Sitemaps of $nonThingTypes don't list things" }
+
+        return crawl(
+            limitToTypes.ifEmpty { arrayOf(SitemapLocationType.BOARD_GAMES) },
+            thingTypes,
+            stats,
+            versions,
+            videos,
+            marketplace,
+        )
+    }
+
+    /** Runs the [crawlThings] pipeline for the sitemaps of the given types. */
+    private fun crawl(
+        limitToTypes: Array<out SitemapLocationType>,
+        thingTypes: Array<ThingType>,
+        stats: Boolean,
+        versions: Boolean,
+        videos: Boolean,
+        marketplace: Boolean,
+    ): Flow<Thing> = flow {
+        val batches = diffuseAsFlow(*limitToTypes).thingIdBatches(MAX_THING_IDS)
+
+        // The ids are passed on as is, instead of boxing them for things(ids: Array<Int>).
+        suspend fun requestBatch(ids: IntArray) =
+            try {
+                client.getResponse<Things>(
+                    XML2_API_URL,
+                    thingsRequest(
+                        ids.joinToString(","),
+                        thingTypes,
+                        stats,
+                        versions,
+                        videos,
+                        marketplace,
+                        comments = false,
+                        ratingComments = false,
+                        page = 1,
+                        pageSize = null,
+                    ),
+                )
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                Response(error = e.message ?: e.toString())
+            }
+
+        coroutineScope {
+            val requestedBatches = Channel<Pair<IntArray, Deferred<Response<Things>>>>(bufferSize())
+            launch {
+                batches.collect { ids ->
+                    // Only start the request once it fits in the buffer, see paginateAsFlow.
+                    val deferred = async(start = CoroutineStart.LAZY) { requestBatch(ids) }
+                    requestedBatches.send(ids to deferred)
+                    deferred.start()
+                }
+                requestedBatches.close()
+            }
+
+            for ((ids, deferred) in requestedBatches) {
+                val response = deferred.await()
+                if (response.isError() || response.data == null) {
+                    // Ignore errors but do log them.
+                    Logger.w("Error crawling things ${ids.joinToString(",")}: ${response.error}")
+                } else {
+                    response.data.things.forEach { emit(it) }
+                }
+            }
+        }
+    }
+
+    /** Number of batches that are requested ahead of the one being collected. */
+    private fun bufferSize() = (client.configuration.maxConcurrentRequests - 1).coerceAtLeast(0)
+
+    /** Requests all sitemaps in the [sitemapIndex] of the given types concurrently. */
+    private fun requestSitemaps(
+        sitemapIndex: SitemapIndex,
+        limitToTypes: Array<out SitemapLocationType>,
+    ) =
+        channelFlow {
                 // Filter sitemaps by given types.
                 val sitemaps =
-                    sitemapIndex.data.sitemaps.filter {
+                    sitemapIndex.sitemaps.filter {
                         limitToTypes.isEmpty() || limitToTypes.contains(it.type)
                     }
 
                 // Start requesting all the sitemap concurrently.
-                concurrentRequests(sitemaps.indices) { index ->
+                client.concurrentRequests(sitemaps.indices) { index ->
                     val sitemap = sitemaps[index]
-                    val response = client.sitemap(sitemap.location).call()
-
-                    if (response.data == null || response.isError()) {
-                        Logger.w("Error retrieving ${sitemap.location}")
-                    } else {
-                        // Add all URLs to the sitemaps hash map.
-                        allSitemaps.compute(sitemap.type) { _, value ->
-                            (value ?: mutableListOf()).apply { addAll(response.data.sitemaps) }
-                        }
-                    }
+                    send(DiffusedSitemap(sitemap, requestSitemap(sitemap)))
                 }
+            }
+            // Only hand over a sitemap once the previous one has been collected.
+            .buffer(Channel.RENDEZVOUS)
 
-                // Finally build the response manually.
-                Response(data = allSitemaps.toMap())
+    private suspend fun requestSitemap(sitemap: SitemapLocation): Response<List<SitemapUrl>> {
+        val response =
+            try {
+                client.sitemap(sitemap.location).call()
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                Logger.w("Error retrieving ${sitemap.location}", e)
+                return Response(error = e.message ?: e.toString())
             }
+
+        if (response.data == null || response.isError()) {
+            Logger.w("Error retrieving ${sitemap.location}")
+            return Response(error = response.error ?: "No sitemap returned")
+        }
+        return Response(data = response.data.sitemaps)
+    }
+}
+
+/**
+ * A single sitemap requested by [DiffusingSitemap.diffuseAsFlow], the [response] either contains
+ * all URLs in the [sitemap] or the error of retrieving it.
+ */
+data class DiffusedSitemap(val sitemap: SitemapLocation, val response: Response<List<SitemapUrl>>)
+
+/**
+ * Extracts the thing ids from the URLs of every retrieved sitemap and groups them in batches of
+ * [batchSize] ids. Batches span sitemaps, so only the last batch can contain fewer ids.
+ */
+internal fun Flow<DiffusedSitemap>.thingIdBatches(batchSize: Int): Flow<IntArray> = flow {
+    var batch = IntArray(batchSize)
+    var size = 0
+    collect { (_, response) ->
+        // Failed sitemaps have been logged already.
+        for (url in response.data.orEmpty()) {
+            val id = thingId(url.location)
+            if (id < 0) continue
+
+            batch[size++] = id
+            if (size == batchSize) {
+                emit(batch)
+                batch = IntArray(batchSize)
+                size = 0
+            }
+        }
+    }
+    if (size > 0) emit(batch.copyOf(size))
+}
+
+/**
+ * Returns the id in a sitemap URL like `https://boardgamegeek.com/boardgame/1/die-macher`, being
+ * the first path segment that only consists of digits, or `-1` when the URL doesn't contain an id.
+ * The URL is scanned in place, without splitting it up or using a regular expression.
+ */
+internal fun thingId(url: String): Int {
+    val host = url.indexOf("://").let { if (it < 0) 0 else it + 3 }
+    var segmentStart = url.indexOf('/', host)
+    while (segmentStart >= 0) {
+        var id = 0
+        var index = segmentStart + 1
+        // Ids have at most 9 digits, longer segments don't fit an Int and are skipped.
+        while (index < url.length && index - segmentStart <= 9 && url[index].isDigit()) {
+            id = id * 10 + (url[index] - '0')
+            index++
         }
+        if (index > segmentStart + 1 && (index == url.length || url[index] == '/')) return id
+        segmentStart = url.indexOf('/', index)
+    }
+    return -1
 }
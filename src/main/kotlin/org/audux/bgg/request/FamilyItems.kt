@@ -13,29 +13,24 @@
  */
 package org.audux.bgg.request
 
-import io.ktor.client.request.get
-import io.ktor.client.statement.bodyAsText
 import io.ktor.http.appendPathSegments
 import org.audux.bgg.InstantiableClient
 import org.audux.bgg.common.Constants
 import org.audux.bgg.common.FamilyType
 import org.audux.bgg.response.Family
-import org.audux.bgg.response.Response
 
 /** @see org.audux.bgg.BggClient.familyItems */
 fun InstantiableClient.familyItems(ids: Array<Int>, types: Array<FamilyType> = arrayOf()) =
     request {
-        client()
-            .get(Constants.XML2_API_URL) {
-                url {
-                    appendPathSegments(Constants.PATH_FAMILY)
-                    parameters.apply {
-                        append(Constants.PARAM_ID, ids.joinToString(","))
-                        if (types.isNotEmpty()) {
-                            append(Constants.PARAM_TYPE, types.joinToString(",") { it.param })
-                        }
+        getResponse<Family>(Constants.XML2_API_URL) {
+            url {
+                appendPathSegments(Constants.PATH_FAMILY)
+                parameters.apply {
+                    append(Constants.PARAM_ID, ids.joinToString(","))
+                    if (types.isNotEmpty()) {
+                        append(Constants.PARAM_TYPE, types.joinToString(",") { it.param })
                     }
                 }
             }
-            .let { Response.from<Family>(it.bodyAsText(), mapper) }
+        }
     }
@@ -13,24 +13,19 @@
  */
 package org.audux.bgg.request
 
-import io.ktor.client.request.get
-import io.ktor.client.statement.bodyAsText
 import io.ktor.http.appendPathSegments
 import org.audux.bgg.InstantiableClient
 import org.audux.bgg.common.Constants
 import org.audux.bgg.response.Forum
-import org.audux.bgg.response.Response
 
 /** @see org.audux.bgg.BggClient.forum */
 fun InstantiableClient.forum(id: Int, page: Int?) =
     PaginatedForum(this, page ?: 1) {
-        client()
-            .get(Constants.XML2_API_URL) {
-                url {
-                    appendPathSegments(Constants.PATH_FORUM)
-                    parameters.append(Constants.PARAM_ID, id.toString())
-                    page?.let { parameters.append(Constants.PARAM_PAGE, page.toString()) }
-                }
+        getResponse<Forum>(Constants.XML2_API_URL) {
+            url {
+                appendPathSegments(Constants.PATH_FORUM)
+                parameters.append(Constants.PARAM_ID, id.toString())
+                page?.let { parameters.append(Constants.PARAM_PAGE, page.toString()) }
             }
-            .let { Response.from<Forum>(it.bodyAsText(), mapper) }
+        }
     }
@@ -13,26 +13,21 @@
  */
 package org.audux.bgg.request
 
-import io.ktor.client.request.get
-import io.ktor.client.statement.bodyAsText
 import io.ktor.http.appendPathSegments
 import org.audux.bgg.InstantiableClient
 import org.audux.bgg.common.Constants
 import org.audux.bgg.common.ForumListType
 import org.audux.bgg.response.ForumList
-import org.audux.bgg.response.Response
 
 /** @see org.audux.bgg.BggClient.forumList */
 fun InstantiableClient.forumList(id: Int, type: ForumListType) = request {
-    client()
-        .get(Constants.XML2_API_URL) {
-            url {
-                appendPathSegments(Constants.PATH_FORUM_LIST)
-                parameters.apply {
-                    append(Constants.PARAM_ID, id.toString())
-                    append(Constants.PARAM_TYPE, type.param)
-                }
+    getResponse<ForumList>(Constants.XML2_API_URL) {
+        url {
+            appendPathSegments(Constants.PATH_FORUM_LIST)
+            parameters.apply {
+                append(Constants.PARAM_ID, id.toString())
+                append(Constants.PARAM_TYPE, type.param)
             }
         }
-        .let { Response.from<ForumList>(it.bodyAsText(), mapper) }
+    }
 }
@@ -13,8 +13,6 @@
  */
 package org.audux.bgg.request
 
-import io.ktor.client.request.get
-import io.ktor.client.statement.bodyAsText
 import io.ktor.http.appendPathSegments
 import org.audux.bgg.InstantiableClient
 import org.audux.bgg.common.Constants.PARAM_COMMENTS
@@ -22,16 +20,13 @@ import org.audux.bgg.common.Constants.PATH_GEEK_LIST
 import org.audux.bgg.common.Constants.XML1_API_URL
 import org.audux.bgg.common.Inclusion
 import org.audux.bgg.response.GeekList
-import org.audux.bgg.response.Response
 
 /** @see org.audux.bgg.BggClient.geekList */
 fun InstantiableClient.geekList(id: Int, comments: Inclusion?) = request {
-    client()
-        .get(XML1_API_URL) {
-            url {
-                appendPathSegments(PATH_GEEK_LIST, id.toString())
-                comments?.let { parameters.append(PARAM_COMMENTS, it.toParam()) }
-            }
+    getResponse<GeekList>(XML1_API_URL) {
+        url {
+            appendPathSegments(PATH_GEEK_LIST, id.toString())
+            comments?.let { parameters.append(PARAM_COMMENTS, it.toParam()) }
         }
-        .let { Response.from<GeekList>(it.bodyAsText(), mapper) }
+    }
 }
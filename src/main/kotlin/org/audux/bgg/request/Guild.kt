@@ -13,8 +13,6 @@
  */
 package org.audux.bgg.request
 
-import io.ktor.client.request.get
-import io.ktor.client.statement.bodyAsText
 import io.ktor.http.appendPathSegments
 import org.audux.bgg.InstantiableClient
 import org.audux.bgg.common.Constants.PARAM_ID
@@ -25,20 +23,17 @@ import org.audux.bgg.common.Constants.PATH_GUILDS
 import org.audux.bgg.common.Constants.XML2_API_URL
 import org.audux.bgg.common.Inclusion
 import org.audux.bgg.response.Guild
-import org.audux.bgg.response.Response
 
 /** @see org.audux.bgg.BggClient.guild */
 fun InstantiableClient.guild(id: Int, members: Inclusion?, sort: String?, page: Int?) =
     PaginatedGuilds(this, members, sort) {
-        client()
-            .get(XML2_API_URL) {
-                url {
-                    appendPathSegments(PATH_GUILDS)
-                    parameters.append(PARAM_ID, id.toString())
-                    members?.let { parameters.append(PARAM_MEMBERS, it.toParam()) }
-                    sort?.let { parameters.append(PARAM_SORT, it) }
-                    page?.let { parameters.append(PARAM_PAGE, it.toString()) }
-                }
+        getResponse<Guild>(XML2_API_URL) {
+            url {
+                appendPathSegments(PATH_GUILDS)
+                parameters.append(PARAM_ID, id.toString())
+                members?.let { parameters.append(PARAM_MEMBERS, it.toParam()) }
+                sort?.let { parameters.append(PARAM_SORT, it) }
+                page?.let { parameters.append(PARAM_PAGE, it.toString()) }
             }
-            .let { Response.from<Guild>(it.bodyAsText(), mapper) }
+        }
     }
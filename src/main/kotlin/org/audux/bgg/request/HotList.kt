@@ -13,8 +13,6 @@
  */
 package org.audux.bgg.request
 
-import io.ktor.client.request.get
-import io.ktor.client.statement.bodyAsText
 import io.ktor.http.appendPathSegments
 import org.audux.bgg.InstantiableClient
 import org.audux.bgg.common.Constants.PARAM_TYPE
@@ -22,16 +20,13 @@ import org.audux.bgg.common.Constants.PATH_HOT
 import org.audux.bgg.common.Constants.XML2_API_URL
 import org.audux.bgg.common.HotListType
 import org.audux.bgg.response.HotList
-import org.audux.bgg.response.Response
 
 /** @see org.audux.bgg.BggClient.hotList */
 fun InstantiableClient.hotList(type: HotListType?) = request {
-    client()
-        .get(XML2_API_URL) {
-            url {
-                appendPathSegments(PATH_HOT)
-                type?.let { parameters.append(PARAM_TYPE, it.param) }
-            }
+    getResponse<HotList>(XML2_API_URL) {
+        url {
+            appendPathSegments(PATH_HOT)
+            type?.let { parameters.append(PARAM_TYPE, it.param) }
         }
-        .let { Response.from<HotList>(it.bodyAsText(), mapper) }
+    }
 }
@@ -15,16 +15,22 @@ package org.audux.bgg.request
 
 import co.touchlab.kermit.Logger
 import java.time.LocalDate
-import java.util.concurrent.ConcurrentHashMap
-import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReferenceArray
 import kotlin.jvm.Throws
 import kotlin.math.ceil
 import kotlin.math.max
 import kotlin.math.min
-import kotlinx.coroutines.Job
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.async
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.flow
 import kotlinx.coroutines.launch
-import kotlinx.coroutines.runBlocking
 import org.audux.bgg.BggClient
+import org.audux.bgg.BggClientConfiguration
 import org.audux.bgg.BggRequestException
 import org.audux.bgg.InstantiableClient
 import org.audux.bgg.common.Domain
@@ -32,6 +38,7 @@ import org.audux.bgg.common.Inclusion
 import org.audux.bgg.common.PlayThingType
 import org.audux.bgg.common.SubType
 import org.audux.bgg.response.Buddy
+import org.audux.bgg.response.Comment
 import org.audux.bgg.response.Forum
 import org.audux.bgg.response.Guild
 import org.audux.bgg.response.GuildMember
@@ -55,8 +62,21 @@ import org.audux.bgg.response.User
  *   from 10 onwards.
  */
 abstract class PaginatedRequest<T>
-internal constructor(client: InstantiableClient, request: suspend () -> Response<T>) :
-    Request<T>(client, request) {
+internal constructor(
+    private val client: InstantiableClient,
+    private val request: suspend () -> Response<T>,
+) : Request<T>(client, request) {
+    /** Name of what's being paginated used when logging, e.g. `plays`. */
+    internal abstract val paginatedType: String
+
+    /** Throws a [BggRequestException] when the request can not be paginated. */
+    internal open fun checkPaginatable() {}
+
+    /** Returns the pages to request after the [initial] response, up to [toPage]. */
+    internal abstract fun pages(initial: T, toPage: Int): IntRange
+
+    /** Requests a single [page] following the [initial] response. */
+    internal abstract suspend fun requestPage(initial: T, page: Int): Response<T>
 
     /**
      * Paginate all pages or only up to [toPage], if set. If [toPage] is higher than the actual
@@ -82,6 +102,66 @@ internal constructor(client: InstantiableClient, request: suspend () -> Response
      * @suppress
      */
     @Throws(BggRequestException::class) fun paginate() = paginate(Int.MAX_VALUE)
+
+    /**
+     * Paginate all pages or only up to [toPage], like [paginate], but emits [T] of every page as
+     * soon as it's received instead of merging all pages into a single [T]. The initial request is
+     * emitted first and the following pages are emitted in page order. Pages are requested ahead
+     * of the collector, bounded by [org.audux.bgg.BggClientConfiguration.maxConcurrentRequests], so
+     * a slow collector suspends pagination rather than buffering the full history, e.g.:
+     * ```
+     * BggClient.plays("Novaeux").paginateAsFlow().collect { database.insert(it.plays) }
+     * ```
+     *
+     * Pages that fail are logged and skipped.
+     *
+     * @param toPage Paginate from the initial request to the `toPage`
+     * @throws BggRequestException Thrown when the initial request failed
+     */
+    fun paginateAsFlow(toPage: Int): Flow<T> = flow {
+        checkPaginatable()
+
+        val initial = request()
+        val initialData =
+            initial.data ?: throw BggRequestException("Error paginating: ${initial.error}")
+        emit(initialData)
+
+        coroutineScope {
+            val requestedPages = Channel<Pair<Int, Deferred<Response<T>>>>(pageBufferSize())
+            launch {
+                pages(initialData, toPage).forEach { page ->
+                    // Only start the request once it fits in the buffer, so at most
+                    // maxConcurrentRequests pages are in-flight including the one being awaited.
+                    val deferred =
+                        async(start = CoroutineStart.LAZY) { requestPage(initialData, page) }
+                    requestedPages.send(page to deferred)
+                    deferred.start()
+                }
+                requestedPages.close()
+            }
+
+            for ((page, deferred) in requestedPages) {
+                val response = deferred.await()
+                if (response.isError() || response.data == null) {
+                    // Ignore errors but do log them.
+                    Logger.w("Error paginating $paginatedType page $page")
+                } else {
+                    emit(response.data)
+                }
+            }
+        }
+    }
+
+    /**
+     * No-arg implementation of [paginateAsFlow].
+     *
+     * @see paginateAsFlow
+     * @suppress
+     */
+    fun paginateAsFlow() = paginateAsFlow(Int.MAX_VALUE)
+
+    /** Number of pages that are requested ahead of the one being collected. */
+    private fun pageBufferSize() = (client.configuration.maxConcurrentRequests - 1).coerceAtLeast(0)
 }
 
 /** [PaginatedRequest] implementation for [forum]. */
@@ -99,26 +179,35 @@ internal constructor(
         const val PAGE_SIZE = 50
     }
 
+    override val paginatedType = "forum"
+
+    override fun pages(initial: Forum, toPage: Int) =
+        (currentPage + 1)..min(toPage, ceil(initial.numThreads.toDouble() / PAGE_SIZE).toInt())
+
+    override suspend fun requestPage(initial: Forum, page: Int) =
+        client.forum(id = initial.id, page = page).call()
+
     override fun paginate(toPage: Int) =
         Request(client) {
             // Run the initial request
             request().let { forum ->
                 if (forum.data == null) return@Request forum
+                val pageRange = pages(forum.data, toPage)
                 val allThreads =
-                    CopyOnWriteArrayList<ThreadSummary>().apply { addAllAbsent(forum.data.threads) }
-                val lastPage =
-                    min(toPage, ceil(forum.data.numThreads.toDouble() / PAGE_SIZE).toInt())
+                    PageCollector(pageRange, ThreadSummary::id).apply {
+                        addInitial(forum.data.threads)
+                    }
 
                 // Start pagination concurrently.
-                concurrentRequests((currentPage + 1)..lastPage) { page ->
-                    val response = client.forum(id = forum.data.id, page = page).call()
+                client.concurrentRequests(pageRange) { page ->
+                    val response = requestPage(forum.data, page)
 
                     if (response.isError()) {
                         // Ignore errors but do log them.
                         Logger.w("Error paginating forum page $page")
                     } else {
                         // Collect all Threads
-                        response.data?.let { allThreads.addAllAbsent(it.threads) }
+                        response.data?.let { allThreads.add(page, it.threads) }
                     }
                 }
 
@@ -144,44 +233,51 @@ internal constructor(
         const val PAGE_SIZE = 25
     }
 
+    override val paginatedType = "guilds"
+
+    override fun checkPaginatable() {
+        if (members != Inclusion.INCLUDE) {
+            throw BggRequestException("Nothing to paginate without the members parameter set")
+        }
+    }
+
+    override fun pages(initial: Guild, toPage: Int): IntRange {
+        val guildMembers = initial.members ?: return IntRange.EMPTY
+
+        // Int of pages to paginate: (CurrentPage + 1)..lastPage.
+        val lastPage = min(ceil(guildMembers.count.toDouble() / PAGE_SIZE).toInt(), toPage)
+        return (guildMembers.page + 1)..lastPage
+    }
+
+    override suspend fun requestPage(initial: Guild, page: Int) =
+        client.guild(id = initial.id, page = page, members = members, sort = sort).call()
+
     override fun paginate(toPage: Int) =
         Request(client) {
-            if (members != Inclusion.INCLUDE) {
-                throw BggRequestException("Nothing to paginate without the members parameter set")
-            }
+            checkPaginatable()
 
             // Run the initial request
             request().let { guild ->
                 if (guild.data == null) return@Request guild
-                val allGuildMembers = CopyOnWriteArrayList<GuildMember>()
+                val pageRange = pages(guild.data, toPage)
+                val allGuildMembers = PageCollector(pageRange, GuildMember::name)
                 var lastPage = 1
 
                 // Only if there are actually members returned does it make sense to paginate.
                 guild.data.members?.let { guildMembers ->
-                    allGuildMembers.addAllAbsent(guildMembers.members)
-
-                    // Int of pages to paginate: (CurrentPage + 1)..lastPage.
-                    val currentPage = guildMembers.page
-                    lastPage = min(ceil(guildMembers.count.toDouble() / PAGE_SIZE).toInt(), toPage)
+                    allGuildMembers.addInitial(guildMembers.members)
+                    lastPage = pageRange.last
 
                     // Start pagination concurrently.
-                    concurrentRequests((currentPage + 1)..lastPage) { page ->
-                        val response =
-                            client
-                                .guild(
-                                    id = guild.data.id,
-                                    page = page,
-                                    members = members,
-                                    sort = sort,
-                                )
-                                .call()
+                    client.concurrentRequests(pageRange) { page ->
+                        val response = requestPage(guild.data, page)
 
                         if (response.isError()) {
                             // Ignore errors but do log them.
                             Logger.w("Error paginating guilds page $page")
                         } else {
                             // Collect all GuildMembers
-                            response.data?.let { allGuildMembers.addAllAbsent(it.members?.members) }
+                            response.data?.members?.let { allGuildMembers.add(page, it.members) }
                         }
                     }
                 }
@@ -191,7 +287,10 @@ internal constructor(
                     data =
                         guild.data.copy(
                             members =
-                                guild.data.members?.copy(members = allGuildMembers, page = lastPage)
+                                guild.data.members?.copy(
+                                    members = allGuildMembers.toList(),
+                                    page = lastPage,
+                                )
                         )
                 )
             }
@@ -215,37 +314,44 @@ internal constructor(
         const val PAGE_SIZE = 100
     }
 
+    override val paginatedType = "plays"
+
+    // Int of pages to paginate: (CurrentPage + 1)..lastPage.
+    override fun pages(initial: Plays, toPage: Int) =
+        (initial.page + 1)..min(ceil(initial.total.toDouble() / PAGE_SIZE).toInt(), toPage)
+
+    override suspend fun requestPage(initial: Plays, page: Int) =
+        client
+            .plays(
+                username = initial.username,
+                id = id,
+                page = page,
+                type = type,
+                minDate = minDate,
+                maxDate = maxDate,
+                subType = subType,
+            )
+            .call()
+
     override fun paginate(toPage: Int) =
         Request(client) {
             // Run the initial request
             request().let { plays ->
                 if (plays.data == null) return@Request plays
-                val allPlays = CopyOnWriteArrayList<Play>().apply { addAllAbsent(plays.data.plays) }
-
-                // Int of pages to paginate: (CurrentPage + 1)..lastPage.
-                val currentPage = plays.data.page
-                val lastPage = min(ceil(plays.data.total.toDouble() / PAGE_SIZE).toInt(), toPage)
+                val pageRange = pages(plays.data, toPage)
+                val lastPage = pageRange.last
+                val allPlays =
+                    PageCollector(pageRange, Play::id).apply { addInitial(plays.data.plays) }
 
                 // Start pagination concurrently.
-                concurrentRequests((currentPage + 1)..lastPage) { page ->
-                    val response =
-                        client
-                            .plays(
-                                username = plays.data.username,
-                                id = id,
-                                page = page,
-                                type = type,
-                                minDate = minDate,
-                                maxDate = maxDate,
-                                subType = subType,
-                            )
-                            .call()
+                client.concurrentRequests(pageRange) { page ->
+                    val response = requestPage(plays.data, page)
                     if (response.isError()) {
                         // Ignore errors but do log them.
                         Logger.w("Error paginating plays page $page")
                     } else {
                         // Collect all Plays
-                        response.data?.let { allPlays.addAllAbsent(it.plays) }
+                        response.data?.let { allPlays.add(page, it.plays) }
                     }
                 }
 
@@ -264,71 +370,101 @@ internal constructor(
     private val pageSize: Int,
     private val comments: Boolean,
     private val ratingComments: Boolean,
+    private val items: () -> Flow<Thing>,
     private val request: suspend () -> Response<Things>,
 ) : PaginatedRequest<Things>(client, request) {
+    /**
+     * Executes the initial (non-paginated) request and emits each [Thing] as soon as it's parsed
+     * from the response body, instead of materializing the full [Things] response first.
+     *
+     * @see StreamingRequest.stream
+     */
+    fun stream() = items()
+
+    override val paginatedType = "things"
+
+    override fun checkPaginatable() {
+        if (!comments && !ratingComments) {
+            throw BggRequestException(
+                "Nothing to paginate without either the comments or ratingComments parameter set."
+            )
+        }
+    }
+
+    override fun pages(initial: Things, toPage: Int): IntRange {
+        // Int of pages to paginate: (CurrentPage + 1)..lastPage.
+        val maxComments = initial.things.maxOfOrNull { it.comments?.totalItems ?: 0 } ?: 0
+        return (currentPage + 1)..min(toPage, ceil(maxComments.toDouble() / pageSize).toInt())
+    }
+
+    override suspend fun requestPage(initial: Things, page: Int): Response<Things> {
+        // Only request the things that still have comments left on this page.
+        val offset = (page - 1) * pageSize
+        val remainingIds =
+            initial.things.filter { (it.comments?.totalItems ?: 0) > offset }.map { it.id }.toSet()
+
+        return client
+            .things(
+                ids = ids.filter { it in remainingIds }.toTypedArray(),
+                types = arrayOf(),
+                stats = false,
+                versions = false,
+                videos = false,
+                marketplace = false,
+                comments = comments,
+                ratingComments = ratingComments,
+                page = page,
+                pageSize = pageSize,
+            )
+            .call()
+    }
+
     override fun paginate(toPage: Int) =
         Request(client) {
-            if (!comments && !ratingComments) {
-                throw BggRequestException(
-                    "Nothing to paginate without either the comments or ratingComments parameter set."
-                )
-            }
+            checkPaginatable()
 
             // Run the initial request
             request().let { things ->
                 if (things.data == null) return@Request things
-                // Create a Concurrent Hashmap to collect Things and update their comments.
-                val thingList =
-                    ConcurrentHashMap<Int, Thing>().apply {
-                        putAll(mapOf(*things.data.things.map { Pair(it.id, it) }.toTypedArray()))
+                val pageRange = pages(things.data, toPage)
+                if (pageRange.isEmpty()) return@Request things
+
+                // Collect the comments of every page per Thing, merged once all pages are in.
+                val allComments =
+                    things.data.things.associate { thing ->
+                        thing.id to
+                            PageCollector(pageRange, Comment::username).apply {
+                                thing.comments?.let { addInitial(it.comments) }
+                            }
                     }
 
-                // Int of pages to paginate: (CurrentPage + 1)..lastPage.
-                val maxComments =
-                    things.data.things.maxOfOrNull { it.comments?.totalItems ?: 0 } ?: 0
-                val lastPage = min(toPage, ceil(maxComments.toDouble() / pageSize).toInt())
-
                 // Start pagination concurrently.
-                concurrentRequests((currentPage + 1)..lastPage) { page ->
-                    val response =
-                        BggClient.things(
-                                ids = ids,
-                                page = page,
-                                pageSize = pageSize,
-                                comments = comments,
-                                ratingComments = ratingComments,
-                            )
-                            .call()
+                client.concurrentRequests(pageRange) { page ->
+                    val response = requestPage(things.data, page)
 
                     if (response.isError()) {
                         // Ignore errors but do log them.
                         Logger.w("Error paginating things page $page")
                     } else {
                         // Collect all Things' comments.
-                        response.data?.let {
-                            it.things.forEach { newThing ->
-                                val existingThing = thingList.getValue(newThing.id)
-                                if (newThing.comments == null) return@forEach
-                                if (existingThing.comments == null) return@forEach
-
-                                // Update the Thing by adding comments to the existing Thing.
-                                thingList[newThing.id] =
-                                    existingThing.copy(
-                                        comments =
-                                            existingThing.comments.copy(
-                                                page = lastPage,
-                                                comments =
-                                                    existingThing.comments.comments +
-                                                        newThing.comments.comments,
-                                            )
-                                    )
-                            }
+                        response.data?.things?.forEach { newThing ->
+                            val newComments = newThing.comments ?: return@forEach
+                            allComments[newThing.id]?.add(page, newComments.comments)
                         }
                     }
                 }
 
-                // Finally copy all the collected Things into the initial Things object.
-                things.copy(data = things.data.copy(things = thingList.values.toList()))
+                // Finally copy all the collected comments into the initial Things object.
+                val allThings =
+                    things.data.things.map { thing ->
+                        val thingComments = thing.comments ?: return@map thing
+                        val collected = allComments.getValue(thing.id).toList()
+                        thing.copy(
+                            comments =
+                                thingComments.copy(page = pageRange.last, comments = collected)
+                        )
+                    }
+                things.copy(data = things.data.copy(things = allThings))
             }
         }
 }
@@ -342,8 +478,6 @@ internal constructor(
     private val client: InstantiableClient,
     private val buddies: Inclusion?,
     private val guilds: Inclusion?,
-    private val top: Inclusion?,
-    private val hot: Inclusion?,
     private val domain: Domain?,
     private val request: suspend () -> Response<User>,
 ) : PaginatedRequest<User>(client, request) {
@@ -356,47 +490,65 @@ internal constructor(
         const val PAGE_SIZE = 1_000
     }
 
+    override val paginatedType = "user"
+
+    override fun checkPaginatable() {
+        if (buddies != Inclusion.INCLUDE && guilds != Inclusion.INCLUDE) {
+            throw BggRequestException(
+                "Nothing to paginate without either the buddies or guilds parameter set."
+            )
+        }
+    }
+
+    override fun pages(initial: User, toPage: Int): IntRange {
+        if (initial.buddies == null && initial.guilds == null) return IntRange.EMPTY
+
+        // Int of pages to paginate.
+        val currentPage = initial.guilds?.page ?: initial.buddies?.page ?: 1
+
+        // Calculate the last page needed to request.
+        val maxPage = max(initial.guilds?.total ?: 1, initial.buddies?.total ?: 1)
+        return (currentPage + 1)..min(ceil(maxPage.toDouble() / PAGE_SIZE).toInt(), toPage)
+    }
+
+    override suspend fun requestPage(initial: User, page: Int): Response<User> {
+        // Only request buddies and/or guilds when there are some left on this page. The top and hot
+        // lists aren't paginated, they're kept from the initial response.
+        val offset = (page - 1) * PAGE_SIZE
+        return client
+            .user(
+                name = initial.name,
+                guilds = guilds.takeIf { (initial.guilds?.total ?: 0) > offset },
+                buddies = buddies.takeIf { (initial.buddies?.total ?: 0) > offset },
+                top = null,
+                hot = null,
+                page = page,
+                domain = domain,
+            )
+            .call()
+    }
+
     override fun paginate(toPage: Int) =
         Request(client) {
-            if (buddies != Inclusion.INCLUDE && guilds != Inclusion.INCLUDE) {
-                throw BggRequestException(
-                    "Nothing to paginate without either the buddies or guilds parameter set."
-                )
-            }
+            checkPaginatable()
             request().let { user ->
                 if (user.data == null) return@Request user
                 if (user.data.buddies == null && user.data.guilds == null) return@Request user
 
+                val pageRange = pages(user.data, toPage)
+                val lastPage = pageRange.last
                 val allGuilds =
-                    CopyOnWriteArrayList<GuildReference>().apply {
-                        user.data.guilds?.let { addAllAbsent(it.guilds) }
+                    PageCollector(pageRange, GuildReference::id).apply {
+                        user.data.guilds?.let { addInitial(it.guilds) }
                     }
                 val allBuddies =
-                    CopyOnWriteArrayList<Buddy>().apply {
-                        user.data.buddies?.let { addAllAbsent(it.buddies) }
+                    PageCollector(pageRange, Buddy::id).apply {
+                        user.data.buddies?.let { addInitial(it.buddies) }
                     }
 
-                // Int of pages to paginate.
-                val currentPage = user.data.guilds?.page ?: user.data.buddies?.page ?: 1
-
-                // Calculate the last page needed to request.
-                val maxPage = max(user.data.guilds?.total ?: 1, user.data.buddies?.total ?: 1)
-                val lastPage = min(ceil(maxPage.toDouble() / PAGE_SIZE).toInt(), toPage)
-
                 // Retrieve all pages
-                concurrentRequests((currentPage + 1)..lastPage) { page ->
-                    val response =
-                        client
-                            .user(
-                                name = user.data.name,
-                                guilds = guilds,
-                                buddies = buddies,
-                                top = top,
-                                hot = hot,
-                                page = page,
-                                domain = domain,
-                            )
-                            .call()
+                client.concurrentRequests(pageRange) { page ->
+                    val response = requestPage(user.data, page)
 
                     if (response.isError()) {
                         // Ignore errors but do log them.
@@ -404,8 +556,8 @@ internal constructor(
                     } else {
                         // Collect all user's guilds and buddies.
                         response.data?.let { paginatedUser ->
-                            paginatedUser.guilds?.let { allGuilds.addAllAbsent(it.guilds) }
-                            paginatedUser.buddies?.let { allBuddies.addAllAbsent(it.buddies) }
+                            paginatedUser.guilds?.let { allGuilds.add(page, it.guilds) }
+                            paginatedUser.buddies?.let { allBuddies.add(page, it.buddies) }
                         }
                     }
                 }
@@ -428,18 +580,59 @@ internal constructor(
 }
 
 /**
- * Runs `pages.first`..`pages.last` pagination requests, where the actual request happens inside
- * [request].
+ * Runs the pagination [request]s for `pages.first`..`pages.last` with at most
+ * [BggClientConfiguration.maxConcurrentRequests] pages in-flight. Pages are started in order, as a
+ * sliding window: the next page is requested as soon as any in-flight request completes.
+ *
+ * Suspends (without blocking the calling thread) until all pages have been requested, cancelling
+ * the calling coroutine cancels all in-flight requests.
  */
-internal suspend inline fun <T> concurrentRequests(
+internal suspend fun InstantiableClient.concurrentRequests(
     pages: IntRange,
-    crossinline request: suspend (page: Int) -> T,
-) {
-    val jobs = CopyOnWriteArrayList<Job>()
-    runBlocking {
-        pages.forEach { jobs.add(launch { request(it) }) }
-
-        // Wait for all requests to complete.
-        jobs.forEach { it.join() }
+    request: suspend (page: Int) -> Unit,
+) = coroutineScope {
+    if (pages.isEmpty()) return@coroutineScope
+
+    val nextPage = AtomicInteger(pages.first)
+    val workers = min(configuration.maxConcurrentRequests, pages.last - pages.first + 1)
+
+    repeat(workers) {
+        launch {
+            while (true) {
+                val page = nextPage.getAndIncrement()
+                if (page > pages.last) break
+                request(page)
+            }
+        }
+    }
+}
+
+/**
+ * Collects the items of paginated responses, where every page is stored in its own slot so pages
+ * can be added concurrently without locking or copying. [toList] merges all pages in page order in
+ * linear time, dropping items of which the [key] was already seen on an earlier page. The result
+ * is the same regardless of the order in which pages were added.
+ *
+ * @param pages The pages paginated after the initial response.
+ * @param key Returns a stable key of an item e.g. [Play.id].
+ */
+internal class PageCollector<I, K>(private val pages: IntRange, private val key: (I) -> K) {
+    private val collectedPages =
+        AtomicReferenceArray<List<I>>(1 + (pages.last - pages.first + 1).coerceAtLeast(0))
+
+    /** Sets the items of the initial response, i.e. the page before [pages]. */
+    fun addInitial(items: List<I>) = collectedPages.set(0, items)
+
+    /** Sets the items of the given [page]. */
+    fun add(page: Int, items: List<I>) = collectedPages.set(page - pages.first + 1, items)
+
+    /** Returns all unique items in page order. */
+    fun toList(): List<I> {
+        val seenKeys = HashSet<K>()
+        return buildList {
+            for (index in 0 until collectedPages.length()) {
+                collectedPages[index]?.forEach { if (seenKeys.add(key(it))) add(it) }
+            }
+        }
     }
 }
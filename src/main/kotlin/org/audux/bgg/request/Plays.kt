@@ -13,8 +13,6 @@
  */
 package org.audux.bgg.request
 
-import io.ktor.client.request.get
-import io.ktor.client.statement.bodyAsText
 import io.ktor.http.appendPathSegments
 import java.time.LocalDate
 import java.time.format.DateTimeFormatter
@@ -30,7 +28,6 @@ import org.audux.bgg.common.Constants.XML2_API_URL
 import org.audux.bgg.common.PlayThingType
 import org.audux.bgg.common.SubType
 import org.audux.bgg.response.Plays
-import org.audux.bgg.response.Response
 
 /** @see org.audux.bgg.BggClient.plays */
 fun InstantiableClient.plays(
@@ -44,22 +41,20 @@ fun InstantiableClient.plays(
 ) =
     PaginatedPlays(this, id, type, minDate, maxDate, subType) {
         val formatter = DateTimeFormatter.ofPattern(Constants.REQUEST_DATE_FORMAT)
-        client()
-            .get(XML2_API_URL) {
-                url {
-                    appendPathSegments(PATH_PLAYS)
-                    parameters.append(PARAM_USERNAME, username)
-                    id?.let { parameters.append(PARAM_ID, it.toString()) }
-                    type?.let { parameters.append(PARAM_TYPE, it.param) }
-                    minDate?.let {
-                        parameters.append(Constants.PARAM_MINIMUM_DATE, formatter.format(it))
-                    }
-                    maxDate?.let {
-                        parameters.append(Constants.PARAM_MAXIMUM_DATE, formatter.format(it))
-                    }
-                    subType?.let { parameters.append(PARAM_SUBTYPE, it.param) }
-                    page?.let { parameters.append(PARAM_PAGE, it.toString()) }
+        getResponse<Plays>(XML2_API_URL) {
+            url {
+                appendPathSegments(PATH_PLAYS)
+                parameters.append(PARAM_USERNAME, username)
+                id?.let { parameters.append(PARAM_ID, it.toString()) }
+                type?.let { parameters.append(PARAM_TYPE, it.param) }
+                minDate?.let {
+                    parameters.append(Constants.PARAM_MINIMUM_DATE, formatter.format(it))
                 }
+                maxDate?.let {
+                    parameters.append(Constants.PARAM_MAXIMUM_DATE, formatter.format(it))
+                }
+                subType?.let { parameters.append(PARAM_SUBTYPE, it.param) }
+                page?.let { parameters.append(PARAM_PAGE, it.toString()) }
             }
-            .let { Response.from<Plays>(it.bodyAsText(), mapper) }
+        }
     }
@@ -0,0 +1,252 @@
+/**
+ * Copyright 2023-2024 Bram Wijnands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.audux.bgg.request
+
+import java.time.LocalDate
+import java.time.temporal.ChronoUnit
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.math.ceil
+import kotlinx.serialization.Serializable
+import org.audux.bgg.InstantiableClient
+import org.audux.bgg.common.PlayThingType
+import org.audux.bgg.common.SubType
+import org.audux.bgg.response.LocalDateSerializer
+import org.audux.bgg.response.Play
+import org.audux.bgg.response.Plays
+import org.audux.bgg.response.Response
+
+/**
+ * Requests the plays users logged since the previous sync, e.g.:
+ * ```
+ * val sync = client.playsSync()
+ * // Requests all plays the first time, and only the new plays afterwards.
+ * val newPlays = sync.sync("Novaeux").data
+ * ```
+ *
+ * The first sync of a user requests all plays. For users with many plays the history is split up
+ * in [shards] date ranges (using `mindate` and `maxdate`) that are paginated concurrently, so the
+ * time it takes depends on the allowed number of concurrent requests rather than the number of
+ * pages. Later syncs only request the plays on or after the [PlaysWatermark] of the previous sync,
+ * leaving out the plays that were already returned.
+ *
+ * The watermark is based on the date of the plays, which is the date they took place rather than
+ * when they were logged: plays logged later with an earlier date, as well as edited and deleted
+ * plays, are only picked up by a full sync, i.e. `sync(username, full = true)`. Watermarks can be
+ * stored between runs, as they're [Serializable], and loaded again using [restore].
+ *
+ * @param type Which type of things to sync the plays of, see [org.audux.bgg.BggClient.plays].
+ * @param subType Which sub type of things to sync the plays of.
+ * @param shards The maximum number of date ranges the plays are requested in on a full sync.
+ */
+class PlaysSync
+internal constructor(
+    private val client: InstantiableClient,
+    private val type: PlayThingType?,
+    private val subType: SubType?,
+    private val shards: Int,
+) {
+    private val watermarks = ConcurrentHashMap<String, PlaysWatermark>()
+
+    init {
+        require(shards >= 1) { "shards must be at least 1" }
+    }
+
+    /** Returns the watermark of the plays of [username], if they were synced before. */
+    fun watermark(username: String): PlaysWatermark? = watermarks[username]
+
+    /** Restores the stored [watermark] of [username], so the next sync is incremental. */
+    fun restore(username: String, watermark: PlaysWatermark) {
+        watermarks[username] = watermark
+    }
+
+    /**
+     * Syncs the plays of [username], returning the plays since the previous sync or all plays when
+     * [full] is set or the plays weren't synced before, most recent first. The watermark is only
+     * moved once all plays were received, i.e. a sync that fails can simply be retried.
+     */
+    suspend fun sync(username: String, full: Boolean = false): Response<List<Play>> {
+        val watermark = if (full) null else watermarks[username]
+        val response =
+            if (watermark == null) {
+                requestAll(username)
+            } else {
+                requestSince(username, watermark)
+            }
+        val plays = response.data ?: return response
+
+        watermarks.compute(username) { _, current ->
+            // A full sync replaces the watermark, other syncs can only move it forward.
+            if (full || current == null) watermarkOf(plays) ?: current else current.merge(plays)
+        }
+        return response
+    }
+
+    /**
+     * Syncs the plays of all [usernames] concurrently, see [sync], at most
+     * [org.audux.bgg.BggClientConfiguration.maxConcurrentRequests] users at a time.
+     */
+    suspend fun syncAll(
+        usernames: List<String>,
+        full: Boolean = false,
+    ): List<Response<List<Play>>> {
+        val responses = arrayOfNulls<Response<List<Play>>>(usernames.size)
+        client.concurrentRequests(usernames.indices) { index ->
+            responses[index] = sync(usernames[index], full)
+        }
+        return responses.map { it!! }
+    }
+
+    /** Requests the plays on or after the [watermark], leaving out the plays it already covers. */
+    private suspend fun requestSince(
+        username: String,
+        watermark: PlaysWatermark,
+    ): Response<List<Play>> {
+        val response = requestRange(username, minDate = watermark.date, maxDate = null)
+        val plays = response.data ?: return response
+        return Response(data = plays.filterNot { it.id in watermark.playIds })
+    }
+
+    /**
+     * Requests all plays, splitting the history up in date ranges from the oldest play, on the last
+     * page, to the most recent play, on the first page, when there's more than one page. The first
+     * page is only requested once: its plays are reused rather than requested again.
+     */
+    private suspend fun requestAll(username: String): Response<List<Play>> {
+        val first = request(username, minDate = null, maxDate = null, page = null)
+        val firstPage = first.data ?: return Response(error = first.error)
+        val pages = ceil(firstPage.total.toDouble() / PaginatedPlays.PAGE_SIZE).toInt()
+        if (pages <= 1) return Response(data = firstPage.plays)
+        if (shards == 1) return requestRange(username, minDate = null, maxDate = null, first)
+
+        val last = request(username, minDate = null, maxDate = null, page = pages)
+        val lastPage = last.data ?: return Response(error = last.error)
+        // The last page is empty when plays were deleted in the meantime, so the date ranges can't
+        // be determined and all plays are paginated instead, using the total of the last page.
+        val oldest =
+            lastPage.plays.minOfOrNull { it.date }
+                ?: return requestRange(
+                    username,
+                    minDate = null,
+                    maxDate = null,
+                    Response(data = firstPage.copy(total = lastPage.total)),
+                )
+        // All plays after the oldest date on the first page are on the first page, only the plays
+        // up to and including that date are requested in date ranges.
+        val firstPageOldest = firstPage.plays.minOf { it.date }
+        val recentPlays = firstPage.plays.filter { it.date.isAfter(firstPageOldest) }
+
+        val ranges =
+            dateShards(minOf(oldest, firstPageOldest), firstPageOldest, minOf(shards, pages))
+        val responses = arrayOfNulls<Response<List<Play>>>(ranges.size)
+        client.concurrentRequests(ranges.indices) { index ->
+            val range = ranges[index]
+            responses[index] = requestRange(username, range.start, range.endInclusive)
+        }
+
+        val shardResponses = responses.map { it!! }
+        shardResponses.firstOrNull { it.isError() }?.let { return it }
+
+        // The date ranges are in chronological order, while plays are sorted most recent first.
+        val plays = recentPlays + shardResponses.reversed().flatMap { it.data.orEmpty() }
+        return Response(data = plays.distinctBy { it.id })
+    }
+
+    /**
+     * Requests all plays between [minDate] and [maxDate], paginating all pages. Fails when not all
+     * plays were received, e.g. because a page failed, so the watermark is never moved past them.
+     *
+     * @param first The first page of the plays between [minDate] and [maxDate], if it was already
+     *   requested, so only the following pages are requested.
+     */
+    private suspend fun requestRange(
+        username: String,
+        minDate: LocalDate?,
+        maxDate: LocalDate?,
+        first: Response<Plays>? = null,
+    ): Response<List<Play>> {
+        val response =
+            PaginatedPlays(client, null, type, minDate, maxDate, subType) {
+                    first ?: request(username, minDate, maxDate, page = null)
+                }
+                .paginate()
+                .call()
+        val plays = response.data ?: return Response(error = response.error)
+        if (plays.plays.size < plays.total) {
+            return Response(
+                error =
+                    "Received ${plays.plays.size} of ${plays.total} plays of $username between " +
+                        "${minDate ?: "the first play"} and ${maxDate ?: "today"}"
+            )
+        }
+        return Response(data = plays.plays)
+    }
+
+    private suspend fun request(
+        username: String,
+        minDate: LocalDate?,
+        maxDate: LocalDate?,
+        page: Int?,
+    ): Response<Plays> = client.plays(username, null, type, minDate, maxDate, subType, page).call()
+}
+
+/**
+ * Splits [from]..[to] up in at most [count] consecutive, non-overlapping date ranges of (about) the
+ * same number of days.
+ */
+internal fun dateShards(from: LocalDate, to: LocalDate, count: Int): List<ClosedRange<LocalDate>> {
+    val days = ChronoUnit.DAYS.between(from, to) + 1
+    val shardDays = ceil(days.toDouble() / count).toLong()
+    return (0 until days step shardDays).map { offset ->
+        val start = from.plusDays(offset)
+        start..minOf(start.plusDays(shardDays - 1), to)
+    }
+}
+
+/**
+ * The progress of a [PlaysSync] of a user: the most recent [date] of their plays and the ids of the
+ * plays on that date, so plays logged later on the same date are still picked up.
+ */
+@Serializable
+data class PlaysWatermark(
+    @Serializable(with = LocalDateSerializer::class) val date: LocalDate,
+    val playIds: Set<Int>,
+) {
+    /** Returns this watermark moved forward to the most recent of the new [plays]. */
+    internal fun merge(plays: List<Play>): PlaysWatermark {
+        val latest = watermarkOf(plays) ?: return this
+        return when {
+            latest.date.isAfter(date) -> latest
+            latest.date == date -> PlaysWatermark(date, playIds + latest.playIds)
+            else -> this
+        }
+    }
+}
+
+/** Returns the watermark of the most recent of [plays], or `null` if there are none. */
+private fun watermarkOf(plays: List<Play>): PlaysWatermark? {
+    val date = plays.maxOfOrNull { it.date } ?: return null
+    return PlaysWatermark(date, plays.filter { it.date == date }.mapTo(mutableSetOf()) { it.id })
+}
+
+/**
+ * Creates a [PlaysSync] requesting the plays users logged since the previous sync through this
+ * client.
+ *
+ * @see PlaysSync
+ */
+fun InstantiableClient.playsSync(
+    type: PlayThingType? = null,
+    subType: SubType? = null,
+    shards: Int = configuration.maxConcurrentRequests,
+) = PlaysSync(this, type = type, subType = subType, shards = shards)
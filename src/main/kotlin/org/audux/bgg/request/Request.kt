@@ -13,7 +13,40 @@
  */
 package org.audux.bgg.request
 
+import com.fasterxml.jackson.core.JsonToken
+import com.fasterxml.jackson.databind.ObjectMapper
+import io.ktor.client.plugins.RedirectResponseException
+import io.ktor.client.request.HttpRequestBuilder
+import io.ktor.client.request.get
+import io.ktor.client.request.header
+import io.ktor.client.request.prepareGet
+import io.ktor.client.request.url
+import io.ktor.client.statement.HttpResponse
+import io.ktor.client.statement.bodyAsBytes
+import io.ktor.client.statement.bodyAsChannel
+import io.ktor.http.HttpHeaders
+import io.ktor.http.HttpStatusCode
+import io.ktor.http.Url
+import io.ktor.http.encodeURLParameter
+import io.ktor.utils.io.jvm.javaio.toInputStream
+import java.io.BufferedInputStream
+import java.io.InputStream
+import java.time.Instant
+import kotlin.time.Duration
+import kotlin.time.toJavaDuration
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.buffer
+import kotlinx.coroutines.flow.channelFlow
+import kotlinx.coroutines.flow.flowOn
+import kotlinx.coroutines.withContext
+import org.audux.bgg.BggRequestException
 import org.audux.bgg.InstantiableClient
+import org.audux.bgg.cache.CachedResponse
+import org.audux.bgg.cache.ResponseCache
+import org.audux.bgg.common.Constants.XML2_API_URL
+import org.audux.bgg.plugin.ConcurrentRequestPermit
 import org.audux.bgg.response.Response
 
 /** Encapsulates a request to BGG so it can be scheduled or queued for later execution. */
@@ -39,3 +72,299 @@ internal constructor(
     /** Execute the encapsulated [T] request and returns [T] if successful. */
     suspend fun call() = client.call(request)
 }
+
+/**
+ * A [Request] of which the items in the response can also be streamed one by one, see [stream].
+ *
+ * @param I The type of the streamed items e.g. [org.audux.bgg.response.CollectionItem].
+ */
+open class StreamingRequest<T, I>
+internal constructor(
+    client: InstantiableClient,
+    request: suspend () -> Response<T>,
+    private val items: () -> Flow<I>,
+) : Request<T>(client, request) {
+    /**
+     * Executes the encapsulated request and emits each item as soon as it's parsed from the
+     * response body, instead of materializing the full response first. Processing items overlaps
+     * with receiving the response.
+     *
+     * Parsing suspends until the collector is ready for the next item, so at most one parsed item
+     * waits for the collector at a time. While waiting for the collector the request doesn't count
+     * against [org.audux.bgg.BggClientConfiguration.maxConcurrentRequests], so the collector can
+     * make requests of its own.
+     *
+     * The flow fails with a [BggRequestException] when BGG responds with an error instead of the
+     * items, e.g. for an invalid username or a collection that is still being processed.
+     */
+    fun stream() = items()
+}
+
+/**
+ * Makes a GET request to [urlString] configured by [block] and parses the response as [T].
+ *
+ * Concurrent identical requests, i.e. for the same [T], URL and parameters regardless of their
+ * order, share a single request and parsed [Response] when
+ * [org.audux.bgg.BggClientConfiguration.deduplicateRequests] is enabled. When a
+ * [org.audux.bgg.BggClientConfiguration.responseCache] is configured, responses are cached for as
+ * long as the [org.audux.bgg.cache.CachePolicy] allows.
+ */
+internal suspend inline fun <reified T> InstantiableClient.getResponse(
+    urlString: String,
+    noinline block: HttpRequestBuilder.() -> Unit = {},
+): Response<T> = getResponse(T::class.java, urlString, block)
+
+/** @see getResponse */
+internal suspend fun <T> InstantiableClient.getResponse(
+    type: Class<T>,
+    urlString: String,
+    block: HttpRequestBuilder.() -> Unit,
+): Response<T> {
+    val url = requestUrl(urlString, block)
+    val cache = configuration.responseCache
+    val ttl = configuration.cachePolicy.ttl(url)
+    val call: suspend () -> Response<T> =
+        if (cache != null && ttl.isPositive()) {
+            { getCachedResponse(type, cache, url.canonical(), ttl, urlString, block) }
+        } else {
+            { client().prepareGet(urlString, block).execute { Response.from(it, mapper, type) } }
+        }
+    if (!configuration.deduplicateRequests) return call()
+
+    return singleFlight.execute(requestKey(type, url), call)
+}
+
+/**
+ * Returns the response cached under [key] when it hasn't expired yet, otherwise makes the request
+ * and caches the response for [ttl] if it was successful.
+ *
+ * Expired responses with an `ETag` or `Last-Modified` header are revalidated with a conditional
+ * request, when BGG responds with `304 Not Modified` the cached response is used again, without
+ * parsing it again when the parsed response is still held by the [cache]. Cached responses that can
+ * no longer be parsed are requested in full instead.
+ */
+private suspend fun <T> InstantiableClient.getCachedResponse(
+    type: Class<T>,
+    cache: ResponseCache,
+    key: String,
+    ttl: Duration,
+    urlString: String,
+    block: HttpRequestBuilder.() -> Unit,
+): Response<T> =
+    withContext(Dispatchers.IO) {
+        var cached = cache.get(key)
+        if (cached != null && !cached.isExpired()) {
+            val response = cached.parse(type, mapper)
+            if (response.isSuccess()) {
+                cacheStatistics.recordHit()
+                return@withContext response
+            }
+
+            // The cached response can no longer be parsed, e.g. after a configuration change, so
+            // it can't be revalidated either and is requested in full instead.
+            cache.invalidate(key)
+            cached = null
+        }
+
+        val revalidate = cached?.takeIf { it.hasValidators() }
+        if (revalidate != null) {
+            val httpResponse =
+                try {
+                    client().get(urlString) {
+                        block()
+                        revalidate.etag?.let { header(HttpHeaders.IfNoneMatch, it) }
+                        revalidate.lastModified?.let { header(HttpHeaders.IfModifiedSince, it) }
+                    }
+                } catch (e: RedirectResponseException) {
+                    // Responses other than 2xx throw, including the expected 304 (Not Modified).
+                    if (e.response.status != HttpStatusCode.NotModified) throw e
+                    e.response
+                }
+            if (httpResponse.status != HttpStatusCode.NotModified) {
+                return@withContext cacheResponse(type, cache, key, ttl, httpResponse)
+            }
+
+            val response = revalidate.parse(type, mapper)
+            if (response.isSuccess()) {
+                cacheStatistics.recordNotModified(revalidate.body.size)
+                val now = Instant.now()
+                cache.put(
+                    key,
+                    CachedResponse(
+                            revalidate.body,
+                            storedAt = now,
+                            expiresAt = now + ttl.toJavaDuration(),
+                            etag = httpResponse.headers[HttpHeaders.ETag] ?: revalidate.etag,
+                            lastModified =
+                                httpResponse.headers[HttpHeaders.LastModified]
+                                    ?: revalidate.lastModified,
+                        )
+                        .also { it.parsed = response },
+                )
+                return@withContext response
+            }
+
+            // The cached response is still current but can no longer be parsed, e.g. after a
+            // configuration change, so it's requested in full instead.
+            cache.invalidate(key)
+        }
+
+        cacheResponse(type, cache, key, ttl, client().get(urlString, block))
+    }
+
+/**
+ * Parses the body of [httpResponse] as [type] and caches it under [key] for [ttl] if it was
+ * successful.
+ */
+private suspend fun <T> InstantiableClient.cacheResponse(
+    type: Class<T>,
+    cache: ResponseCache,
+    key: String,
+    ttl: Duration,
+    httpResponse: HttpResponse,
+): Response<T> {
+    cacheStatistics.recordMiss()
+    val body = httpResponse.bodyAsBytes()
+    return Response.from(body, mapper, type).also {
+        // Never cache errors or responses that are not ready yet, e.g. 202 (Accepted).
+        if (httpResponse.status == HttpStatusCode.OK && it.isSuccess()) {
+            val now = Instant.now()
+            cache.put(
+                key,
+                CachedResponse(
+                        body,
+                        storedAt = now,
+                        expiresAt = now + ttl.toJavaDuration(),
+                        etag = httpResponse.headers[HttpHeaders.ETag],
+                        lastModified = httpResponse.headers[HttpHeaders.LastModified],
+                    )
+                    .also { cachedResponse -> cachedResponse.parsed = it },
+            )
+        }
+    }
+}
+
+/**
+ * Returns the parsed body of this cached response, reusing the previously parsed [Response] when
+ * it's still held in memory.
+ */
+@Suppress("UNCHECKED_CAST")
+private suspend fun <T> CachedResponse.parse(type: Class<T>, mapper: ObjectMapper): Response<T> {
+    parsed?.takeIf { type.isInstance(it.data) }?.let { return it as Response<T> }
+
+    return Response.from(body, mapper, type).also { if (it.isSuccess()) parsed = it }
+}
+
+/** Returns the [Url] of a request to [urlString] configured by [block]. */
+internal fun requestUrl(urlString: String, block: HttpRequestBuilder.() -> Unit) =
+    HttpRequestBuilder()
+        .apply {
+            url(urlString)
+            block()
+        }
+        .url
+        .build()
+
+/**
+ * Returns this URL with its query parameters sorted by name, so equal requests are equal. Names and
+ * values are encoded, so a value containing e.g. `&` or `,` can't be mistaken for other parameters.
+ */
+internal fun Url.canonical(): String {
+    val sortedParameters =
+        parameters
+            .entries()
+            .sortedBy { it.key }
+            .flatMap { (name, values) ->
+                values.map { "${name.encodeURLParameter()}=${it.encodeURLParameter()}" }
+            }
+            .joinToString("&")
+
+    return "${protocol.name}://$host:$port$encodedPath?$sortedParameters"
+}
+
+/** Returns the key identifying concurrent identical requests for [type] to [url]. */
+internal fun requestKey(type: Class<*>, url: Url) = "${type.name} ${url.canonical()}"
+
+/**
+ * Makes a GET request configured by [block] and emits every `<item>` element directly under the
+ * root element of the response as an [itemType], using Jackson's token-level parser on the body
+ * channel.
+ *
+ * Items are handed to the collector one at a time, parsing suspends until the previous item was
+ * received so memory stays bounded by a single item. The concurrent request permit of the request
+ * is released while waiting for the collector and acquired again before parsing the next item.
+ *
+ * @throws BggRequestException Thrown when BGG didn't respond with `<items>`, e.g. an `<errors>`
+ *   response for an invalid username or a 202 (Accepted) response that is still being processed.
+ */
+internal fun <I> InstantiableClient.streamItems(
+    itemType: Class<I>,
+    block: HttpRequestBuilder.() -> Unit,
+): Flow<I> =
+    channelFlow {
+            client().prepareGet(XML2_API_URL, block).execute { response ->
+                val permit = response.call.attributes.getOrNull(ConcurrentRequestPermit)
+                response.bodyAsChannel().toInputStream().buffered().use { input ->
+                    if (
+                        response.status != HttpStatusCode.OK ||
+                            input.rootElementName() != ITEMS_ELEMENT
+                    ) {
+                        throw BggRequestException("Error streaming items: ${input.errorMessage()}")
+                    }
+
+                    mapper.factory.createParser(input).use { parser ->
+                        // Skip the root element, e.g. <items>.
+                        if (parser.nextToken() != JsonToken.START_OBJECT) return@use
+
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            val isItem = parser.currentName() == ITEM_ELEMENT
+                            when (parser.nextToken()) {
+                                JsonToken.START_OBJECT ->
+                                    if (isItem) {
+                                        val item = mapper.readValue(parser, itemType)
+                                        if (!trySend(item).isSuccess) {
+                                            permit?.released { send(item) } ?: send(item)
+                                        }
+                                    } else parser.skipChildren()
+                                JsonToken.START_ARRAY -> parser.skipChildren()
+                                else -> {}
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        .buffer(Channel.RENDEZVOUS)
+        .flowOn(Dispatchers.IO)
+
+/**
+ * Returns the name of the root element of the XML document in this stream, without consuming any
+ * of the stream.
+ */
+private fun BufferedInputStream.rootElementName(): String? {
+    mark(ROOT_ELEMENT_PEEK_SIZE)
+    val head = readNBytes(ROOT_ELEMENT_PEEK_SIZE).decodeToString()
+    reset()
+    return ROOT_ELEMENT.find(head)?.groupValues?.get(1)
+}
+
+/** Reads the remainder of this stream and returns the message of the BGG error it contains. */
+private fun InputStream.errorMessage(): String {
+    val body = readBytes().decodeToString()
+    return ERROR_MESSAGE.find(body)?.groupValues?.get(1)?.trim() ?: body.trim()
+}
+
+/** Name of the elements streamed by [streamItems]. */
+private const val ITEM_ELEMENT = "item"
+
+/** Name of the root element of the responses streamed by [streamItems]. */
+private const val ITEMS_ELEMENT = "items"
+
+/** Number of bytes read to find the root element, after the XML declaration. */
+private const val ROOT_ELEMENT_PEEK_SIZE = 1024
+
+/** Matches the first element name, skipping the XML declaration and comments. */
+private val ROOT_ELEMENT = Regex("<([A-Za-z_][\\w.-]*)")
+
+/** Matches the message of BGG error responses, e.g. `<error><message>...</message></error>`. */
+private val ERROR_MESSAGE = Regex("<message>(.*?)</message>", RegexOption.DOT_MATCHES_ALL)
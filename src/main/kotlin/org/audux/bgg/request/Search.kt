@@ -13,8 +13,6 @@
  */
 package org.audux.bgg.request
 
-import io.ktor.client.request.get
-import io.ktor.client.statement.bodyAsText
 import io.ktor.http.appendPathSegments
 import org.audux.bgg.InstantiableClient
 import org.audux.bgg.common.Constants.PARAM_EXACT
@@ -23,7 +21,6 @@ import org.audux.bgg.common.Constants.PARAM_TYPE
 import org.audux.bgg.common.Constants.PATH_SEARCH
 import org.audux.bgg.common.Constants.XML2_API_URL
 import org.audux.bgg.common.ThingType
-import org.audux.bgg.response.Response
 import org.audux.bgg.response.SearchResults
 
 /** @see org.audux.bgg.BggClient.search */
@@ -32,18 +29,16 @@ fun InstantiableClient.search(
     types: Array<ThingType> = arrayOf(),
     exactMatch: Boolean,
 ) = request {
-    client()
-        .get(XML2_API_URL) {
-            url {
-                appendPathSegments(PATH_SEARCH)
-                parameters.apply {
-                    append(PARAM_QUERY, query)
-                    if (types.isNotEmpty()) {
-                        append(PARAM_TYPE, types.joinToString(",") { it.param })
-                    }
-                    if (exactMatch) append(PARAM_EXACT, "1")
+    getResponse<SearchResults>(XML2_API_URL) {
+        url {
+            appendPathSegments(PATH_SEARCH)
+            parameters.apply {
+                append(PARAM_QUERY, query)
+                if (types.isNotEmpty()) {
+                    append(PARAM_TYPE, types.joinToString(",") { it.param })
                 }
+                if (exactMatch) append(PARAM_EXACT, "1")
             }
         }
-        .let { Response.from<SearchResults>(it.bodyAsText(), mapper) }
+    }
 }
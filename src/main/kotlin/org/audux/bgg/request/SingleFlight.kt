@@ -0,0 +1,65 @@
+/**
+ * Copyright 2023-2024 Bram Wijnands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.audux.bgg.request
+
+import java.util.concurrent.ConcurrentHashMap
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.ensureActive
+
+/**
+ * Deduplicates identical in-flight calls: while a call for a key is in progress, concurrent calls
+ * for the same key wait for and share its result instead of executing the call again. Results are
+ * not retained once the call completes.
+ */
+internal class SingleFlight {
+    private val inFlight = ConcurrentHashMap<String, CompletableDeferred<Any?>>()
+
+    /** The number of distinct keys currently in-flight. */
+    val size
+        get() = inFlight.size
+
+    /**
+     * Executes [call] for [key] unless a call for the same key is already in-flight, in which case
+     * its result (or exception) is shared. When the in-flight call is cancelled one of the waiting
+     * callers takes over and executes [call] instead.
+     */
+    @Suppress("UNCHECKED_CAST")
+    suspend fun <T> execute(key: String, call: suspend () -> T): T {
+        val deferred = CompletableDeferred<Any?>()
+        while (true) {
+            val existing = inFlight.putIfAbsent(key, deferred) ?: break
+            try {
+                return existing.await() as T
+            } catch (e: CancellationException) {
+                // Rethrow when this caller was cancelled, otherwise the in-flight call was.
+                currentCoroutineContext().ensureActive()
+            }
+        }
+
+        // Remove the call before completing it, so callers taking over never see a completed call.
+        val result =
+            try {
+                call()
+            } catch (e: Throwable) {
+                inFlight.remove(key, deferred)
+                deferred.completeExceptionally(e)
+                throw e
+            }
+        inFlight.remove(key, deferred)
+        deferred.complete(result)
+        return result
+    }
+}
@@ -13,19 +13,16 @@
  */
 package org.audux.bgg.request
 
-import io.ktor.client.request.get
-import io.ktor.client.statement.bodyAsText
 import io.ktor.http.appendPathSegments
 import org.audux.bgg.InstantiableClient
 import org.audux.bgg.common.Constants
 import org.audux.bgg.common.Domain
-import org.audux.bgg.response.Response
 import org.audux.bgg.response.SitemapIndex
 
 /** @see org.audux.bgg.BggClient.sitemapIndex */
 fun InstantiableClient.sitemapIndex(domain: Domain) =
     DiffusingSitemap(this) {
-        client()
-            .get(domain.address) { url { appendPathSegments(Constants.PATH_SITEMAP) } }
-            .let { Response.from<SitemapIndex>(it.bodyAsText(), mapper) }
+        getResponse<SitemapIndex>(domain.address) {
+            url { appendPathSegments(Constants.PATH_SITEMAP) }
+        }
     }
@@ -13,11 +13,15 @@
  */
 package org.audux.bgg.request
 
-import io.ktor.client.request.get
-import io.ktor.client.statement.bodyAsText
+import co.touchlab.kermit.Logger
+import io.ktor.client.request.HttpRequestBuilder
 import io.ktor.http.appendPathSegments
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.flow.emitAll
+import kotlinx.coroutines.flow.flow
 import org.audux.bgg.BggRequestException
 import org.audux.bgg.InstantiableClient
+import org.audux.bgg.common.Constants.MAX_THING_IDS
 import org.audux.bgg.common.Constants.PARAM_COMMENTS
 import org.audux.bgg.common.Constants.PARAM_ID
 import org.audux.bgg.common.Constants.PARAM_MARKETPLACE
@@ -32,6 +36,7 @@ import org.audux.bgg.common.Constants.PATH_THING
 import org.audux.bgg.common.Constants.XML2_API_URL
 import org.audux.bgg.common.ThingType
 import org.audux.bgg.response.Response
+import org.audux.bgg.response.Thing
 import org.audux.bgg.response.Things
 
 /** @see org.audux.bgg.BggClient.things */
@@ -46,44 +51,150 @@ fun InstantiableClient.things(
     ratingComments: Boolean,
     page: Int,
     pageSize: Int?,
-) =
-    PaginatedThings(
+): PaginatedThings {
+    fun validate() {
+        if (pageSize != null && !(10..100).contains(pageSize)) {
+            throw BggRequestException("pageSize must be between 10 and 100")
+        }
+        if (comments && ratingComments) {
+            throw BggRequestException("comments and ratingsComments can't both be true")
+        }
+    }
+
+    fun block(chunk: Array<Int>) =
+        thingsRequest(
+            chunk.joinToString(","),
+            types,
+            stats,
+            versions,
+            videos,
+            marketplace,
+            comments,
+            ratingComments,
+            page,
+            pageSize,
+        )
+
+    // BGG only accepts up to MAX_THING_IDS ids per request, larger arrays are split up in chunks.
+    val chunks =
+        if (ids.size <= MAX_THING_IDS) listOf(ids)
+        else ids.toList().chunked(MAX_THING_IDS) { it.toTypedArray() }
+
+    return PaginatedThings(
         this,
         ids = ids,
         currentPage = page,
         pageSize = pageSize ?: 100,
         comments = comments,
         ratingComments = ratingComments,
+        items = {
+            validate()
+            flow { chunks.forEach { emitAll(streamItems(Thing::class.java, block(it))) } }
+        },
     ) {
-        if (pageSize != null && !(10..100).contains(pageSize)) {
-            throw BggRequestException("pageSize must be between 10 and 100")
-        }
-        if (comments && ratingComments) {
-            throw BggRequestException("comments and ratingsComments can't both be true")
+        validate()
+        if (chunks.size == 1) {
+            getResponse<Things>(XML2_API_URL, block(ids)).let { response ->
+                if (response.isSuccess() && response.data != null) response
+                else response.copy(failedIds = ids.asList())
+            }
+        } else {
+            requestChunks(chunks, ::block)
         }
+    }
+}
 
-        client()
-            .get(XML2_API_URL) {
-                url {
-                    appendPathSegments(PATH_THING)
+/** Configures a request for the things with the comma separated [ids], see [things]. */
+internal fun thingsRequest(
+    ids: String,
+    types: Array<ThingType>,
+    stats: Boolean,
+    versions: Boolean,
+    videos: Boolean,
+    marketplace: Boolean,
+    comments: Boolean,
+    ratingComments: Boolean,
+    page: Int,
+    pageSize: Int?,
+): HttpRequestBuilder.() -> Unit = {
+    url {
+        appendPathSegments(PATH_THING)
+
+        parameters.apply {
+            append(PARAM_ID, ids)
 
-                    parameters.apply {
-                        append(PARAM_ID, ids.joinToString(","))
+            if (types.isNotEmpty()) {
+                append(PARAM_TYPE, types.joinToString(",") { it.param })
+            }
 
-                        if (types.isNotEmpty()) {
-                            append(PARAM_TYPE, types.joinToString(",") { it.param })
-                        }
+            if (stats) append(PARAM_STATS, "1")
+            if (versions) append(PARAM_VERSIONS, "1")
+            if (videos) append(PARAM_VIDEOS, "1")
+            if (marketplace) append(PARAM_MARKETPLACE, "1")
+            if (comments) append(PARAM_COMMENTS, "1")
+            if (ratingComments) append(PARAM_RATING_COMMENTS, "1")
+            if (page > 1) append(PARAM_PAGE, page.toString())
+            if (pageSize != null) append(PARAM_PAGE_SIZE, pageSize.toString())
+        }
+    }
+}
 
-                        if (stats) append(PARAM_STATS, "1")
-                        if (versions) append(PARAM_VERSIONS, "1")
-                        if (videos) append(PARAM_VIDEOS, "1")
-                        if (marketplace) append(PARAM_MARKETPLACE, "1")
-                        if (comments) append(PARAM_COMMENTS, "1")
-                        if (ratingComments) append(PARAM_RATING_COMMENTS, "1")
-                        if (page > 1) append(PARAM_PAGE, page.toString())
-                        if (pageSize != null) append(PARAM_PAGE_SIZE, pageSize.toString())
-                    }
-                }
+/**
+ * Requests all [chunks] of ids concurrently, bounded by the configured maximum number of concurrent
+ * requests, and merges their responses using [mergeChunks].
+ */
+private suspend fun InstantiableClient.requestChunks(
+    chunks: List<Array<Int>>,
+    block: (Array<Int>) -> HttpRequestBuilder.() -> Unit,
+): Response<Things> {
+    val responses = arrayOfNulls<Response<Things>>(chunks.size)
+    concurrentRequests(chunks.indices) { index ->
+        responses[index] =
+            try {
+                getResponse<Things>(XML2_API_URL, block(chunks[index]))
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                // Report the failure for this chunk only, the other chunks may still succeed.
+                Logger.w("Error requesting things ${chunks[index].joinToString(",")}", e)
+                Response(error = e.message ?: e.toString())
             }
-            .let { Response.from<Things>(it.bodyAsText(), mapper) }
     }
+    return mergeChunks(chunks, responses.map { it!! })
+}
+
+/**
+ * Merges the [responses] of each of the [chunks] into a single response containing all things in
+ * the order they were requested. Like failed pages when paginating, failed chunks are logged and
+ * skipped, their ids are reported in [Response.failedIds]. The merged response only contains an
+ * error when all chunks failed.
+ */
+internal fun mergeChunks(
+    chunks: List<Array<Int>>,
+    responses: List<Response<Things>>,
+): Response<Things> {
+    val failedChunks =
+        chunks.zip(responses).filter { (_, response) ->
+            response.isError() || response.data == null
+        }
+    val errors =
+        failedChunks.map { (chunk, response) ->
+            "Error requesting things ${chunk.joinToString(",")}: ${response.error}"
+        }
+    val failedIds = failedChunks.flatMap { (chunk, _) -> chunk.asList() }
+    val things = responses.filter { it.isSuccess() }.mapNotNull { it.data }
+    if (things.isEmpty()) {
+        return Response(error = errors.joinToString("\n"), failedIds = failedIds)
+    }
+
+    // Ignore errors but do log them.
+    errors.forEach { Logger.w(it) }
+    return Response(
+        data =
+            Things(
+                termsOfUse = things.first().termsOfUse,
+                things = things.flatMap { it.things },
+            ),
+        failedIds = failedIds,
+    )
+}
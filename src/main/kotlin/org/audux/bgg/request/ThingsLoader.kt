@@ -0,0 +1,208 @@
+/**
+ * Copyright 2023-2024 Bram Wijnands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.audux.bgg.request
+
+import co.touchlab.kermit.Logger
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.milliseconds
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import org.audux.bgg.InstantiableClient
+import org.audux.bgg.common.Constants.MAX_THING_IDS
+import org.audux.bgg.common.ThingType
+import org.audux.bgg.response.Response
+import org.audux.bgg.response.Thing
+
+/**
+ * Batches single thing lookups from many concurrent callers into multi-id [things] requests, e.g.:
+ * ```
+ * val loader = client.thingsLoader(stats = true)
+ * // Called concurrently from many coroutines, results in a single request for ids 1, 2 & 3.
+ * val thing = loader.load(1).data
+ * ```
+ *
+ * Lookups are collected for up to [batchWindow] (or until [maxBatchSize] distinct ids are
+ * collected), then a single request is made for all of them and each caller receives its own
+ * [Thing]. Every batch goes through the client's rate limiters like any other request.
+ *
+ * @param types Filters the results by the [ThingType] objects specified.
+ * @param stats Returns ranking and rating stats for the things.
+ * @param versions Returns version info for the things.
+ * @param videos Returns videos for the things.
+ * @param marketplace Returns marketplace data.
+ * @param maxBatchSize The maximum number of ids per request, at most [MAX_THING_IDS].
+ * @param batchWindow How long to wait for other lookups after the first lookup of a batch.
+ */
+class ThingsLoader
+internal constructor(
+    private val client: InstantiableClient,
+    private val types: Array<ThingType>,
+    private val stats: Boolean,
+    private val versions: Boolean,
+    private val videos: Boolean,
+    private val marketplace: Boolean,
+    private val maxBatchSize: Int,
+    private val batchWindow: Duration,
+) : AutoCloseable {
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private val timerScope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private var currentBatch: Batch? = null
+    private var closed = false
+
+    init {
+        require(maxBatchSize in 1..MAX_THING_IDS) {
+            "maxBatchSize must be between 1 and $MAX_THING_IDS"
+        }
+    }
+
+    /**
+     * Loads a single thing, batched together with concurrent loads. The response contains `null`
+     * data when BGG didn't return a thing with the given [id], or the error of the batch request.
+     */
+    suspend fun load(id: Int): Response<Thing> = enqueue(id).await()
+
+    /** Loads multiple things, returning the responses in the order of [ids]. */
+    suspend fun loadMany(ids: Array<Int>): List<Response<Thing>> =
+        ids.map { enqueue(it) }.awaitAll()
+
+    /**
+     * Stops batching, lookups that are waiting for a batch to be sent fail with an
+     * [IllegalStateException]. Batches already sent are completed, only the timers of the batch
+     * windows are cancelled.
+     */
+    override fun close() {
+        val batch =
+            synchronized(this) {
+                closed = true
+                currentBatch.also { currentBatch = null }
+            }
+        batch?.waiters?.values?.flatten()?.forEach {
+            it.completeExceptionally(closedException())
+        }
+        timerScope.cancel()
+    }
+
+    private fun enqueue(id: Int): CompletableDeferred<Response<Thing>> {
+        val waiter = CompletableDeferred<Response<Thing>>()
+        val fullBatch =
+            synchronized(this) {
+                check(!closed) { "ThingsLoader has been closed" }
+
+                val batch = currentBatch ?: Batch().also { startBatch(it) }
+                batch.waiters.getOrPut(id) { mutableListOf() }.add(waiter)
+
+                // Send the batch straight away once it's full.
+                batch.takeIf { it.waiters.size >= maxBatchSize }?.also { currentBatch = null }
+            }
+        fullBatch?.let { scope.launch { send(it) } }
+        return waiter
+    }
+
+    /** Sets [batch] as the current batch and sends it once the [batchWindow] has passed. */
+    private fun startBatch(batch: Batch) {
+        currentBatch = batch
+        timerScope.launch {
+            delay(batchWindow)
+            val isCurrent =
+                synchronized(this@ThingsLoader) {
+                    (currentBatch === batch).also { if (it) currentBatch = null }
+                }
+            // Otherwise the batch was full and has been sent already. Batches are sent outside of
+            // the timer, so closing the loader doesn't cancel them.
+            if (isCurrent) scope.launch { send(batch) }
+        }
+    }
+
+    private suspend fun send(batch: Batch) {
+        val waiters = batch.waiters
+        val response =
+            try {
+                client
+                    .things(
+                        ids = waiters.keys.toTypedArray(),
+                        types = types,
+                        stats = stats,
+                        versions = versions,
+                        videos = videos,
+                        marketplace = marketplace,
+                        comments = false,
+                        ratingComments = false,
+                        page = 1,
+                        pageSize = null,
+                    )
+                    .call()
+            } catch (e: CancellationException) {
+                waiters.values.flatten().forEach { it.completeExceptionally(closedException()) }
+                throw e
+            } catch (e: Exception) {
+                Logger.w("Error loading things ${waiters.keys}", e)
+                waiters.values.flatten().forEach { it.completeExceptionally(e) }
+                return
+            }
+
+        val things = response.data?.things.orEmpty().associateBy { it.id }
+        waiters.forEach { (id, idWaiters) ->
+            val thingResponse: Response<Thing> =
+                if (response.isError()) Response(error = response.error)
+                else Response(data = things[id])
+            idWaiters.forEach { it.complete(thingResponse) }
+        }
+    }
+
+    private fun closedException() = IllegalStateException("ThingsLoader has been closed")
+
+    /** Lookups waiting for the same request, keyed by thing id in order of arrival. */
+    private class Batch {
+        val waiters = LinkedHashMap<Int, MutableList<CompletableDeferred<Response<Thing>>>>()
+    }
+
+    /** @suppress */
+    companion object {
+        /** The default time a batch waits for more lookups. */
+        val DEFAULT_BATCH_WINDOW = 10.milliseconds
+    }
+}
+
+/**
+ * Creates a [ThingsLoader] batching concurrent single thing lookups into multi-id requests made
+ * through this client.
+ *
+ * @see ThingsLoader
+ */
+fun InstantiableClient.thingsLoader(
+    types: Array<ThingType> = arrayOf(),
+    stats: Boolean = false,
+    versions: Boolean = false,
+    videos: Boolean = false,
+    marketplace: Boolean = false,
+    maxBatchSize: Int = MAX_THING_IDS,
+    batchWindow: Duration = ThingsLoader.DEFAULT_BATCH_WINDOW,
+) =
+    ThingsLoader(
+        this,
+        types = types,
+        stats = stats,
+        versions = versions,
+        videos = videos,
+        marketplace = marketplace,
+        maxBatchSize = maxBatchSize,
+        batchWindow = batchWindow,
+    )
@@ -13,13 +13,18 @@
  */
 package org.audux.bgg.request
 
-import io.ktor.client.request.get
-import io.ktor.client.statement.bodyAsText
+import co.touchlab.kermit.Logger
 import io.ktor.http.appendPathSegments
 import java.time.LocalDateTime
 import java.time.format.DateTimeFormatter
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.map
+import kotlinx.coroutines.flow.transform
+import org.audux.bgg.BggRequestException
 import org.audux.bgg.InstantiableClient
 import org.audux.bgg.common.Constants
+import org.audux.bgg.response.Article
 import org.audux.bgg.response.Response
 import org.audux.bgg.response.Thread
 
@@ -29,22 +34,128 @@ fun InstantiableClient.thread(
     minArticleId: Int?,
     minArticleDate: LocalDateTime?,
     count: Int?,
-) = request {
-    client()
-        .get(Constants.XML2_API_URL) {
-            url {
-                appendPathSegments(Constants.PATH_THREAD)
-                parameters.apply {
-                    append(Constants.PARAM_ID, id.toString())
-                    minArticleId?.let { append(Constants.PARAM_MINIMUM_ARTICLE_ID, it.toString()) }
-                    minArticleDate?.let {
-                        val formatter =
-                            DateTimeFormatter.ofPattern(Constants.REQUEST_DATE_TIME_FORMAT)
-                        append(Constants.PARAM_MINIMUM_ARTICLE_DATE, formatter.format(it))
-                    }
-                    count?.let { append(Constants.PARAM_COUNT, count.toString()) }
+) =
+    PaginatedThread(this, id, minArticleId, minArticleDate, count) {
+        requestThread(id, minArticleId, minArticleDate, count)
+    }
+
+private suspend fun InstantiableClient.requestThread(
+    id: Int,
+    minArticleId: Int?,
+    minArticleDate: LocalDateTime?,
+    count: Int?,
+) =
+    getResponse<Thread>(Constants.XML2_API_URL) {
+        url {
+            appendPathSegments(Constants.PATH_THREAD)
+            parameters.apply {
+                append(Constants.PARAM_ID, id.toString())
+                minArticleId?.let { append(Constants.PARAM_MINIMUM_ARTICLE_ID, it.toString()) }
+                minArticleDate?.let {
+                    val formatter = DateTimeFormatter.ofPattern(Constants.REQUEST_DATE_TIME_FORMAT)
+                    append(Constants.PARAM_MINIMUM_ARTICLE_DATE, formatter.format(it))
                 }
+                count?.let { append(Constants.PARAM_COUNT, count.toString()) }
+            }
+        }
+    }
+
+/**
+ * [Request] for a [Thread] of which the articles can also be paginated in pages of `count` (or
+ * [PAGE_SIZE]) articles, so very long threads aren't requested and parsed as a single response.
+ *
+ * Unlike [PaginatedRequest]s, where pages are numbered, every page starts after the last article of
+ * the previous page using the `minarticleid` parameter. Pages are therefore requested one after
+ * another, pagination stops at the first page with less than `count` (or no) articles.
+ */
+class PaginatedThread
+internal constructor(
+    private val client: InstantiableClient,
+    private val id: Int,
+    private val minArticleId: Int?,
+    private val minArticleDate: LocalDateTime?,
+    count: Int?,
+    request: suspend () -> Response<Thread>,
+) : Request<Thread>(client, request) {
+    private val pageSize = count ?: PAGE_SIZE
+
+    /**
+     * Paginate all pages or only up to [toPage], if set, merging the articles of all pages into a
+     * single [Thread]. Pages that fail after the first page are logged and end the pagination.
+     *
+     * @param toPage The maximum number of pages to request.
+     */
+    fun paginate(toPage: Int) =
+        Request(client) {
+            var first: Response<Thread>? = null
+            val articles = mutableListOf<Article>()
+            pages(toPage).collect { response ->
+                if (first == null) first = response
+                response.data?.let { articles.addAll(it.articles) }
+            }
+
+            val thread = first!!
+            if (thread.data == null) return@Request thread
+            thread.copy(data = thread.data.copy(articles = articles.distinctBy { it.id }))
+        }
+
+    /**
+     * No-arg implementation for Java.
+     *
+     * @see paginate
+     * @suppress
+     */
+    fun paginate() = paginate(Int.MAX_VALUE)
+
+    /**
+     * Paginate all pages or only up to [toPage], like [paginate], but emits the [Thread] of every
+     * page as soon as it's received. Only a single page is held in memory at a time.
+     *
+     * @param toPage The maximum number of pages to request.
+     * @throws BggRequestException Thrown when the first page failed
+     */
+    fun paginateAsFlow(toPage: Int): Flow<Thread> =
+        pages(toPage).map {
+            it.data ?: throw BggRequestException("Error paginating thread: ${it.error}")
+        }
+
+    /**
+     * No-arg implementation of [paginateAsFlow].
+     *
+     * @see paginateAsFlow
+     * @suppress
+     */
+    fun paginateAsFlow() = paginateAsFlow(Int.MAX_VALUE)
+
+    /** Paginates the thread like [paginateAsFlow], emitting every article one at a time. */
+    fun streamArticles(toPage: Int = Int.MAX_VALUE): Flow<Article> =
+        paginateAsFlow(toPage).transform { page -> page.articles.forEach { emit(it) } }
+
+    /**
+     * Emits the response of every page up to [toPage], the first page is always emitted while
+     * later pages are only emitted when successful.
+     */
+    private fun pages(toPage: Int): Flow<Response<Thread>> = flow {
+        var nextArticleId = minArticleId
+        for (page in 1..toPage.coerceAtLeast(1)) {
+            val response = client.requestThread(id, nextArticleId, minArticleDate, pageSize)
+            val articles = response.data?.articles
+            if (page > 1 && (response.isError() || articles == null)) {
+                // Ignore errors but do log them, the following pages can't be requested anymore.
+                Logger.w("Error paginating thread page $page")
+                break
             }
+
+            emit(response)
+            // An empty page ends the pagination as well, e.g. when `count` is 0.
+            if (articles.isNullOrEmpty() || articles.size < pageSize) break
+            nextArticleId = articles.maxOf { it.id } + 1
         }
-        .let { Response.from<Thread>(it.bodyAsText(), mapper) }
+    }
+
+    /** @suppress */
+    companion object {
+        /** The number of articles per page when no `count` was given. */
+        const val PAGE_SIZE = 100
+    }
 }
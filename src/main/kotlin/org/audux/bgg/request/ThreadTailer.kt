@@ -0,0 +1,158 @@
+/**
+ * Copyright 2023-2024 Bram Wijnands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.audux.bgg.request
+
+import co.touchlab.kermit.Logger
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.math.max
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.minutes
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.buffer
+import kotlinx.coroutines.flow.channelFlow
+import kotlinx.coroutines.flow.filter
+import org.audux.bgg.InstantiableClient
+import org.audux.bgg.response.Article
+import org.audux.bgg.response.Response
+
+/**
+ * Follows threads for new articles, e.g.:
+ * ```
+ * val tailer = client.threadTailer()
+ * hotThreadIds.forEach { tailer.track(it) }
+ * tailer.tail(pollInterval = 5.minutes).collect { (threadId, article) -> ... }
+ * ```
+ *
+ * The tailer keeps the highest [Article.id] seen per thread (its watermark) and only requests the
+ * articles after it, using the `minarticleid` parameter, instead of the whole thread. Articles are
+ * requested in pages of [PaginatedThread.PAGE_SIZE], so the first poll of a long thread isn't
+ * requested and parsed as a single response. Any number of threads can be tracked, polling all
+ * threads is limited to [org.audux.bgg.BggClientConfiguration.maxConcurrentRequests] requests at a
+ * time and goes through the client's rate limiters like any other request. When a response cache
+ * is configured, repeated polls are served from the cache for as long as the
+ * [org.audux.bgg.cache.CachePolicy] allows.
+ */
+class ThreadTailer internal constructor(private val client: InstantiableClient) {
+    /** The highest article id seen per tracked thread. */
+    private val watermarks = ConcurrentHashMap<Int, Int>()
+
+    /** The ids of the threads that are tracked. */
+    val threadIds: Set<Int>
+        get() = watermarks.keys.toSet()
+
+    /** Returns the highest article id seen of the thread [threadId], if it's tracked. */
+    fun watermark(threadId: Int): Int? = watermarks[threadId]
+
+    /**
+     * Tracks the thread [threadId], of which only articles after [afterArticleId] are returned. By
+     * default all articles of the thread are returned by the first poll. Tracking a thread that's
+     * already tracked has no effect.
+     */
+    fun track(threadId: Int, afterArticleId: Int = 0) {
+        watermarks.putIfAbsent(threadId, afterArticleId)
+    }
+
+    /** Stops tracking the thread [threadId]. */
+    fun untrack(threadId: Int) {
+        watermarks.remove(threadId)
+    }
+
+    /**
+     * Requests the articles of the tracked thread [threadId] after its watermark, returning them
+     * in order of their id and moving the watermark past them. The articles are requested in pages
+     * of [PaginatedThread.PAGE_SIZE], so the first poll of a long thread isn't a single response.
+     *
+     * @throws IllegalStateException when the thread isn't tracked.
+     */
+    suspend fun poll(threadId: Int): Response<List<Article>> {
+        val watermark = checkNotNull(watermarks[threadId]) { "Thread $threadId is not tracked" }
+        val response = articlesAfter(threadId, watermark).paginate().call()
+        val articles = response.data?.articles ?: return Response(error = response.error)
+
+        // Articles are filtered as well, in case the thread was polled concurrently.
+        val newArticles = articles.filter { it.id > watermark }.sortedBy { it.id }
+        newArticles.lastOrNull()?.let { advance(threadId, it.id) }
+        return Response(data = newArticles)
+    }
+
+    /**
+     * Polls all tracked threads every [pollInterval] and emits every new article. The watermark of
+     * a thread only moves past an article once it's received by the collector, so articles aren't
+     * lost when the collector is cancelled. Threads that fail to be polled are logged and polled
+     * again the next time. Polling stops when the collector is cancelled.
+     */
+    fun tail(pollInterval: Duration = DEFAULT_POLL_INTERVAL): Flow<ThreadArticle> =
+        channelFlow {
+                while (true) {
+                    pollAll { threadId, article -> send(ThreadArticle(threadId, article)) }
+                    delay(pollInterval)
+                }
+            }
+            .buffer(Channel.RENDEZVOUS)
+
+    /**
+     * Polls all tracked threads concurrently, streaming the articles of each thread a page at a
+     * time and passing every new article to [onArticle] before moving the watermark past it.
+     */
+    private suspend fun pollAll(onArticle: suspend (Int, Article) -> Unit) {
+        val threadIds = watermarks.keys.toList()
+        client.concurrentRequests(threadIds.indices) { index ->
+            val threadId = threadIds[index]
+            // The thread was untracked in the meantime.
+            val watermark = watermarks[threadId] ?: return@concurrentRequests
+
+            try {
+                articlesAfter(threadId, watermark)
+                    .streamArticles()
+                    .filter { it.id > watermark }
+                    .collect { article ->
+                        onArticle(threadId, article)
+                        advance(threadId, article.id)
+                    }
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                Logger.w("Error polling thread $threadId", e)
+            }
+        }
+    }
+
+    /** Returns the paginated request for the articles of [threadId] after [watermark]. */
+    private fun articlesAfter(threadId: Int, watermark: Int) =
+        client.thread(threadId, minArticleId = watermark + 1, minArticleDate = null, count = null)
+
+    /** Moves the watermark of [threadId] to [articleId], unless it's already past it. */
+    private fun advance(threadId: Int, articleId: Int) {
+        watermarks.computeIfPresent(threadId) { _, current -> max(current, articleId) }
+    }
+
+    /** @suppress */
+    companion object {
+        /** The default time between polls of all tracked threads. */
+        val DEFAULT_POLL_INTERVAL = 5.minutes
+    }
+}
+
+/** A new [article] in the thread [threadId], emitted by [ThreadTailer.tail]. */
+data class ThreadArticle(val threadId: Int, val article: Article)
+
+/**
+ * Creates a [ThreadTailer] following threads for new articles through this client.
+ *
+ * @see ThreadTailer
+ */
+fun InstantiableClient.threadTailer() = ThreadTailer(this)
@@ -13,8 +13,6 @@
  */
 package org.audux.bgg.request
 
-import io.ktor.client.request.get
-import io.ktor.client.statement.bodyAsText
 import io.ktor.http.appendPathSegments
 import org.audux.bgg.InstantiableClient
 import org.audux.bgg.common.Constants.PARAM_BUDDIES
@@ -28,7 +26,6 @@ import org.audux.bgg.common.Constants.PATH_USER
 import org.audux.bgg.common.Constants.XML2_API_URL
 import org.audux.bgg.common.Domain
 import org.audux.bgg.common.Inclusion
-import org.audux.bgg.response.Response
 import org.audux.bgg.response.User
 
 /** @see org.audux.bgg.BggClient.user */
@@ -41,19 +38,17 @@ fun InstantiableClient.user(
     domain: Domain?,
     page: Int?,
 ) =
-    PaginatedUser(this, buddies, guilds, top, hot, domain) {
-        client()
-            .get(XML2_API_URL) {
-                url {
-                    appendPathSegments(PATH_USER)
-                    parameters.append(PARAM_NAME, name)
-                    buddies?.let { parameters.append(PARAM_BUDDIES, it.toParam()) }
-                    guilds?.let { parameters.append(PARAM_GUILDS, it.toParam()) }
-                    top?.let { parameters.append(PARAM_TOP, it.toParam()) }
-                    hot?.let { parameters.append(PARAM_HOT, it.toParam()) }
-                    domain?.let { parameters.append(PARAM_DOMAIN, it.param) }
-                    page?.let { parameters.append(PARAM_PAGE, it.toString()) }
-                }
+    PaginatedUser(this, buddies, guilds, domain) {
+        getResponse<User>(XML2_API_URL) {
+            url {
+                appendPathSegments(PATH_USER)
+                parameters.append(PARAM_NAME, name)
+                buddies?.let { parameters.append(PARAM_BUDDIES, it.toParam()) }
+                guilds?.let { parameters.append(PARAM_GUILDS, it.toParam()) }
+                top?.let { parameters.append(PARAM_TOP, it.toParam()) }
+                hot?.let { parameters.append(PARAM_HOT, it.toParam()) }
+                domain?.let { parameters.append(PARAM_DOMAIN, it.param) }
+                page?.let { parameters.append(PARAM_PAGE, it.toString()) }
             }
-            .let { Response.from<User>(it.bodyAsText(), mapper) }
+        }
     }
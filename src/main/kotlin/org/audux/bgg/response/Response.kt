@@ -16,7 +16,12 @@ package org.audux.bgg.response
 import co.touchlab.kermit.Logger
 import com.fasterxml.jackson.core.JacksonException
 import com.fasterxml.jackson.databind.ObjectMapper
-import io.ktor.client.statement.bodyAsText
+import io.ktor.client.statement.HttpResponse
+import io.ktor.client.statement.bodyAsChannel
+import io.ktor.utils.io.jvm.javaio.toInputStream
+import java.io.ByteArrayOutputStream
+import java.io.FilterInputStream
+import java.io.InputStream
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
 
@@ -27,8 +32,15 @@ import kotlinx.coroutines.withContext
  * @param T The type of response for example [User]
  * @property error Contains the response body when the response could not be parsed by [T]
  * @property data Contains the wrapped successful response
+ * @property failedIds Ids of the requested items that are missing from [data] because requesting
+ *   them failed, e.g. for [org.audux.bgg.request.things]. Contains all requested ids when [data]
+ *   is missing.
  */
-data class Response<T>(val error: String? = null, val data: T? = null) {
+data class Response<T>(
+    val error: String? = null,
+    val data: T? = null,
+    val failedIds: List<Int> = listOf(),
+) {
     /** Whether the request was successful or not. */
     fun isSuccess() = error.isNullOrBlank()
 
@@ -36,15 +48,93 @@ data class Response<T>(val error: String? = null, val data: T? = null) {
     fun isError() = !isSuccess()
 
     internal companion object {
-        /** Create a new response from the given response string, using the [mapper]. */
-        suspend inline fun <reified T> from(bodyAsText: String, mapper: ObjectMapper): Response<T> =
+        /**
+         * Create a new response by parsing the body of [response] as [type] using the [mapper]
+         * while it streams in, so it must be called on a streaming response e.g. within
+         * [io.ktor.client.statement.HttpStatement.execute]. The body is never held in memory in
+         * full; when it could not be parsed it's set as the [error], as long as it's no larger
+         * than [ERROR_BODY_LIMIT] bytes.
+         */
+        suspend fun <T> from(
+            response: HttpResponse,
+            mapper: ObjectMapper,
+            type: Class<T>,
+        ): Response<T> =
+            withContext(Dispatchers.IO) {
+                response.bodyAsChannel().toInputStream().use { body ->
+                    val input = ErrorBodyInputStream(body)
+                    try {
+                        Response(data = mapper.readValue(input, type))
+                    } catch (e: JacksonException) {
+                        Logger.i("Error parsing response", e)
+                        Response(
+                            error =
+                                input.fullBody()?.decodeToString()
+                                    ?: "Error parsing response: ${e.originalMessage}"
+                        )
+                    }
+                }
+            }
+
+        /** Create a new response by parsing the raw [body] as [type] using the [mapper]. */
+        suspend fun <T> from(body: ByteArray, mapper: ObjectMapper, type: Class<T>): Response<T> =
             withContext(Dispatchers.Default) {
                 try {
-                    Response(data = mapper.readValue(bodyAsText, T::class.java))
+                    Response(data = mapper.readValue(body, type))
                 } catch (e: JacksonException) {
                     Logger.i("Error parsing response", e)
-                    Response(error = bodyAsText)
+                    Response(error = body.decodeToString())
                 }
             }
     }
 }
+
+/** The maximum size of a response body that is returned as [Response.error]. */
+internal const val ERROR_BODY_LIMIT = 256 * 1024
+
+/**
+ * Passes the bytes read from [input] through while keeping a copy of the first [ERROR_BODY_LIMIT]
+ * bytes, so the body of a response that failed to parse can still be returned as an error. Closing
+ * this stream leaves [input] open, so the remainder of the body can be read after the parser closed
+ * it.
+ */
+private class ErrorBodyInputStream(input: InputStream) : FilterInputStream(input) {
+    private var captured: ByteArrayOutputStream? = ByteArrayOutputStream()
+
+    override fun read(): Int =
+        super.read().also { if (it >= 0) capture(byteArrayOf(it.toByte()), 0, 1) }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int =
+        super.read(b, off, len).also { if (it > 0) capture(b, off, it) }
+
+    override fun skip(n: Long): Long {
+        // Skipped bytes can't be captured.
+        captured = null
+        return super.skip(n)
+    }
+
+    override fun markSupported() = false
+
+    override fun close() {}
+
+    /**
+     * Returns the complete body, i.e. the bytes read so far and the unread remainder, or `null`
+     * when it's larger than [ERROR_BODY_LIMIT].
+     */
+    fun fullBody(): ByteArray? {
+        val head = captured ?: return null
+        val remainder = `in`.readNBytes(ERROR_BODY_LIMIT - head.size() + 1)
+        if (head.size() + remainder.size > ERROR_BODY_LIMIT) return null
+
+        return head.toByteArray() + remainder
+    }
+
+    private fun capture(b: ByteArray, off: Int, len: Int) {
+        val head = captured ?: return
+        if (head.size() + len > ERROR_BODY_LIMIT) {
+            captured = null
+        } else {
+            head.write(b, off, len)
+        }
+    }
+}
@@ -10,9 +10,14 @@ import io.ktor.client.plugins.HttpRequestTimeoutException
 import io.ktor.client.request.get
 import io.ktor.client.statement.bodyAsText
 import io.ktor.http.HttpStatusCode
+import java.util.concurrent.CancellationException
 import java.util.concurrent.CompletableFuture
 import java.util.concurrent.CountDownLatch
+import kotlin.time.Duration.Companion.seconds
+import kotlinx.coroutines.awaitCancellation
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
 import org.audux.bgg.response.Response
 import org.audux.bgg.util.TestUtils
 import org.audux.bgg.util.TestUtils.TEST_AUTH_TOKEN
@@ -201,6 +206,119 @@ class BggClientTest {
         }
     }
 
+    @Nested
+    inner class SharedHttpClient {
+        @Test
+        fun `Reuses the same client for subsequent requests`() = runBlocking {
+            var enginesCreated = 0
+            val engine = setupMockEngine("forum?id=3696796", "forum?id=3696796")
+            BggClient.engine = { engine.also { enginesCreated++ } }
+
+            BggClient.forum(1).call()
+            BggClient.forum(1).call()
+
+            assertThat(engine.requestHistory).hasSize(2)
+            assertThat(enginesCreated).isEqualTo(1)
+        }
+
+        @Test
+        fun `Creates a new client when the configuration changes`() = runBlocking {
+            var enginesCreated = 0
+            BggClient.engine = { setupMockEngine("forum?id=3696796").also { enginesCreated++ } }
+
+            BggClient.forum(1).call()
+            BggClient.configure { maxRetries = 1 }
+            BggClient.forum(1).call()
+
+            assertThat(enginesCreated).isEqualTo(2)
+        }
+
+        @Test
+        fun `Keeps requests created before a configuration change working`() = runBlocking {
+            BggClient.engine = { setupMockEngine("forum?id=3696796") }
+            val request = BggClient.forum(1)
+
+            BggClient.configure { maxRetries = 1 }
+            BggClient.authToken("OtherAuthToken")
+
+            assertThat(request.call().isSuccess()).isTrue()
+        }
+
+        @Test
+        fun `Closes the clients replaced after a configuration change`() {
+            val client = BggClient.client()
+            BggClient.configure { maxRetries = 1 }
+            val replacingClient = BggClient.client()
+
+            BggClient.close()
+
+            assertThat(replacingClient).isNotSameInstanceAs(client)
+            assertThrows<IllegalStateException> { client.client() }
+            assertThrows<IllegalStateException> { replacingClient.client() }
+        }
+
+        @Test
+        fun `Closes a replaced client once its calls completed`() {
+            BggClient.engine = {
+                MockEngine(MockEngineConfig().apply { addHandler(delayedResponse(200)) })
+            }
+            val client = BggClient.client()
+            val response = client.request { Response(data = "Response") }.callAsync()
+            val pending = client.callAsync({ client.client().get("https://boardgamegeek.com/") }) {}
+
+            BggClient.configure { maxRetries = 1 }
+            BggClient.client()
+
+            assertThat(client.isClosed).isFalse()
+            runBlocking {
+                pending.join()
+                withTimeout(1.seconds) { while (!client.isClosed) delay(5) }
+            }
+            assertThat(response.get().data).isEqualTo("Response")
+        }
+
+        @Test
+        fun `Closes an idle replaced client straight away`() {
+            val client = BggClient.client()
+
+            BggClient.configure { maxRetries = 1 }
+            BggClient.client()
+
+            assertThat(client.isClosed).isTrue()
+        }
+
+        @Test
+        fun `Cancels async futures when closed`() {
+            val client =
+                InstantiableClient(authToken, engine = { setupMockEngine("forum?id=3696796") })
+            val future = client.callAsync<String> { awaitCancellation() }
+
+            client.close()
+
+            assertThrows<CancellationException> { future.get() }
+        }
+
+        @Test
+        fun `Cancels async callbacks when closed`() {
+            val client =
+                InstantiableClient(authToken, engine = { setupMockEngine("forum?id=3696796") })
+            val job = client.callAsync({ awaitCancellation() }) {}
+
+            client.close()
+
+            assertThat(job.isCancelled).isTrue()
+        }
+
+        @Test
+        fun `Throws Exception when requesting on a closed client`() {
+            val client =
+                InstantiableClient(authToken, engine = { setupMockEngine("forum?id=3696796") })
+            client.close()
+
+            assertThrows<IllegalStateException> { client.client() }
+        }
+    }
+
     @Nested
     inner class UnknownProperty {
         @Test
@@ -222,6 +340,19 @@ class BggClientTest {
             BggClient.configure { failOnUnknownProperties = true }
         }
 
+        @Test
+        fun `does not return a large body that fails parsing as the error`() = runBlocking {
+            BggClient.configure { failOnUnknownProperties = true }
+            val body =
+                "<items>" + "<item><unkown>Exception</unkown></item>".repeat(10_000) + "</items>"
+            BggClient.engine = { MockEngine { respond(body) } }
+
+            val response = BggClient.things(ids = arrayOf(1)).call()
+
+            assertThat(response.data).isNull()
+            assertThat(response.error).startsWith("Error parsing response: ")
+        }
+
         @Test
         fun `parses an item wih an unknown field`() = runBlocking {
             BggClient.configure { failOnUnknownProperties = false }
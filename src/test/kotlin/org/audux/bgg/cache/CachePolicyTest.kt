@@ -0,0 +1,280 @@
+/**
+ * Copyright 2023-2024 Bram Wijnands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.audux.bgg.cache
+
+import com.google.common.truth.Truth.assertThat
+import io.ktor.client.engine.mock.MockEngine
+import io.ktor.client.engine.mock.MockEngineConfig
+import io.ktor.client.engine.mock.MockRequestHandleScope
+import io.ktor.client.engine.mock.respond
+import io.ktor.http.HttpHeaders
+import io.ktor.http.HttpStatusCode
+import io.ktor.http.Url
+import io.ktor.http.headersOf
+import java.time.Instant
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.hours
+import kotlin.time.Duration.Companion.milliseconds
+import kotlin.time.Duration.Companion.minutes
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import org.audux.bgg.BggClientConfiguration
+import org.audux.bgg.InstantiableClient
+import org.audux.bgg.common.HotListType
+import org.audux.bgg.request.hotList
+import org.audux.bgg.util.TestUtils
+import org.junit.jupiter.api.Nested
+import org.junit.jupiter.api.Test
+
+/** Unit tests for [CachePolicy] and caching responses using a [ResponseCache]. */
+class CachePolicyTest {
+    @Test
+    fun `Determines the time to live per endpoint`() {
+        val policy = CachePolicy()
+
+        assertThat(policy.ttl(Url("$XML2_API/thing?id=1"))).isEqualTo(24.hours)
+        assertThat(policy.ttl(Url("$XML2_API/hot"))).isEqualTo(15.minutes)
+        assertThat(policy.ttl(Url("https://boardgamegeek.com/xmlapi/geeklist/1")))
+            .isEqualTo(1.hours)
+        assertThat(policy.ttl(Url("$XML2_API/collection?username=a"))).isEqualTo(Duration.ZERO)
+    }
+
+    @Test
+    fun `Determines the time to live of sitemap pages`() {
+        val policy = CachePolicy()
+
+        assertThat(policy.ttl(Url("https://boardgamegeek.com/sitemapindex"))).isEqualTo(24.hours)
+        assertThat(policy.ttl(Url("https://boardgamegeek.com/sitemap_geekitems_boardgame_page_1")))
+            .isEqualTo(24.hours)
+        assertThat(
+                policy
+                    .withTtl(CachePolicy.SITEMAP_PAGES, 1.hours)
+                    .ttl(Url("https://boardgamegeek.com/sitemap_geekitems_rpg_page_2"))
+            )
+            .isEqualTo(1.hours)
+    }
+
+    @Test
+    fun `Overrides the time to live of an endpoint`() {
+        val policy = CachePolicy(defaultTtl = 1.minutes).withTtl("hot", 1.hours)
+
+        assertThat(policy.ttl(Url("$XML2_API/hot"))).isEqualTo(1.hours)
+        assertThat(policy.ttl(Url("$XML2_API/unknown"))).isEqualTo(1.minutes)
+    }
+
+    @Nested
+    inner class Caching {
+        private val cache = InMemoryResponseCache()
+
+        @Test
+        fun `Serves responses from the cache`() = runBlocking {
+            val engine = engine { addHotListHandler() }
+            val client = client(engine)
+
+            val response = client.hotList(HotListType.BOARD_GAME).call()
+            val cachedResponse = client.hotList(HotListType.BOARD_GAME).call()
+
+            assertThat(engine.requestHistory).hasSize(1)
+            assertThat(cache.size).isEqualTo(1)
+            assertThat(cachedResponse).isEqualTo(response)
+        }
+
+        @Test
+        fun `Requests expired responses again`() = runBlocking {
+            val engine = engine { repeat(2) { addHotListHandler() } }
+            val client = client(engine, CachePolicy().withTtl("hot", 1.milliseconds))
+
+            client.hotList(HotListType.BOARD_GAME).call()
+            delay(5)
+            client.hotList(HotListType.BOARD_GAME).call()
+
+            assertThat(engine.requestHistory).hasSize(2)
+        }
+
+        @Test
+        fun `Does not cache endpoints without a time to live`() = runBlocking {
+            val engine = engine { repeat(2) { addHotListHandler() } }
+            val client = client(engine, CachePolicy().withTtl("hot", Duration.ZERO))
+
+            repeat(2) { client.hotList(HotListType.BOARD_GAME).call() }
+
+            assertThat(engine.requestHistory).hasSize(2)
+            assertThat(cache.size).isEqualTo(0)
+        }
+
+        @Test
+        fun `Does not cache errors`() = runBlocking {
+            val engine = engine {
+                addHandler { respond("Not XML") }
+                addHotListHandler()
+            }
+            val client = client(engine)
+
+            val error = client.hotList(HotListType.BOARD_GAME).call()
+            val response = client.hotList(HotListType.BOARD_GAME).call()
+
+            assertThat(error.isError()).isTrue()
+            assertThat(response.isSuccess()).isTrue()
+            assertThat(engine.requestHistory).hasSize(2)
+        }
+
+        @Test
+        fun `Does not cache accepted responses`() = runBlocking {
+            val engine = engine {
+                addHandler { respond(HOT_LIST.readAllBytes(), HttpStatusCode.Accepted) }
+                addHotListHandler()
+            }
+            val client = client(engine)
+
+            repeat(2) { client.hotList(HotListType.BOARD_GAME).call() }
+
+            assertThat(engine.requestHistory).hasSize(2)
+        }
+
+        @Test
+        fun `Revalidates expired responses with validators`() = runBlocking {
+            val engine = engine {
+                addHandler { respondWithHotList(HttpHeaders.ETag, "\"v1\"") }
+                addHandler { respond("", HttpStatusCode.NotModified) }
+            }
+            val client = client(engine, CachePolicy().withTtl("hot", 1.milliseconds))
+
+            val response = client.hotList(HotListType.BOARD_GAME).call()
+            delay(5)
+            val revalidatedResponse = client.hotList(HotListType.BOARD_GAME).call()
+
+            assertThat(engine.requestHistory).hasSize(2)
+            assertThat(engine.requestHistory[0].headers[HttpHeaders.IfNoneMatch]).isNull()
+            assertThat(engine.requestHistory[1].headers[HttpHeaders.IfNoneMatch])
+                .isEqualTo("\"v1\"")
+            // The parsed response is reused as is.
+            assertThat(revalidatedResponse.data).isSameInstanceAs(response.data)
+            assertThat(client.cacheStatistics.misses).isEqualTo(1)
+            assertThat(client.cacheStatistics.notModified).isEqualTo(1)
+            assertThat(client.cacheStatistics.bytesSaved).isGreaterThan(0)
+            assertThat(cache.get(HOT_LIST_KEY)?.isExpired()).isFalse()
+        }
+
+        @Test
+        fun `Replaces revalidated responses that were modified`() = runBlocking {
+            val engine = engine {
+                addHandler { respondWithHotList(HttpHeaders.LastModified, DATE) }
+                addHandler { respondWithHotList(HttpHeaders.ETag, "\"v2\"") }
+            }
+            val client = client(engine, CachePolicy().withTtl("hot", 1.milliseconds))
+
+            client.hotList(HotListType.BOARD_GAME).call()
+            delay(5)
+            val response = client.hotList(HotListType.BOARD_GAME).call()
+
+            assertThat(engine.requestHistory[1].headers[HttpHeaders.IfModifiedSince])
+                .isEqualTo(DATE)
+            assertThat(response.isSuccess()).isTrue()
+            assertThat(client.cacheStatistics.misses).isEqualTo(2)
+            assertThat(client.cacheStatistics.notModified).isEqualTo(0)
+            assertThat(cache.get(HOT_LIST_KEY)?.etag).isEqualTo("\"v2\"")
+        }
+
+        @Test
+        fun `Requests corrupted responses in full instead of revalidating them`() = runBlocking {
+            val now = Instant.now()
+            cache.put(
+                HOT_LIST_KEY,
+                CachedResponse(
+                    "Not XML".toByteArray(),
+                    storedAt = now,
+                    expiresAt = now.plusSeconds(60),
+                    etag = "\"v1\"",
+                ),
+            )
+            val engine = engine {
+                addHandler {
+                    if (it.headers.contains(HttpHeaders.IfNoneMatch)) {
+                        respond("", HttpStatusCode.NotModified)
+                    } else {
+                        respondWithHotList(HttpHeaders.ETag, "\"v2\"")
+                    }
+                }
+            }
+            val client = client(engine)
+
+            val response = client.hotList(HotListType.BOARD_GAME).call()
+
+            assertThat(response.isSuccess()).isTrue()
+            assertThat(engine.requestHistory).hasSize(1)
+            assertThat(engine.requestHistory[0].headers[HttpHeaders.IfNoneMatch]).isNull()
+            assertThat(cache.get(HOT_LIST_KEY)?.etag).isEqualTo("\"v2\"")
+        }
+
+        @Test
+        fun `Requests revalidated responses in full when they can no longer be parsed`() =
+            runBlocking {
+                val now = Instant.now()
+                cache.put(
+                    HOT_LIST_KEY,
+                    CachedResponse(
+                        "Not XML".toByteArray(),
+                        storedAt = now.minusSeconds(60),
+                        expiresAt = now.minusSeconds(1),
+                        etag = "\"v1\"",
+                    ),
+                )
+                val engine = engine {
+                    addHandler { respond("", HttpStatusCode.NotModified) }
+                    addHandler { respondWithHotList(HttpHeaders.ETag, "\"v2\"") }
+                }
+                val client = client(engine)
+
+                val response = client.hotList(HotListType.BOARD_GAME).call()
+
+                assertThat(response.isSuccess()).isTrue()
+                assertThat(engine.requestHistory).hasSize(2)
+                assertThat(engine.requestHistory[0].headers[HttpHeaders.IfNoneMatch])
+                    .isEqualTo("\"v1\"")
+                assertThat(engine.requestHistory[1].headers[HttpHeaders.IfNoneMatch]).isNull()
+                assertThat(client.cacheStatistics.notModified).isEqualTo(0)
+                assertThat(cache.get(HOT_LIST_KEY)?.etag).isEqualTo("\"v2\"")
+            }
+
+        private fun client(engine: MockEngine, cachePolicy: CachePolicy = CachePolicy()) =
+            InstantiableClient(
+                TestUtils.TEST_AUTH_TOKEN,
+                engine = { engine },
+                configuration =
+                    BggClientConfiguration(
+                        maxRetries = 0,
+                        responseCache = cache,
+                        cachePolicy = cachePolicy,
+                    ),
+            )
+
+        private fun engine(block: MockEngineConfig.() -> Unit) =
+            MockEngine(MockEngineConfig().apply(block))
+
+        private fun MockEngineConfig.addHotListHandler() =
+            addHandler { respond(HOT_LIST.readAllBytes()) }
+
+        private fun MockRequestHandleScope.respondWithHotList(header: String, value: String) =
+            respond(HOT_LIST.readAllBytes(), headers = headersOf(header, value))
+    }
+
+    private companion object {
+        const val XML2_API = "https://boardgamegeek.com/xmlapi2"
+        const val HOT_LIST_KEY = "https://boardgamegeek.com:443/xmlapi2/hot?type=boardgame"
+        const val DATE = "Wed, 21 Oct 2015 07:28:00 GMT"
+
+        val HOT_LIST
+            get() = TestUtils.xml("hot?type=boardgame")
+    }
+}
@@ -0,0 +1,270 @@
+/**
+ * Copyright 2023-2024 Bram Wijnands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.audux.bgg.cache
+
+import com.google.common.truth.Truth.assertThat
+import io.ktor.client.engine.mock.MockEngine
+import io.ktor.client.engine.mock.MockEngineConfig
+import io.ktor.client.engine.mock.respond
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption.APPEND
+import java.time.Instant
+import java.time.temporal.ChronoUnit
+import kotlin.io.path.listDirectoryEntries
+import kotlin.io.path.writeBytes
+import kotlin.random.Random
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.days
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.runBlocking
+import org.audux.bgg.BggClientConfiguration
+import org.audux.bgg.InstantiableClient
+import org.audux.bgg.common.HotListType
+import org.audux.bgg.request.hotList
+import org.audux.bgg.util.TestUtils
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+
+/** Unit tests for [DiskResponseCache]. */
+class DiskResponseCacheTest {
+    @TempDir lateinit var directory: Path
+
+    private val caches = mutableListOf<DiskResponseCache>()
+
+    @AfterEach
+    fun closeCaches() {
+        caches.forEach { it.close() }
+    }
+
+    @Test
+    fun `Returns cached responses`() {
+        val cache = cache()
+        val response = response("<items/>")
+
+        cache.put("a", response)
+
+        val cached = cache.get("a")!!
+        assertThat(cached.body.decodeToString()).isEqualTo("<items/>")
+        assertThat(cached.storedAt).isEqualTo(response.storedAt)
+        assertThat(cached.expiresAt).isEqualTo(response.expiresAt)
+        assertThat(cache.get("b")).isNull()
+    }
+
+    @Test
+    fun `Keeps cached responses after reopening`() {
+        cache().apply {
+            put("a", response("a"))
+            put("b", response("b"))
+            put("a", response("c"))
+            invalidate("b")
+            close()
+        }
+
+        val cache = cache()
+
+        assertThat(cache.size).isEqualTo(1)
+        assertThat(cache.get("a")?.body?.decodeToString()).isEqualTo("c")
+        assertThat(cache.get("b")).isNull()
+    }
+
+    @Test
+    fun `Keeps validators of cached responses`() {
+        val now = Instant.now()
+        cache().apply {
+            put("a", CachedResponse("a".toByteArray(), now, now, etag = "\"v1\""))
+            put("b", CachedResponse("b".toByteArray(), now, now, lastModified = LAST_MODIFIED))
+            close()
+        }
+
+        val cache = cache()
+
+        assertThat(cache.get("a")?.etag).isEqualTo("\"v1\"")
+        assertThat(cache.get("a")?.lastModified).isNull()
+        assertThat(cache.get("b")?.etag).isNull()
+        assertThat(cache.get("b")?.lastModified).isEqualTo(LAST_MODIFIED)
+        assertThat(cache.get("b")?.body?.decodeToString()).isEqualTo("b")
+    }
+
+    @Test
+    fun `Starts new segments once a segment is full`() {
+        val cache = cache(maxSegmentSize = 100)
+
+        (1..3).forEach { cache.put("$it", response("$it")) }
+
+        assertThat(directory.listDirectoryEntries()).hasSize(3)
+        assertThat((1..3).map { cache.get("$it")?.body?.decodeToString() })
+            .containsExactly("1", "2", "3")
+            .inOrder()
+    }
+
+    @Test
+    fun `Truncates incomplete records when reopening`() {
+        cache().apply {
+            put("a", response("a"))
+            close()
+        }
+        directory.listDirectoryEntries().single().writeBytes(byteArrayOf(0x42, 0x47), APPEND)
+
+        val cache = cache()
+        cache.put("b", response("b"))
+
+        assertThat(cache.get("a")?.body?.decodeToString()).isEqualTo("a")
+        assertThat(cache.get("b")?.body?.decodeToString()).isEqualTo("b")
+    }
+
+    @Test
+    fun `Compacts overwritten responses`() {
+        val cache = cache()
+
+        repeat(30) { cache.put("a", response(Random.nextBytes(100_000))) }
+
+        assertThat(cache.size).isEqualTo(1)
+        assertThat(cache.sizeOnDisk).isLessThan(1024 * 1024)
+    }
+
+    @Test
+    fun `Removes expired responses when compacting`() {
+        val cache = cache()
+        val now = Instant.now()
+        cache.put("expired", CachedResponse("a".toByteArray(), now, now.minusSeconds(1)))
+        cache.put("fresh", response("b"))
+
+        cache.compact()
+
+        assertThat(cache.get("expired")).isNull()
+        assertThat(cache.get("fresh")).isNotNull()
+        assertThat(directory.listDirectoryEntries()).hasSize(1)
+    }
+
+    @Test
+    fun `Keeps expired responses with validators when compacting`() {
+        val cache = cache()
+        val now = Instant.now()
+        cache.put(
+            "revalidate",
+            CachedResponse("a".toByteArray(), now, now.minusSeconds(1), etag = "\"v1\""),
+        )
+
+        cache.compact()
+
+        assertThat(cache.get("revalidate")?.etag).isEqualTo("\"v1\"")
+    }
+
+    @Test
+    fun `Removes expired responses with validators after their retention when compacting`() {
+        val cache = cache(validatedRetention = 1.days)
+        val now = Instant.now()
+        cache.put("recent", CachedResponse("a".toByteArray(), now, now, etag = "\"v1\""))
+        cache.put(
+            "old",
+            CachedResponse("b".toByteArray(), now, now.minus(2, ChronoUnit.DAYS), etag = "\"v1\""),
+        )
+
+        cache.compact()
+
+        assertThat(cache.get("recent")).isNotNull()
+        assertThat(cache.get("old")).isNull()
+    }
+
+    @Test
+    fun `Evicts the least recently stored responses once the maximum size is exceeded`() {
+        val cache = cache(maximumSize = 1_000_000)
+        val now = Instant.now()
+        val expiresAt = now.plusSeconds(60)
+
+        (1..15).forEach {
+            val storedAt = now.plusMillis(it.toLong())
+            cache.put("$it", CachedResponse(Random.nextBytes(100_000), storedAt, expiresAt))
+        }
+
+        assertThat(cache.sizeOnDisk).isAtMost(1_000_000)
+        assertThat(cache.get("1")).isNull()
+        assertThat(cache.get("15")).isNotNull()
+    }
+
+    @Test
+    fun `Invalidates all responses`() {
+        val cache = cache()
+        cache.put("a", response("a"))
+
+        cache.invalidateAll()
+
+        assertThat(cache.get("a")).isNull()
+        assertThat(cache.sizeOnDisk).isEqualTo(0)
+    }
+
+    @Test
+    fun `Supports concurrent access`() = runBlocking {
+        val cache = cache(maxSegmentSize = 1_000)
+
+        (1..100)
+            .map { key ->
+                async(Dispatchers.IO) {
+                    cache.put("$key", response("$key"))
+                    cache.get("$key")
+                }
+            }
+            .awaitAll()
+
+        assertThat((1..100).map { cache.get("$it")?.body?.decodeToString() })
+            .containsExactlyElementsIn((1..100).map { "$it" })
+            .inOrder()
+    }
+
+    @Test
+    fun `Serves responses cached before a restart`() = runBlocking {
+        val engine =
+            MockEngine(
+                MockEngineConfig().apply {
+                    addHandler { respond(TestUtils.xml("hot?type=boardgame").readAllBytes()) }
+                }
+            )
+
+        client(engine, cache()).hotList(HotListType.BOARD_GAME).call()
+        caches.last().close()
+        val response = client(engine, cache()).hotList(HotListType.BOARD_GAME).call()
+
+        assertThat(engine.requestHistory).hasSize(1)
+        assertThat(response.data?.results).isNotEmpty()
+    }
+
+    private fun client(engine: MockEngine, cache: ResponseCache) =
+        InstantiableClient(
+            TestUtils.TEST_AUTH_TOKEN,
+            engine = { engine },
+            configuration = BggClientConfiguration(responseCache = cache),
+        )
+
+    private fun cache(
+        maxSegmentSize: Long = DiskResponseCache.DEFAULT_MAX_SEGMENT_SIZE,
+        maximumSize: Long = DiskResponseCache.DEFAULT_MAXIMUM_SIZE,
+        validatedRetention: Duration = DiskResponseCache.DEFAULT_VALIDATED_RETENTION,
+    ) =
+        DiskResponseCache(directory, maxSegmentSize, Duration.ZERO, maximumSize, validatedRetention)
+            .also { caches.add(it) }
+
+    private fun response(body: String) = response(body.toByteArray())
+
+    private fun response(body: ByteArray) =
+        Instant.now().truncatedTo(ChronoUnit.MILLIS).let {
+            CachedResponse(body, it, it.plusSeconds(60))
+        }
+
+    private companion object {
+        const val LAST_MODIFIED = "Wed, 21 Oct 2015 07:28:00 GMT"
+    }
+}
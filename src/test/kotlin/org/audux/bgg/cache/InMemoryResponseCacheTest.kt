@@ -0,0 +1,151 @@
+/**
+ * Copyright 2023-2024 Bram Wijnands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.audux.bgg.cache
+
+import com.google.common.truth.Truth.assertThat
+import java.time.Instant
+import org.audux.bgg.response.Response
+import org.junit.jupiter.api.Nested
+import org.junit.jupiter.api.Test
+
+/** Unit tests for [InMemoryResponseCache] and [FrequencySketch]. */
+class InMemoryResponseCacheTest {
+    private val cache = InMemoryResponseCache(maximumWeight = 10_000)
+
+    @Test
+    fun `Returns cached responses`() {
+        val response = response()
+
+        cache.put("a", response)
+
+        assertThat(cache.get("a")).isSameInstanceAs(response)
+        assertThat(cache.get("b")).isNull()
+    }
+
+    @Test
+    fun `Replaces cached responses`() {
+        val response = response(size = 500)
+
+        cache.put("a", response())
+        cache.put("a", response)
+
+        assertThat(cache.get("a")).isSameInstanceAs(response)
+        assertThat(cache.size).isEqualTo(1)
+        assertThat(cache.weight).isEqualTo(InMemoryResponseCache.weigh("a", response))
+    }
+
+    @Test
+    fun `Weighs parsed responses kept alongside the body`() {
+        val response = response()
+        val parsedResponse = response().also { it.parsed = Response(data = Unit) }
+
+        assertThat(InMemoryResponseCache.weigh("a", parsedResponse))
+            .isGreaterThan(InMemoryResponseCache.weigh("a", response) + 1_000)
+    }
+
+    @Test
+    fun `Invalidates cached responses`() {
+        cache.put("a", response())
+        cache.put("b", response())
+
+        cache.invalidate("a")
+        assertThat(cache.get("a")).isNull()
+        assertThat(cache.get("b")).isNotNull()
+
+        cache.invalidateAll()
+        assertThat(cache.get("b")).isNull()
+        assertThat(cache.weight).isEqualTo(0)
+    }
+
+    @Test
+    fun `Stays within the maximum weight`() {
+        (1..50).forEach { cache.put("$it", response()) }
+
+        assertThat(cache.weight).isAtMost(10_000)
+        assertThat(cache.size).isEqualTo(8)
+    }
+
+    @Test
+    fun `Does not cache responses heavier than the maximum weight`() {
+        cache.put("a", response(size = 10_000))
+
+        assertThat(cache.get("a")).isNull()
+        assertThat(cache.weight).isEqualTo(0)
+    }
+
+    @Test
+    fun `Keeps popular responses over one-off responses`() {
+        cache.put("popular", response())
+        repeat(5) { cache.get("popular") }
+
+        (1..50).forEach { cache.put("$it", response()) }
+
+        assertThat(cache.get("popular")).isNotNull()
+    }
+
+    @Test
+    fun `Admits responses that are more popular than the least recently used`() {
+        ('a'..'h').forEach { cache.put("$it", response()) }
+        repeat(3) { cache.get("x") }
+
+        cache.put("x", response())
+
+        assertThat(cache.get("x")).isNotNull()
+        assertThat(cache.get("a")).isNull()
+        assertThat(cache.get("b")).isNotNull()
+    }
+
+    @Test
+    fun `Expires responses`() {
+        val now = Instant.now()
+
+        assertThat(CachedResponse(ByteArray(0), now, now.plusSeconds(1)).isExpired(now)).isFalse()
+        assertThat(CachedResponse(ByteArray(0), now, now).isExpired(now)).isTrue()
+    }
+
+    @Nested
+    inner class Sketch {
+        @Test
+        fun `Counts how often keys are seen`() {
+            val sketch = FrequencySketch(expectedEntries = 100)
+
+            repeat(3) { sketch.increment("a") }
+
+            assertThat(sketch.frequency("a")).isEqualTo(3)
+            assertThat(sketch.frequency("b")).isEqualTo(0)
+        }
+
+        @Test
+        fun `Caps frequencies at 15`() {
+            val sketch = FrequencySketch(expectedEntries = 100)
+
+            repeat(20) { sketch.increment("a") }
+
+            assertThat(sketch.frequency("a")).isEqualTo(15)
+        }
+
+        @Test
+        fun `Ages frequencies once the sample size is reached`() {
+            val sketch = FrequencySketch(expectedEntries = 16)
+            repeat(15) { sketch.increment("a") }
+
+            (0 until 200).forEach { sketch.increment("key-$it") }
+
+            assertThat(sketch.frequency("a")).isLessThan(15)
+        }
+    }
+
+    private fun response(size: Int = 1_000) =
+        Instant.now().let { CachedResponse(ByteArray(size), it, it.plusSeconds(60)) }
+}
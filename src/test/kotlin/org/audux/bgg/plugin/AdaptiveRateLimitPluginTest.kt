@@ -0,0 +1,150 @@
+/**
+ * Copyright 2023-2024 Bram Wijnands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.audux.bgg.plugin
+
+import com.google.common.truth.Truth.assertThat
+import io.ktor.client.engine.mock.MockEngine
+import io.ktor.client.engine.mock.MockEngineConfig
+import io.ktor.client.engine.mock.respond
+import io.ktor.client.request.get
+import io.ktor.http.HttpHeaders
+import io.ktor.http.HttpStatusCode
+import io.ktor.http.headersOf
+import kotlin.time.Duration.Companion.seconds
+import kotlinx.coroutines.runBlocking
+import org.audux.bgg.BggClientConfiguration
+import org.audux.bgg.InstantiableClient
+import org.audux.bgg.util.TestUtils.TEST_AUTH_TOKEN
+import org.junit.jupiter.api.Nested
+import org.junit.jupiter.api.Test
+
+/** Tests for [AdaptiveRateLimitPlugin] and [AdaptiveRateController]. */
+class AdaptiveRateLimitPluginTest {
+    private var now = 0L
+
+    @Nested
+    inner class Controller {
+        @Test
+        fun `Does not delay requests at the full rate`() {
+            val controller = AdaptiveRateController(10, 1.seconds) { now }
+
+            assertThat((1..3).map { controller.reserve() }).containsExactly(0L, 0L, 0L)
+        }
+
+        @Test
+        fun `Halves the rate and spaces out requests when throttled`() {
+            val controller = AdaptiveRateController(10, 1.seconds) { now }
+
+            controller.onThrottled(retryAfter = null)
+
+            assertThat(controller.effectiveRate).isEqualTo(5.0)
+            assertThat((1..3).map { controller.reserve() })
+                .containsExactly(0L, 200_000_000L, 400_000_000L)
+                .inOrder()
+        }
+
+        @Test
+        fun `Decreases the rate once for a burst of throttled requests`() {
+            val controller = AdaptiveRateController(10, 1.seconds) { now }
+
+            repeat(3) { controller.onThrottled(retryAfter = null) }
+            assertThat(controller.effectiveRate).isEqualTo(5.0)
+
+            now += 1.seconds.inWholeNanoseconds
+            controller.onThrottled(retryAfter = null)
+            assertThat(controller.effectiveRate).isEqualTo(2.5)
+        }
+
+        @Test
+        fun `Pauses requests for Retry-After`() {
+            val controller = AdaptiveRateController(10, 1.seconds) { now }
+
+            controller.onThrottled(retryAfter = 5.seconds)
+
+            assertThat(controller.reserve()).isEqualTo(5.seconds.inWholeNanoseconds)
+        }
+
+        @Test
+        fun `Gradually recovers up to the request limit`() {
+            val controller = AdaptiveRateController(100, 1.seconds) { now }
+            controller.onThrottled(retryAfter = null)
+
+            controller.onSuccess()
+            assertThat(controller.effectiveRate).isEqualTo(55.0)
+
+            repeat(20) { controller.onSuccess() }
+            assertThat(controller.effectiveRate).isEqualTo(100.0)
+        }
+
+        @Test
+        fun `Parses Retry-After seconds and dates`() {
+            assertThat(AdaptiveRateController.parseRetryAfter("120")).isEqualTo(120.seconds)
+            assertThat(AdaptiveRateController.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT"))
+                .isEqualTo(0.seconds)
+            assertThat(AdaptiveRateController.parseRetryAfter("soon")).isNull()
+        }
+    }
+
+    @Test
+    fun `Lowers the effective rate on 429 responses`() = runBlocking {
+        val registry = ThrottleRegistry()
+        val client =
+            InstantiableClient(
+                TEST_AUTH_TOKEN,
+                engine = {
+                    MockEngine(
+                        MockEngineConfig().apply {
+                            addHandler {
+                                respond(
+                                    "Slow down",
+                                    HttpStatusCode.TooManyRequests,
+                                    headersOf(HttpHeaders.RetryAfter, "0"),
+                                )
+                            }
+                            addHandler { respond("OK") }
+                        }
+                    )
+                },
+                configuration =
+                    BggClientConfiguration(
+                        maxRetries = 0,
+                        adaptiveRateLimiting = true,
+                        throttleRegistry = registry,
+                    ),
+            )
+
+        runCatching { client.client().get("https://boardgamegeek.com/") }
+        assertThat(registry.effectiveRequestRate(TEST_AUTH_TOKEN, "boardgamegeek.com"))
+            .isEqualTo(30.0)
+
+        client.client().get("https://boardgamegeek.com/")
+        assertThat(registry.effectiveRequestRate(TEST_AUTH_TOKEN, "boardgamegeek.com"))
+            .isEqualTo(33.0)
+    }
+
+    @Test
+    fun `Does not track the rate when disabled`() = runBlocking {
+        val registry = ThrottleRegistry()
+        val client =
+            InstantiableClient(
+                TEST_AUTH_TOKEN,
+                engine = { MockEngine(MockEngineConfig().apply { addHandler { respond("OK") } }) },
+                configuration = BggClientConfiguration(throttleRegistry = registry),
+            )
+
+        client.client().get("https://boardgamegeek.com/")
+
+        assertThat(registry.effectiveRequestRate(TEST_AUTH_TOKEN, "boardgamegeek.com")).isNull()
+    }
+}
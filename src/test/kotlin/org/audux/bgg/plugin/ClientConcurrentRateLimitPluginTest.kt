@@ -19,10 +19,13 @@ import io.ktor.client.engine.mock.MockEngine
 import io.ktor.client.engine.mock.MockEngineConfig
 import io.ktor.client.plugins.api.createClientPlugin
 import io.ktor.client.request.get
+import io.ktor.client.request.prepareGet
+import kotlin.time.Duration.Companion.seconds
 import kotlinx.coroutines.Job
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
 import org.audux.bgg.util.TestUtils.delayedResponse
 import org.junit.jupiter.api.Test
 
@@ -90,6 +93,58 @@ class ClientConcurrentRateLimitPluginTest {
         assertAllJobsAre(jobs) { isCompleted }
     }
 
+    @Test
+    fun `Exposes the number of queued requests`() {
+        val client = createClient(requestLimit = 1) { repeat(3) { addHandler(delayedResponse()) } }
+
+        runBlocking {
+            val jobs = (1..3).map { launch { client.get("/") } }
+
+            // Minor delay to ensure client.get calls are done
+            delay(2)
+
+            // Ensure 1 request is in-flight and 2 are queued.
+            assertThat(requestLimiter.inFlightRequests.get()).isEqualTo(1)
+            assertThat(requestLimiter.queueDepth).isEqualTo(2)
+
+            jobs.forEach { it.join() }
+            assertThat(requestLimiter.queueDepth).isEqualTo(0)
+        }
+    }
+
+    @Test
+    fun `Sends queued requests in order of arrival`() {
+        val client = createClient(requestLimit = 1) { repeat(5) { addHandler(delayedResponse()) } }
+
+        runBlocking { (1..5).map { launch { client.get("/$it") } }.forEach { it.join() } }
+
+        val engine = client.engine as MockEngine
+        assertThat(engine.requestHistory.map { it.url.encodedPath })
+            .containsExactly("/1", "/2", "/3", "/4", "/5")
+            .inOrder()
+    }
+
+    @Test
+    fun `Sends queued requests while the permit of an in-flight request is released`() {
+        val client = createClient(requestLimit = 1) { repeat(2) { addHandler(delayedResponse()) } }
+
+        runBlocking {
+            withTimeout(5.seconds) {
+                client.prepareGet("/1").execute { response ->
+                    response.call.attributes[ConcurrentRequestPermit].released { client.get("/2") }
+
+                    // The permit is held again once the queued request completed.
+                    assertThat(requestLimiter.inFlightRequests.get()).isEqualTo(1)
+                }
+            }
+        }
+
+        val engine = client.engine as MockEngine
+        assertThat(engine.requestHistory.map { it.url.encodedPath })
+            .containsExactly("/1", "/2")
+            .inOrder()
+    }
+
     @Test
     fun `Enqueues incoming requests that would exceed the concurrent requests limit even for different clients`() {
         val clients =
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2023-2024 Bram Wijnands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.audux.bgg.plugin
+
+import com.google.common.truth.Truth.assertThat
+import kotlin.time.Duration.Companion.milliseconds
+import kotlin.time.Duration.Companion.seconds
+import org.junit.jupiter.api.Nested
+import org.junit.jupiter.api.Test
+
+/** Tests for [TokenBucketRequestLimiter] and [GcraRequestLimiter]. */
+class RateLimitStrategiesTest {
+    private var now = 0L
+
+    @Nested
+    inner class TokenBucket {
+        @Test
+        fun `Allows a burst of requests without delay`() {
+            val limiter = TokenBucketRequestLimiter(10, 1.seconds, burst = 3) { now }
+
+            assertThat((1..3).map { limiter.reserve() }).containsExactly(0L, 0L, 0L)
+        }
+
+        @Test
+        fun `Spaces out requests exceeding the burst`() {
+            val limiter = TokenBucketRequestLimiter(10, 1.seconds, burst = 1) { now }
+
+            assertThat((1..3).map { limiter.reserve() })
+                .containsExactly(
+                    0L,
+                    100.milliseconds.inWholeNanoseconds,
+                    200.milliseconds.inWholeNanoseconds,
+                )
+                .inOrder()
+        }
+
+        @Test
+        fun `Refills tokens over time up to the burst`() {
+            val limiter = TokenBucketRequestLimiter(10, 1.seconds, burst = 2) { now }
+            repeat(2) { limiter.reserve() }
+
+            now += 10.seconds.inWholeNanoseconds
+
+            assertThat(limiter.tokens).isEqualTo(0.0)
+            assertThat((1..3).map { limiter.reserve() })
+                .containsExactly(0L, 0L, 100.milliseconds.inWholeNanoseconds)
+                .inOrder()
+        }
+    }
+
+    @Nested
+    inner class Gcra {
+        @Test
+        fun `Allows a burst of requests without delay`() {
+            val limiter = GcraRequestLimiter(10, 1.seconds, burst = 3) { now }
+
+            assertThat((1..3).map { limiter.reserve() }).containsExactly(0L, 0L, 0L)
+        }
+
+        @Test
+        fun `Spaces out requests exceeding the burst evenly`() {
+            val limiter = GcraRequestLimiter(10, 1.seconds, burst = 2) { now }
+
+            assertThat((1..4).map { limiter.reserve() })
+                .containsExactly(
+                    0L,
+                    0L,
+                    100.milliseconds.inWholeNanoseconds,
+                    200.milliseconds.inWholeNanoseconds,
+                )
+                .inOrder()
+        }
+
+        @Test
+        fun `Does not delay requests once the theoretical arrival time has passed`() {
+            val limiter = GcraRequestLimiter(10, 1.seconds, burst = 1) { now }
+            repeat(5) { limiter.reserve() }
+
+            now += 1.seconds.inWholeNanoseconds
+
+            assertThat(limiter.reserve()).isEqualTo(0L)
+            assertThat(limiter.reserve()).isEqualTo(100.milliseconds.inWholeNanoseconds)
+        }
+    }
+}
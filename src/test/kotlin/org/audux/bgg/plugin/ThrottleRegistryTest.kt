@@ -0,0 +1,197 @@
+/**
+ * Copyright 2023-2024 Bram Wijnands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.audux.bgg.plugin
+
+import com.google.common.truth.Truth.assertThat
+import io.ktor.client.engine.mock.MockEngine
+import io.ktor.client.engine.mock.MockEngineConfig
+import io.ktor.client.request.get
+import kotlin.time.Duration.Companion.milliseconds
+import kotlin.time.Duration.Companion.seconds
+import kotlin.time.measureTime
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import org.audux.bgg.BggClientConfiguration
+import org.audux.bgg.InstantiableClient
+import org.audux.bgg.util.TestUtils.TEST_AUTH_TOKEN
+import org.audux.bgg.util.TestUtils.delayedResponse
+import org.audux.bgg.util.TestUtils.instantResponse
+import org.junit.jupiter.api.Test
+
+/** Tests for [ThrottleRegistry]. */
+class ThrottleRegistryTest {
+    private val registry = ThrottleRegistry()
+
+    @Test
+    fun `Returns the same limiters for the same auth token and host`() {
+        assertThat(registry.concurrentRequestLimiter("token", "boardgamegeek.com", 10))
+            .isSameInstanceAs(registry.concurrentRequestLimiter("token", "boardgamegeek.com", 10))
+        assertThat(registry.requestLimiter("token", "boardgamegeek.com", 60, 60.seconds))
+            .isSameInstanceAs(registry.requestLimiter("token", "boardgamegeek.com", 60, 60.seconds))
+    }
+
+    @Test
+    fun `Returns different limiters for different auth tokens or hosts`() {
+        val limiter = registry.concurrentRequestLimiter("token", "boardgamegeek.com", 10)
+
+        assertThat(registry.concurrentRequestLimiter("other", "boardgamegeek.com", 10))
+            .isNotSameInstanceAs(limiter)
+        assertThat(registry.concurrentRequestLimiter("token", "rpggeek.com", 10))
+            .isNotSameInstanceAs(limiter)
+    }
+
+    @Test
+    fun `Keeps a single limiter for different limits`() {
+        val concurrentLimiter = registry.concurrentRequestLimiter("token", "boardgamegeek.com", 10)
+        val limiter = registry.requestLimiter("token", "boardgamegeek.com", 60, 60.seconds)
+
+        assertThat(registry.concurrentRequestLimiter("token", "boardgamegeek.com", 5))
+            .isSameInstanceAs(concurrentLimiter)
+        assertThat(registry.concurrentRequestLimiter("token", "boardgamegeek.com", 20))
+            .isSameInstanceAs(concurrentLimiter)
+        assertThat(registry.requestLimiter("token", "boardgamegeek.com", 30, 60.seconds))
+            .isSameInstanceAs(limiter)
+        assertThat(
+                registry.requestLimiter(
+                    "token",
+                    "boardgamegeek.com",
+                    30,
+                    60.seconds,
+                    RateLimitStrategy.GCRA,
+                )
+            )
+            .isSameInstanceAs(limiter)
+    }
+
+    @Test
+    fun `Holds clients with different strategies to the same rate limit`() = runBlocking {
+        val clients =
+            listOf(RateLimitStrategy.FIXED_WINDOW, RateLimitStrategy.GCRA).map {
+                InstantiableClient(
+                    TEST_AUTH_TOKEN,
+                    engine = {
+                        MockEngine(
+                            MockEngineConfig().apply { repeat(2) { addHandler(instantResponse()) } }
+                        )
+                    },
+                    configuration =
+                        BggClientConfiguration(
+                            requestsPerWindowLimit = 2,
+                            requestWindowSize = 500.milliseconds,
+                            rateLimitStrategy = it,
+                            throttleRegistry = registry,
+                        ),
+                )
+            }
+
+        // Alternate between the clients, 4 requests need at least 2 windows of 2 requests.
+        val elapsed = measureTime {
+            repeat(2) { clients.forEach { it.client().get("https://boardgamegeek.com/") } }
+        }
+
+        assertThat(elapsed.inWholeMilliseconds).isAtLeast(500)
+        clients.forEach { it.close() }
+    }
+
+    @Test
+    fun `Shares the concurrent request limit between clients with different limits`() =
+        runBlocking {
+            val engine = { MockEngine(MockEngineConfig().apply { addHandler(delayedResponse()) }) }
+            val clients =
+                listOf(3, 2).map {
+                    InstantiableClient(
+                        TEST_AUTH_TOKEN,
+                        engine = engine,
+                        configuration =
+                            BggClientConfiguration(
+                                maxConcurrentRequests = it,
+                                throttleRegistry = registry,
+                            ),
+                    )
+                }
+
+            val jobs =
+                clients.flatMap { client ->
+                    (1..2).map { launch { client.client().get("https://boardgamegeek.com/") } }
+                }
+            delay(5)
+
+            // The budgets don't add up, both clients are held to the lowest limit of 2.
+            val limiter = registry.concurrentRequestLimiter(TEST_AUTH_TOKEN, "boardgamegeek.com", 2)
+            assertThat(limiter.inFlightRequests.get()).isEqualTo(2)
+            assertThat(registry.queueDepth(TEST_AUTH_TOKEN, "boardgamegeek.com")).isEqualTo(2)
+
+            jobs.forEach { it.join() }
+            clients.forEach { it.close() }
+        }
+
+    @Test
+    fun `Applies a new configuration of the BggClient straight away`() = runBlocking {
+        val engine = { MockEngine(MockEngineConfig().apply { addHandler(delayedResponse()) }) }
+        val client = InstantiableClient(TEST_AUTH_TOKEN, engine = engine)
+        client.client().get("https://boardgamegeek.com/")
+
+        val reconfigured =
+            InstantiableClient(
+                TEST_AUTH_TOKEN,
+                engine = engine,
+                configuration = BggClientConfiguration(maxConcurrentRequests = 1),
+            )
+        val jobs = (1..2).map { launch { reconfigured.client().get("https://boardgamegeek.com/") } }
+        delay(5)
+
+        assertThat(ThrottleRegistry.DEFAULT.queueDepth(TEST_AUTH_TOKEN, "boardgamegeek.com"))
+            .isEqualTo(1)
+
+        jobs.forEach { it.join() }
+        listOf(client, reconfigured).forEach { it.close() }
+    }
+
+    @Test
+    fun `Returns new limiters after clearing`() {
+        val limiter = registry.requestLimiter("token", "boardgamegeek.com", 60, 60.seconds)
+
+        registry.clear()
+
+        assertThat(registry.requestLimiter("token", "boardgamegeek.com", 60, 60.seconds))
+            .isNotSameInstanceAs(limiter)
+    }
+
+    @Test
+    fun `Shares the concurrent request limit between clients`() = runBlocking {
+        val configuration =
+            BggClientConfiguration(maxConcurrentRequests = 2, throttleRegistry = registry)
+        val clients =
+            (1..3).map {
+                InstantiableClient(
+                    TEST_AUTH_TOKEN,
+                    engine = {
+                        MockEngine(MockEngineConfig().apply { addHandler(delayedResponse()) })
+                    },
+                    configuration = configuration,
+                )
+            }
+
+        val jobs = clients.map { launch { it.client().get("https://boardgamegeek.com/") } }
+        delay(5)
+
+        // Only 2 out of the 3 requests are in-flight as the limiter is shared.
+        val limiter = registry.concurrentRequestLimiter(TEST_AUTH_TOKEN, "boardgamegeek.com", 2)
+        assertThat(limiter.inFlightRequests.get()).isEqualTo(2)
+
+        jobs.forEach { it.join() }
+        clients.forEach { it.close() }
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * Copyright 2023-2024 Bram Wijnands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.audux.bgg.request
+
+import com.google.common.truth.Truth.assertThat
+import io.ktor.client.engine.mock.MockEngine
+import io.ktor.client.engine.mock.respond
+import io.ktor.http.HttpStatusCode
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.time.Duration.Companion.milliseconds
+import kotlin.time.Duration.Companion.seconds
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import org.audux.bgg.BggClientConfiguration
+import org.audux.bgg.InstantiableClient
+import org.audux.bgg.common.HotListType
+import org.audux.bgg.util.TestUtils
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+
+/** Unit tests for [CollectionExportScheduler]. */
+class CollectionExportSchedulerTest {
+    /** The number of requests per user name. */
+    private val requests = ConcurrentHashMap<String, AtomicInteger>()
+
+    @Test
+    fun `Polls queued exports until they are ready`() = runBlocking {
+        val client = client(engine(accepted = 2))
+        val exports = client.collectionExports(pollDelay = 1.milliseconds)
+
+        val response = exports.export(client.collection("a"))
+
+        assertThat(response.isSuccess()).isTrue()
+        assertThat(response.data?.items).hasSize(1)
+        assertThat(requests["a"]?.get()).isEqualTo(3)
+        assertThat(exports.pending).isEqualTo(0)
+    }
+
+    @Test
+    fun `Releases the concurrent request slot in between polls`() = runBlocking {
+        val client = client(engine(accepted = 1))
+        val exports = client.collectionExports(pollDelay = 200.milliseconds)
+
+        val export = exports.schedule(client.collection("a"))
+        delay(50)
+
+        // Only one request can be in-flight, which would be blocked by a sleeping retry.
+        assertThat(exports.pendingUserNames).containsExactly("a")
+        assertThat(client.hotList(HotListType.BOARD_GAME).call().isSuccess()).isTrue()
+        assertThat(export.isCompleted).isFalse()
+
+        assertThat(export.await().isSuccess()).isTrue()
+        assertThat(requests["a"]?.get()).isEqualTo(2)
+    }
+
+    @Test
+    fun `Exports many collections at once`(): Unit = runBlocking {
+        val client = client(engine(accepted = 3))
+        val exports = client.collectionExports(pollDelay = 1.milliseconds)
+        val userNames = (1..20).map { "user$it" }
+
+        val responses = exports.exportAll(userNames.map { client.collection(it) })
+
+        assertThat(responses.all { it.isSuccess() }).isTrue()
+        assertThat(requests.keys).containsExactlyElementsIn(userNames)
+        assertThat(requests.values.map { it.get() }.distinct()).containsExactly(4)
+    }
+
+    @Test
+    fun `Shares identical pending exports`() = runBlocking {
+        val client = client(engine(accepted = 1))
+        val exports = client.collectionExports(pollDelay = 10.milliseconds)
+
+        val export = exports.schedule(client.collection("a"))
+
+        assertThat(exports.schedule(client.collection("a"))).isSameInstanceAs(export)
+        assertThat(exports.pending).isEqualTo(1)
+        export.await()
+        assertThat(requests["a"]?.get()).isEqualTo(2)
+    }
+
+    @Test
+    fun `Gives up after the maximum number of polls`() = runBlocking {
+        val client = client(engine(accepted = Int.MAX_VALUE))
+        val exports = client.collectionExports(pollDelay = 1.milliseconds, maxPolls = 3)
+
+        val response = exports.export(client.collection("a"))
+
+        assertThat(response.isError()).isTrue()
+        assertThat(response.error).isEqualTo("Collection export of a not ready after 3 polls")
+        assertThat(requests["a"]?.get()).isEqualTo(3)
+    }
+
+    @Test
+    fun `Fails pending exports when closed`() = runBlocking {
+        val client = client(engine(accepted = Int.MAX_VALUE))
+        val exports = client.collectionExports(pollDelay = 1.seconds)
+
+        val export = exports.schedule(client.collection("a"))
+        delay(50)
+        exports.close()
+
+        assertThrows<IllegalStateException> { runBlocking { export.await() } }
+        assertThrows<IllegalStateException> { exports.schedule(client.collection("b")) }
+        Unit
+    }
+
+    @Test
+    fun `Doubles the delay between polls up to the maximum`() {
+        val exports =
+            InstantiableClient(TestUtils.TEST_AUTH_TOKEN)
+                .collectionExports(pollDelay = 1.seconds, maxPollDelay = 4.seconds)
+
+        assertThat(exports.pollDelay(1)).isAtLeast(1.seconds)
+        assertThat(exports.pollDelay(1)).isAtMost(1.1.seconds)
+        assertThat(exports.pollDelay(3)).isAtLeast(4.seconds)
+        assertThat(exports.pollDelay(100)).isAtMost(4.4.seconds)
+    }
+
+    /**
+     * Responds with `202 Accepted` to the first [accepted] collection requests of every user name,
+     * and the collection (or hot list) otherwise.
+     */
+    private fun engine(accepted: Int) = MockEngine { request ->
+        val userName = request.url.parameters["username"]
+        when {
+            userName == null -> respond(TestUtils.xml("hot?type=boardgame").readAllBytes())
+            requests.getOrPut(userName) { AtomicInteger() }.incrementAndGet() <= accepted ->
+                respond(ACCEPTED_MESSAGE, HttpStatusCode.Accepted)
+            else -> respond(TestUtils.xml(COLLECTION).readAllBytes())
+        }
+    }
+
+    private fun client(engine: MockEngine) =
+        InstantiableClient(
+            TestUtils.TEST_AUTH_TOKEN,
+            engine = { engine },
+            configuration = BggClientConfiguration(maxConcurrentRequests = 1),
+        )
+
+    private fun InstantiableClient.collection(userName: String) =
+        collection(
+            userName,
+            subType = null,
+            excludeSubType = null,
+            ids = null,
+            version = false,
+            brief = false,
+            stats = false,
+            own = null,
+            rated = null,
+            played = null,
+            comment = null,
+            trade = null,
+            want = null,
+            wishlist = null,
+            wishlistPriority = null,
+            preOrdered = null,
+            wantToPlay = null,
+            wantToBuy = null,
+            previouslyOwned = null,
+            hasParts = null,
+            wantParts = null,
+            minRating = null,
+            rating = null,
+            minBggRating = null,
+            bggRating = null,
+            minimumPlays = null,
+            maxPlays = null,
+            collectionId = null,
+            modifiedSince = null,
+        )
+
+    private companion object {
+        const val COLLECTION = "collection?username=novaeux&stats=1&subtype=rpgitem"
+        const val ACCEPTED_MESSAGE =
+            "<message>Your request for this collection has been accepted and will be processed." +
+                " Please try again later for access.</message>"
+    }
+}
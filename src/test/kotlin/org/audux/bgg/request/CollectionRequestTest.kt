@@ -14,18 +14,29 @@
 package org.audux.bgg.request
 
 import com.google.common.truth.Truth.assertThat
+import io.ktor.client.engine.mock.MockEngine
+import io.ktor.client.engine.mock.respond
 import io.ktor.http.HttpMethod
+import io.ktor.http.HttpStatusCode
 import io.ktor.http.Parameters
 import io.ktor.http.URLBuilder
 import io.ktor.http.URLProtocol
 import io.ktor.http.Url
 import java.time.LocalDateTime
+import kotlin.time.Duration.Companion.seconds
+import kotlinx.coroutines.flow.map
+import kotlinx.coroutines.flow.take
+import kotlinx.coroutines.flow.toList
 import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
 import org.audux.bgg.BggClient
+import org.audux.bgg.BggRequestException
+import org.audux.bgg.common.HotListType
 import org.audux.bgg.common.Inclusion
 import org.audux.bgg.common.ThingType
 import org.audux.bgg.util.TestUtils
 import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
 
 /** Unit tests for [collection] extension function. */
 class CollectionRequestTest {
@@ -171,4 +182,93 @@ class CollectionRequestTest {
             assertThat(response.data!!.items).hasSize(105)
         }
     }
+
+    @Test
+    fun `Streams the items of a collection`() {
+        runBlocking {
+            val fileName =
+                "collection?username=novaeux&stats=1&subtype=boardgame&excludesubtype=boardgameexpansion"
+            val engine = TestUtils.setupMockEngine(fileName, fileName)
+            BggClient.engine = { engine }
+
+            val items = BggClient.collection(userName = "Noveaux").stream().toList()
+            val response = BggClient.collection(userName = "Noveaux").call()
+
+            assertThat(engine.requestHistory[0].url)
+                .isEqualTo(Url("https://boardgamegeek.com/xmlapi2/collection?username=Noveaux"))
+            assertThat(items).hasSize(105)
+            assertThat(items).containsExactlyElementsIn(response.data!!.items).inOrder()
+        }
+    }
+
+    @Test
+    fun `Allows requests while collecting streamed items with every request slot held`() {
+        val configuration = BggClient.configuration
+        BggClient.configure { maxConcurrentRequests = 1 }
+        try {
+            val engine =
+                TestUtils.setupMockEngine(
+                    "collection?username=novaeux&stats=1&subtype=rpgitem",
+                    "hot?type=boardgame",
+                    "hot?type=boardgame",
+                )
+            BggClient.engine = { engine }
+
+            val hotLists = runBlocking {
+                withTimeout(5.seconds) {
+                    BggClient.collection(userName = "Novaeux")
+                        .stream()
+                        .take(2)
+                        .map { BggClient.hotList(HotListType.BOARD_GAME).call().data!!.results }
+                        .toList()
+                }
+            }
+
+            assertThat(engine.requestHistory).hasSize(3)
+            assertThat(hotLists).hasSize(2)
+            assertThat(hotLists.first()).hasSize(50)
+        } finally {
+            BggClient.configuration = configuration
+        }
+    }
+
+    @Test
+    fun `Throws when streaming the collection of a user that does not exist`() {
+        val engine = TestUtils.setupMockEngine("collection?username=userdoesnotexist")
+        BggClient.engine = { engine }
+
+        val request = BggClient.collection(userName = "userdoesnotexist")
+
+        val exception =
+            assertThrows<BggRequestException> { runBlocking { request.stream().toList() } }
+
+        assertThat(exception.message)
+            .isEqualTo("Error streaming items: Invalid username specified")
+    }
+
+    @Test
+    fun `Throws when streaming a collection that is still being processed`() {
+        val configuration = BggClient.configuration
+        BggClient.configure { maxRetries = 0 }
+        BggClient.engine = {
+            MockEngine {
+                respond(
+                    "<message>Your request for this collection has been accepted and will be " +
+                        "processed. Please try again later for access.</message>",
+                    HttpStatusCode.Accepted,
+                )
+            }
+        }
+
+        try {
+            val exception =
+                assertThrows<BggRequestException> {
+                    runBlocking { BggClient.collection(userName = "Novaeux").stream().toList() }
+                }
+
+            assertThat(exception.message).contains("Please try again later for access.")
+        } finally {
+            BggClient.configuration = configuration
+        }
+    }
 }
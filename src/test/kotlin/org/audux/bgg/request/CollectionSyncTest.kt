@@ -0,0 +1,131 @@
+/**
+ * Copyright 2023-2024 Bram Wijnands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.audux.bgg.request
+
+import com.google.common.truth.Truth.assertThat
+import io.ktor.client.engine.mock.MockEngine
+import java.time.LocalDateTime
+import kotlinx.coroutines.runBlocking
+import kotlinx.serialization.decodeFromString
+import kotlinx.serialization.encodeToString
+import kotlinx.serialization.json.Json
+import org.audux.bgg.InstantiableClient
+import org.audux.bgg.util.TestUtils
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+
+/** Unit tests for [CollectionSync]. */
+class CollectionSyncTest {
+    @Test
+    fun `Requests the full collection on the first sync`() = runBlocking {
+        val engine = TestUtils.setupMockEngine(BOARD_GAMES)
+        val sync = sync(engine)
+
+        val snapshot = sync.sync("novaeux").data!!
+
+        assertThat(engine.requestHistory[0].url.parameters.names()).containsExactly("username")
+        assertThat(snapshot.userName).isEqualTo("novaeux")
+        assertThat(snapshot.items).hasSize(105)
+        assertThat(snapshot.watermark).isEqualTo(LocalDateTime.of(2023, 11, 24, 7, 58, 22))
+        assertThat(sync.snapshot("novaeux")).isEqualTo(snapshot)
+    }
+
+    @Test
+    fun `Merges the items modified since the previous sync`() = runBlocking {
+        val engine = TestUtils.setupMockEngine(BOARD_GAMES, RPG_ITEMS)
+        val sync = sync(engine)
+
+        sync.sync("novaeux")
+        val snapshot = sync.sync("novaeux").data!!
+
+        assertThat(engine.requestHistory[1].url.parameters["modifiedsince"])
+            .isEqualTo("2023-11-24 07:58:22")
+        assertThat(snapshot.items).hasSize(106)
+        assertThat(snapshot.items[113239027]?.name).isEqualTo("Alice is Missing")
+        assertThat(snapshot.watermark).isEqualTo(LocalDateTime.of(2023, 12, 6, 4, 18, 11))
+    }
+
+    @Test
+    fun `Replaces the snapshot on a full sync`(): Unit = runBlocking {
+        val engine = TestUtils.setupMockEngine(BOARD_GAMES, RPG_ITEMS)
+        val sync = sync(engine)
+
+        sync.sync("novaeux")
+        val snapshot = sync.sync("novaeux", full = true).data!!
+
+        assertThat(engine.requestHistory[1].url.parameters["modifiedsince"]).isNull()
+        assertThat(snapshot.items.keys).containsExactly(113239027)
+    }
+
+    @Test
+    fun `Keeps the snapshot when a sync fails`() = runBlocking {
+        val engine = TestUtils.setupMockEngine(RPG_ITEMS, "collection?username=userdoesnotexist")
+        val sync = sync(engine)
+
+        val snapshot = sync.sync("novaeux").data
+        val response = sync.sync("novaeux")
+
+        assertThat(response.isError()).isTrue()
+        assertThat(sync.snapshot("novaeux")).isEqualTo(snapshot)
+    }
+
+    @Test
+    fun `Continues incrementally from a restored snapshot`() = runBlocking {
+        val engine = TestUtils.setupMockEngine(RPG_ITEMS, RPG_ITEMS)
+        val client = InstantiableClient(TestUtils.TEST_AUTH_TOKEN, engine = { engine })
+        val stored = Json.encodeToString(client.collectionSync().sync("novaeux").data!!)
+
+        val sync = client.collectionSync()
+        sync.restore(Json.decodeFromString<CollectionSnapshot>(stored))
+        sync.sync("novaeux")
+
+        assertThat(engine.requestHistory[1].url.parameters["modifiedsince"])
+            .isEqualTo("2023-12-06 04:18:11")
+        assertThat(sync.snapshots().single().items).hasSize(1)
+    }
+
+    @Test
+    fun `Syncs the collections of all users`() = runBlocking {
+        val engine = TestUtils.setupMockEngine(BOARD_GAMES, BOARD_GAMES)
+        val sync = sync(engine)
+
+        val responses = sync.syncAll(listOf("novaeux", "other"))
+
+        assertThat(sync.snapshots().map { it.userName }).containsExactly("novaeux", "other")
+        assertThat(responses.map { it.data?.items?.size }).containsExactly(105, 105).inOrder()
+    }
+
+    @Test
+    fun `Only closes the export scheduler it created`() = runBlocking {
+        val engine = TestUtils.setupMockEngine(RPG_ITEMS)
+        val client = InstantiableClient(TestUtils.TEST_AUTH_TOKEN, engine = { engine })
+        val exports = client.collectionExports()
+        val sync = client.collectionSync()
+
+        sync.close()
+        client.collectionSync(exports = exports).close()
+
+        assertThrows<IllegalStateException> { runBlocking { sync.sync("novaeux") } }
+        assertThat(client.collectionSync(exports = exports).sync("novaeux").isSuccess()).isTrue()
+    }
+
+    private fun sync(engine: MockEngine) =
+        InstantiableClient(TestUtils.TEST_AUTH_TOKEN, engine = { engine }).collectionSync()
+
+    private companion object {
+        const val BOARD_GAMES =
+            "collection?username=novaeux&stats=1&subtype=boardgame&excludesubtype=boardgameexpansion"
+        const val RPG_ITEMS = "collection?username=novaeux&stats=1&subtype=rpgitem"
+    }
+}
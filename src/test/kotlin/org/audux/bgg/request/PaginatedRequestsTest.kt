@@ -0,0 +1,117 @@
+/**
+ * Copyright 2023-2024 Bram Wijnands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.audux.bgg.request
+
+import com.google.common.truth.Truth.assertThat
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicInteger
+import kotlinx.coroutines.awaitCancellation
+import kotlinx.coroutines.cancelAndJoin
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import org.audux.bgg.BggClientConfiguration
+import org.audux.bgg.InstantiableClient
+import org.audux.bgg.util.TestUtils.TEST_AUTH_TOKEN
+import org.junit.jupiter.api.Test
+
+/** Unit tests for [concurrentRequests] and [PageCollector]. */
+class PaginatedRequestsTest {
+    private val client =
+        InstantiableClient(
+            TEST_AUTH_TOKEN,
+            configuration = BggClientConfiguration(maxConcurrentRequests = 2),
+        )
+
+    @Test
+    fun `Requests all pages in order`() = runBlocking {
+        val pages = CopyOnWriteArrayList<Int>()
+
+        client.concurrentRequests(2..10) { pages.add(it) }
+
+        assertThat(pages).containsExactlyElementsIn(2..10).inOrder()
+    }
+
+    @Test
+    fun `Limits the number of pages in-flight`() = runBlocking {
+        val inFlight = AtomicInteger(0)
+        val maxInFlight = AtomicInteger(0)
+
+        client.concurrentRequests(1..10) {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), ::maxOf)
+            delay(5)
+            inFlight.decrementAndGet()
+        }
+
+        assertThat(maxInFlight.get()).isEqualTo(2)
+    }
+
+    @Test
+    fun `Does nothing for an empty range of pages`() = runBlocking {
+        val pages = CopyOnWriteArrayList<Int>()
+
+        client.concurrentRequests(2..1) { pages.add(it) }
+
+        assertThat(pages).isEmpty()
+    }
+
+    @Test
+    fun `Stops requesting pages when cancelled`() = runBlocking {
+        val pages = CopyOnWriteArrayList<Int>()
+
+        val job = launch {
+            client.concurrentRequests(1..10) {
+                pages.add(it)
+                awaitCancellation()
+            }
+        }
+        delay(5)
+        job.cancelAndJoin()
+
+        assertThat(pages).containsExactly(1, 2).inOrder()
+    }
+
+    @Test
+    fun `Collects pages in page order regardless of completion order`() {
+        val collector = PageCollector<Int, Int>(2..4) { it }
+
+        collector.add(4, listOf(7, 8))
+        collector.add(2, listOf(3, 4))
+        collector.addInitial(listOf(1, 2))
+        collector.add(3, listOf(5, 6))
+
+        assertThat(collector.toList()).containsExactly(1, 2, 3, 4, 5, 6, 7, 8).inOrder()
+    }
+
+    @Test
+    fun `Drops items of which the key was seen on an earlier page`() {
+        val collector = PageCollector<Pair<Int, String>, Int>(2..3) { it.first }
+
+        collector.addInitial(listOf(1 to "a", 2 to "b"))
+        collector.add(2, listOf(2 to "c", 3 to "d"))
+        collector.add(3, listOf(1 to "e"))
+
+        assertThat(collector.toList()).containsExactly(1 to "a", 2 to "b", 3 to "d").inOrder()
+    }
+
+    @Test
+    fun `Skips pages that were never added`() {
+        val collector = PageCollector<Int, Int>(2..3) { it }
+
+        collector.addInitial(listOf(1))
+        collector.add(3, listOf(3))
+
+        assertThat(collector.toList()).containsExactly(1, 3).inOrder()
+    }
+}
@@ -17,13 +17,17 @@ import com.google.common.truth.Truth.assertThat
 import io.ktor.http.HttpMethod
 import io.ktor.http.Url
 import java.time.LocalDate
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.toList
 import kotlinx.coroutines.runBlocking
 import org.audux.bgg.BggClient
+import org.audux.bgg.BggRequestException
 import org.audux.bgg.common.PlayThingType
 import org.audux.bgg.common.SubType
 import org.audux.bgg.util.TestUtils
 import org.junit.jupiter.api.Nested
 import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
 
 /** Unit tests for [plays] extension function. */
 class PlaysRequestTest {
@@ -196,5 +200,74 @@ class PlaysRequestTest {
             assertThat(response.data?.total).isEqualTo(270)
             assertThat(response.data?.plays).hasSize(170)
         }
+
+        @Test
+        fun `As a flow of pages`() = runBlocking {
+            val engine =
+                TestUtils.setupMockEngine(
+                    "plays?username=auser&page=1",
+                    "plays?username=auser&page=2",
+                    "plays?username=auser&page=3",
+                )
+            BggClient.engine = { engine }
+
+            val pages = BggClient.plays(username = "auser").paginateAsFlow().toList()
+
+            assertThat(engine.requestHistory).hasSize(3)
+            assertThat(pages.map { it.page }).containsExactly(1, 2, 3).inOrder()
+            assertThat(pages.map { it.plays.size }).containsExactly(100, 100, 70).inOrder()
+        }
+
+        @Test
+        fun `As a flow does not request pages beyond the maximum of concurrent requests`() =
+            runBlocking {
+                val configuration = BggClient.configuration
+                BggClient.configure { maxConcurrentRequests = 1 }
+                try {
+                    val engine =
+                        TestUtils.setupMockEngine(
+                            "plays?username=auser&page=1",
+                            "plays?username=auser&page=2",
+                            "plays?username=auser&page=3",
+                        )
+                    BggClient.engine = { engine }
+
+                    val requestsWhileCollecting = mutableListOf<Int>()
+                    BggClient.plays(username = "auser").paginateAsFlow().collect {
+                        delay(20)
+                        requestsWhileCollecting.add(engine.requestHistory.size)
+                    }
+
+                    // Only the page being collected has been requested, not the one after it.
+                    assertThat(requestsWhileCollecting).containsExactly(1, 2, 3).inOrder()
+                } finally {
+                    BggClient.configuration = configuration
+                }
+            }
+
+        @Test
+        fun `As a flow skipping failures`() = runBlocking {
+            val engine =
+                TestUtils.setupMockEngine(
+                    "plays?username=auser&page=1",
+                    "plays?username=userdoesnotexist", // Erroneous response
+                    "plays?username=auser&page=3",
+                )
+            BggClient.engine = { engine }
+
+            val pages = BggClient.plays(username = "auser").paginateAsFlow().toList()
+
+            assertThat(pages.map { it.page }).containsExactly(1, 3).inOrder()
+        }
+
+        @Test
+        fun `As a flow throws when the initial request fails`() {
+            val engine = TestUtils.setupMockEngine("plays?username=userdoesnotexist")
+            BggClient.engine = { engine }
+
+            assertThrows<BggRequestException> {
+                runBlocking { BggClient.plays(username = "nobody").paginateAsFlow().toList() }
+            }
+        }
     }
 }
@@ -0,0 +1,197 @@
+/**
+ * Copyright 2023-2024 Bram Wijnands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.audux.bgg.request
+
+import com.google.common.truth.Truth.assertThat
+import io.ktor.client.engine.mock.MockEngine
+import io.ktor.client.engine.mock.respond
+import java.time.LocalDate
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicInteger
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import kotlinx.serialization.decodeFromString
+import kotlinx.serialization.encodeToString
+import kotlinx.serialization.json.Json
+import org.audux.bgg.BggClientConfiguration
+import org.audux.bgg.InstantiableClient
+import org.audux.bgg.util.TestUtils
+import org.junit.jupiter.api.Test
+
+/** Unit tests for [PlaysSync]. */
+class PlaysSyncTest {
+    /** The plays logged by the user, as (id, date) pairs. */
+    private val plays = CopyOnWriteArrayList((1..250).map { it to FIRST_DATE.plusDays(it * 3L) })
+
+    /** Called with the requested page before responding, e.g. to change the [plays]. */
+    private var beforePage: (Int) -> Unit = {}
+
+    /** Responds with the [plays] between `mindate` and `maxdate`, most recent first. */
+    private val engine = MockEngine { request ->
+        val parameters = request.url.parameters
+        beforePage(parameters["page"]?.toInt() ?: 1)
+        val minDate = parameters["mindate"]?.let { LocalDate.parse(it) } ?: LocalDate.MIN
+        val maxDate = parameters["maxdate"]?.let { LocalDate.parse(it) } ?: LocalDate.MAX
+        val page = parameters["page"]?.toInt() ?: 1
+        val matching =
+            plays
+                .filter { (_, date) -> date in minDate..maxDate }
+                .sortedByDescending { (_, date) -> date }
+        val pagePlays =
+            matching.drop((page - 1) * PaginatedPlays.PAGE_SIZE).take(PaginatedPlays.PAGE_SIZE)
+
+        respond(
+            """<plays username="auser" userid="1" total="${matching.size}" page="$page"
+                termsofuse="https://boardgamegeek.com/xmlapi/termsofuse">
+                ${pagePlays.joinToString("") { (id, date) -> play(id, date) }}
+            </plays>"""
+        )
+    }
+    private val client = InstantiableClient(TestUtils.TEST_AUTH_TOKEN, engine = { engine })
+
+    @Test
+    fun `Requests all plays in date ranges on the first sync`() = runBlocking {
+        val sync = client.playsSync(shards = 3)
+
+        val response = sync.sync("auser").data!!
+
+        val dateRanges =
+            engine.requestHistory
+                .filter { it.url.parameters["maxdate"] != null }
+                .map { it.url.parameters["mindate"] to it.url.parameters["maxdate"] }
+                .distinct()
+        assertThat(dateRanges).hasSize(3)
+        // The first page isn't requested again, its plays after the date ranges are reused.
+        assertThat(engine.requestHistory.filter { it.url.parameters.names() == setOf("username") })
+            .hasSize(1)
+        assertThat(response.map { it.id }).containsExactlyElementsIn(250 downTo 1).inOrder()
+        assertThat(sync.watermark("auser")).isEqualTo(PlaysWatermark(LAST_DATE, setOf(250)))
+    }
+
+    @Test
+    fun `Requests every page once without date ranges`() = runBlocking {
+        val sync = client.playsSync(shards = 1)
+
+        val response = sync.sync("auser").data!!
+
+        assertThat(engine.requestHistory.map { it.url.parameters["page"] })
+            .containsExactly(null, "2", "3")
+        assertThat(response.map { it.id }).containsExactlyElementsIn(250 downTo 1).inOrder()
+    }
+
+    @Test
+    fun `Requests all plays at once when the last page turns out empty`() = runBlocking {
+        // Deletes plays right before the last page is requested, leaving it empty.
+        beforePage = { page -> if (page == 3) plays.removeIf { (id, _) -> id <= 60 } }
+        val sync = client.playsSync(shards = 3)
+
+        val response = sync.sync("auser").data!!
+
+        assertThat(response.map { it.id }).containsExactlyElementsIn(250 downTo 61).inOrder()
+        assertThat(sync.watermark("auser")).isEqualTo(PlaysWatermark(LAST_DATE, setOf(250)))
+    }
+
+    @Test
+    fun `Syncs at most the maximum of concurrent requests users at a time`() = runBlocking {
+        val inFlight = AtomicInteger()
+        val maxInFlight = AtomicInteger()
+        val engine = MockEngine {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet()) { a, b -> maxOf(a, b) }
+            delay(10)
+            inFlight.decrementAndGet()
+            respond(
+                """<plays username="auser" userid="1" total="1" page="1"
+                    termsofuse="https://boardgamegeek.com/xmlapi/termsofuse">
+                    ${play(1, FIRST_DATE)}
+                </plays>"""
+            )
+        }
+        val client =
+            InstantiableClient(
+                TestUtils.TEST_AUTH_TOKEN,
+                engine = { engine },
+                configuration = BggClientConfiguration(maxConcurrentRequests = 2),
+            )
+
+        val responses = client.playsSync().syncAll((1..6).map { "user$it" })
+
+        assertThat(responses.map { it.data?.size }).containsExactly(1, 1, 1, 1, 1, 1)
+        assertThat(maxInFlight.get()).isEqualTo(2)
+    }
+
+    @Test
+    fun `Requests the plays of users with a single page once`() = runBlocking {
+        plays.removeIf { (id, _) -> id > 50 }
+        val sync = client.playsSync()
+
+        val response = sync.sync("auser").data!!
+
+        assertThat(engine.requestHistory).hasSize(1)
+        assertThat(response).hasSize(50)
+    }
+
+    @Test
+    fun `Only returns the plays since the previous sync`() = runBlocking {
+        val sync = client.playsSync()
+        sync.sync("auser")
+        plays.add(251 to LAST_DATE)
+        plays.add(252 to LAST_DATE.plusDays(1))
+
+        val response = sync.sync("auser").data!!
+
+        assertThat(engine.requestHistory.last().url.parameters["mindate"])
+            .isEqualTo(LAST_DATE.toString())
+        assertThat(response.map { it.id }).containsExactly(252, 251).inOrder()
+        assertThat(sync.watermark("auser")?.date).isEqualTo(LAST_DATE.plusDays(1))
+    }
+
+    @Test
+    fun `Continues from a restored watermark`() = runBlocking {
+        val stored = Json.encodeToString(PlaysWatermark(LAST_DATE, setOf(250)))
+        val sync = client.playsSync()
+        sync.restore("auser", Json.decodeFromString<PlaysWatermark>(stored))
+
+        val response = sync.sync("auser").data!!
+
+        assertThat(engine.requestHistory).hasSize(1)
+        assertThat(response).isEmpty()
+        assertThat(sync.watermark("auser")).isEqualTo(PlaysWatermark(LAST_DATE, setOf(250)))
+    }
+
+    @Test
+    fun `Splits dates up in consecutive ranges`() {
+        val from = LocalDate.of(2020, 1, 1)
+
+        assertThat(dateShards(from, from.plusDays(9), 3))
+            .containsExactly(
+                from..from.plusDays(3),
+                from.plusDays(4)..from.plusDays(7),
+                from.plusDays(8)..from.plusDays(9),
+            )
+            .inOrder()
+        assertThat(dateShards(from, from.plusDays(1), 5))
+            .containsExactly(from..from, from.plusDays(1)..from.plusDays(1))
+            .inOrder()
+    }
+
+    private fun play(id: Int, date: LocalDate) =
+        """<play id="$id" date="$date" quantity="1" length="60" incomplete="0" nowinstats="0"
+            location=""><item name="Game" objecttype="thing" objectid="1"><subtypes>
+            <subtype value="boardgame" /></subtypes></item></play>"""
+
+    private companion object {
+        val FIRST_DATE: LocalDate = LocalDate.of(2020, 1, 1)
+        val LAST_DATE: LocalDate = FIRST_DATE.plusDays(750)
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright 2023-2024 Bram Wijnands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.audux.bgg.request
+
+import com.google.common.truth.Truth.assertThat
+import io.ktor.client.engine.mock.MockEngine
+import io.ktor.client.engine.mock.MockEngineConfig
+import io.ktor.client.engine.mock.respond
+import io.ktor.http.appendPathSegments
+import java.util.concurrent.atomic.AtomicInteger
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.cancelAndJoin
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import org.audux.bgg.BggClientConfiguration
+import org.audux.bgg.InstantiableClient
+import org.audux.bgg.common.HotListType
+import org.audux.bgg.util.TestUtils
+import org.junit.jupiter.api.Test
+
+/** Unit tests for [SingleFlight] and [getResponse]. */
+class SingleFlightTest {
+    private val singleFlight = SingleFlight()
+
+    @Test
+    fun `Shares the result of an in-flight call`() = runBlocking {
+        val calls = AtomicInteger(0)
+        val gate = CompletableDeferred<Unit>()
+
+        val results =
+            (1..3)
+                .map {
+                    async {
+                        singleFlight.execute("key") {
+                            gate.await()
+                            calls.incrementAndGet()
+                        }
+                    }
+                }
+                .also {
+                    delay(5)
+                    gate.complete(Unit)
+                }
+                .awaitAll()
+
+        assertThat(calls.get()).isEqualTo(1)
+        assertThat(results).containsExactly(1, 1, 1)
+        assertThat(singleFlight.size).isEqualTo(0)
+    }
+
+    @Test
+    fun `Executes calls for different keys separately`() = runBlocking {
+        val calls = AtomicInteger(0)
+
+        listOf("a", "b")
+            .map { key ->
+                async {
+                    singleFlight.execute(key) {
+                        delay(5)
+                        calls.incrementAndGet()
+                    }
+                }
+            }
+            .awaitAll()
+
+        assertThat(calls.get()).isEqualTo(2)
+    }
+
+    @Test
+    fun `Shares the exception of a failed call`() = runBlocking {
+        val gate = CompletableDeferred<Unit>()
+        val first = async {
+            runCatching {
+                singleFlight.execute("key") {
+                    gate.await()
+                    throw IllegalStateException("Failed")
+                }
+            }
+        }
+        val second = async { runCatching { singleFlight.execute("key") { "Not called" } } }
+        delay(5)
+        gate.complete(Unit)
+
+        assertThat(first.await().exceptionOrNull()).isInstanceOf(IllegalStateException::class.java)
+        assertThat(second.await().exceptionOrNull()).isInstanceOf(IllegalStateException::class.java)
+    }
+
+    @Test
+    fun `Takes over when the in-flight call is cancelled`() = runBlocking {
+        val first = launch { singleFlight.execute("key") { CompletableDeferred<String>().await() } }
+        delay(5)
+        val second = async { singleFlight.execute("key") { "Second" } }
+        delay(5)
+
+        first.cancelAndJoin()
+
+        assertThat(second.await()).isEqualTo("Second")
+    }
+
+    @Test
+    fun `Does not retain completed calls`() = runBlocking {
+        val first = singleFlight.execute("key") { "First" }
+        val second = singleFlight.execute("key") { "Second" }
+
+        assertThat(first).isEqualTo("First")
+        assertThat(second).isEqualTo("Second")
+    }
+
+    @Test
+    fun `Creates the same key regardless of parameter order`() {
+        val url =
+            requestUrl("https://boardgamegeek.com/xmlapi2") {
+                url {
+                    appendPathSegments("thing")
+                    parameters.append("stats", "1")
+                    parameters.append("id", "1,2")
+                }
+            }
+        val otherUrl =
+            requestUrl("https://boardgamegeek.com/xmlapi2") {
+                url {
+                    appendPathSegments("thing")
+                    parameters.append("id", "1,2")
+                    parameters.append("stats", "1")
+                }
+            }
+
+        assertThat(requestKey(String::class.java, url))
+            .isEqualTo(requestKey(String::class.java, otherUrl))
+        assertThat(requestKey(Int::class.java, url))
+            .isNotEqualTo(requestKey(String::class.java, url))
+    }
+
+    @Test
+    fun `Distinguishes parameter values containing separators`() {
+        fun key(vararg query: Pair<String, String>) =
+            requestKey(
+                String::class.java,
+                requestUrl("https://boardgamegeek.com/xmlapi2/search") {
+                    url { query.forEach { (name, value) -> parameters.append(name, value) } }
+                },
+            )
+
+        assertThat(key("query" to "catan&type=rpgitem"))
+            .isNotEqualTo(key("query" to "catan", "type" to "rpgitem"))
+        assertThat(key("type" to "a,b")).isNotEqualTo(key("type" to "a", "type" to "b"))
+    }
+
+    @Test
+    fun `Shares a single request and response between identical concurrent requests`() =
+        runBlocking {
+            val engine = delayedEngine()
+            val client = InstantiableClient(TestUtils.TEST_AUTH_TOKEN, engine = { engine })
+
+            val responses =
+                (1..3).map { async { client.hotList(HotListType.BOARD_GAME).call() } }.awaitAll()
+
+            assertThat(engine.requestHistory).hasSize(1)
+            assertThat(responses.toSet()).hasSize(1)
+            assertThat(responses[0].data).isSameInstanceAs(responses[2].data)
+        }
+
+    @Test
+    fun `Makes every request when deduplication is disabled`() = runBlocking {
+        val engine = delayedEngine()
+        val client =
+            InstantiableClient(
+                TestUtils.TEST_AUTH_TOKEN,
+                engine = { engine },
+                configuration = BggClientConfiguration(deduplicateRequests = false),
+            )
+
+        (1..3).map { async { client.hotList(HotListType.BOARD_GAME).call() } }.awaitAll()
+
+        assertThat(engine.requestHistory).hasSize(3)
+    }
+
+    private fun delayedEngine() =
+        MockEngine(
+            MockEngineConfig().apply {
+                repeat(3) {
+                    addHandler {
+                        delay(20)
+                        respond(TestUtils.xml("hot?type=boardgame").readAllBytes())
+                    }
+                }
+            }
+        )
+}
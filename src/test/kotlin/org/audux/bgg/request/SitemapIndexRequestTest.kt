@@ -22,15 +22,21 @@ import io.ktor.client.engine.mock.respondOk
 import io.ktor.client.request.HttpRequestData
 import io.ktor.http.HttpMethod
 import io.ktor.http.Url
+import kotlinx.coroutines.flow.flowOf
+import kotlinx.coroutines.flow.toList
 import kotlinx.coroutines.runBlocking
 import org.audux.bgg.BggClient
+import org.audux.bgg.BggRequestException
 import org.audux.bgg.common.Domain
 import org.audux.bgg.common.SitemapLocationType
+import org.audux.bgg.response.Response
 import org.audux.bgg.response.SitemapLocation
+import org.audux.bgg.response.SitemapUrl
 import org.audux.bgg.util.TestUtils
 import org.audux.bgg.util.TestUtils.xml
 import org.junit.jupiter.api.Nested
 import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
 
 /** Unit tests for [sitemapIndex] extension function. */
 class SitemapIndexRequestTest {
@@ -227,6 +233,173 @@ class SitemapIndexRequestTest {
             assertThat(response.data).isEmpty()
         }
 
+        @Test
+        fun `Emits the URLs of every sitemap as a flow`() = runBlocking {
+            val engine =
+                MockEngine(MockEngineConfig().apply { addHandler { setupSitemapResponses(it) } })
+            BggClient.engine = { engine }
+
+            val sitemaps = BggClient.sitemapIndex().diffuseAsFlow().toList()
+
+            assertThat(sitemaps.map { it.sitemap.type })
+                .containsExactly(
+                    SitemapLocationType.BOARD_GAMES,
+                    SitemapLocationType.BOARD_GAME_VERSIONS,
+                    SitemapLocationType.FILES,
+                )
+            assertThat(sitemaps.map { it.response.data?.size }).containsExactly(10, 9, 11)
+            assertThat(sitemaps.none { it.response.isError() }).isTrue()
+        }
+
+        @Test
+        fun `Only requests sitemaps of the given types as a flow`() = runBlocking {
+            val engine =
+                MockEngine(MockEngineConfig().apply { addHandler { setupSitemapResponses(it) } })
+            BggClient.engine = { engine }
+
+            val sitemaps =
+                BggClient.sitemapIndex().diffuseAsFlow(SitemapLocationType.FILES).toList()
+
+            assertThat(engine.requestHistory.map { it.url })
+                .containsExactly(
+                    Url("https://boardgamegeek.com/sitemapindex"),
+                    Url("https://boardgamegeek.com/sitemap_files_page_1"),
+                )
+            assertThat(sitemaps).hasSize(1)
+            assertThat(sitemaps[0].response.data).hasSize(11)
+        }
+
+        @Test
+        fun `Reports sitemaps that failed and continues with the others`() = runBlocking {
+            val engine =
+                MockEngine(
+                    MockEngineConfig().apply {
+                        addHandler {
+                            if (it.url.toString().endsWith("files_page_1")) respondBadRequest()
+                            else setupSitemapResponses(it)
+                        }
+                    }
+                )
+            BggClient.engine = { engine }
+
+            val sitemaps =
+                BggClient.sitemapIndex().diffuseAsFlow().toList().associateBy { it.sitemap.type }
+
+            assertThat(sitemaps).hasSize(3)
+            assertThat(sitemaps[SitemapLocationType.FILES]!!.response.isError()).isTrue()
+            assertThat(sitemaps[SitemapLocationType.BOARD_GAMES]!!.response.data).hasSize(10)
+            assertThat(sitemaps[SitemapLocationType.BOARD_GAME_VERSIONS]!!.response.data)
+                .hasSize(9)
+
+            // The non-streaming variant leaves out the failed sitemap.
+            val response = BggClient.sitemapIndex().diffuse().call()
+            assertThat(response.data!!.keys)
+                .containsExactly(
+                    SitemapLocationType.BOARD_GAMES,
+                    SitemapLocationType.BOARD_GAME_VERSIONS,
+                )
+            assertThat(response.isSuccess()).isTrue()
+        }
+
+        @Test
+        fun `Throws when the sitemap index can't be retrieved`() {
+            val engine =
+                MockEngine(MockEngineConfig().apply { addHandler { respondOk("Not a sitemap") } })
+            BggClient.engine = { engine }
+
+            assertThrows<BggRequestException> {
+                runBlocking { BggClient.sitemapIndex().diffuseAsFlow().toList() }
+            }
+        }
+
+        @Test
+        fun `Crawls the things listed in the sitemaps`() = runBlocking {
+            val engine =
+                MockEngine(
+                    MockEngineConfig().apply {
+                        addHandler {
+                            if (it.url.encodedPath.endsWith("thing")) {
+                                respondOk(String(xml("thing?id=1,2,3").readAllBytes()))
+                            } else {
+                                setupSitemapResponses(it)
+                            }
+                        }
+                    }
+                )
+            BggClient.engine = { engine }
+
+            val things =
+                BggClient.sitemapIndex()
+                    .crawlThings(SitemapLocationType.BOARD_GAMES, stats = true)
+                    .toList()
+
+            val thingRequest = engine.requestHistory.last().url
+            assertThat(thingRequest.encodedPath).isEqualTo("/xmlapi2/thing")
+            assertThat(thingRequest.parameters["id"]).isEqualTo("1,2,3,4,5,6,7,8,9,10")
+            assertThat(thingRequest.parameters["stats"]).isEqualTo("1")
+            assertThat(things.map { it.id }).containsExactly(1, 2, 3).inOrder()
+        }
+
+        @Test
+        fun `Only crawls sitemaps that list things`() {
+            assertThrows<IllegalArgumentException> {
+                BggClient.sitemapIndex()
+                    .crawlThings(
+                        SitemapLocationType.BOARD_GAMES,
+                        SitemapLocationType.BOARD_GAME_VERSIONS,
+                    )
+            }
+        }
+
+        @Test
+        fun `Skips batches of things that failed`() = runBlocking {
+            val engine =
+                MockEngine(
+                    MockEngineConfig().apply {
+                        addHandler {
+                            if (it.url.encodedPath.endsWith("thing")) respondBadRequest()
+                            else setupSitemapResponses(it)
+                        }
+                    }
+                )
+            BggClient.engine = { engine }
+
+            val things = BggClient.sitemapIndex().crawlThings().toList()
+
+            assertThat(engine.requestHistory).hasSize(3)
+            assertThat(things).isEmpty()
+        }
+
+        @Test
+        fun `Batches thing ids across sitemaps`() = runBlocking {
+            val location = SitemapLocation("https://boardgamegeek.com/sitemap_boardgame_page_1")
+            fun sitemap(vararg ids: Int) =
+                DiffusedSitemap(
+                    location,
+                    Response(data = ids.map { SitemapUrl("/boardgame/$it/a", null, null, null) }),
+                )
+
+            val failed = DiffusedSitemap(location, Response(error = "Error"))
+
+            val batches =
+                flowOf(sitemap(1, 2, 3), failed, sitemap(4, 5)).thingIdBatches(2).toList()
+
+            assertThat(batches.map { it.toList() })
+                .containsExactly(listOf(1, 2), listOf(3, 4), listOf(5))
+                .inOrder()
+        }
+
+        @Test
+        fun `Extracts thing ids from sitemap URLs`() {
+            assertThat(thingId("https://boardgamegeek.com/boardgame/1/die-macher")).isEqualTo(1)
+            assertThat(thingId("https://boardgamegeek.com/boardgameexpansion/20446/expansion"))
+                .isEqualTo(20446)
+            assertThat(thingId("https://rpggeek.com/rpgitem/123")).isEqualTo(123)
+            assertThat(thingId("https://boardgamegeek.com/boardgame/12a/name")).isEqualTo(-1)
+            assertThat(thingId("https://boardgamegeek.com/wiki/page/Main")).isEqualTo(-1)
+            assertThat(thingId("https://boardgamegeek.com/boardgame/12345678901")).isEqualTo(-1)
+        }
+
         private fun MockRequestHandleScope.setupSitemapResponses(requestData: HttpRequestData) =
             if (requestData.url.toString().endsWith("sitemapindex")) {
                 respondOk(String(xml("sitemapindex.diffuse").readAllBytes()))
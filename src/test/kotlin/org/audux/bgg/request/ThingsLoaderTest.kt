@@ -0,0 +1,122 @@
+/**
+ * Copyright 2023-2024 Bram Wijnands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.audux.bgg.request
+
+import com.google.common.truth.Truth.assertThat
+import io.ktor.client.engine.mock.MockEngine
+import io.ktor.client.engine.mock.respond
+import io.ktor.http.Parameters
+import io.ktor.http.URLBuilder
+import io.ktor.http.URLProtocol
+import kotlin.time.Duration.Companion.milliseconds
+import kotlin.time.Duration.Companion.minutes
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import org.audux.bgg.InstantiableClient
+import org.audux.bgg.util.TestUtils
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+
+/** Unit tests for [ThingsLoader]. */
+class ThingsLoaderTest {
+    @Test
+    fun `Batches concurrent loads into a single request`() = runBlocking {
+        val engine = TestUtils.setupMockEngine("thing?id=1,2,3")
+        val client = InstantiableClient(TestUtils.TEST_AUTH_TOKEN, engine = { engine })
+        val loader = client.thingsLoader(batchWindow = 50.milliseconds)
+
+        val responses = listOf(3, 1, 2).map { async { loader.load(it) } }.awaitAll()
+
+        assertThat(engine.requestHistory).hasSize(1)
+        assertThat(engine.requestHistory[0].url)
+            .isEqualTo(
+                URLBuilder(
+                        protocol = URLProtocol.HTTPS,
+                        host = "boardgamegeek.com",
+                        pathSegments = listOf("xmlapi2", "thing"),
+                        parameters = Parameters.build { append("id", "3,1,2") },
+                    )
+                    .build()
+            )
+        assertThat(responses.map { it.data?.id }).containsExactly(3, 1, 2).inOrder()
+    }
+
+    @Test
+    fun `Sends a batch once it's full`() = runBlocking {
+        val engine = TestUtils.setupMockEngine("thing?id=1,2,3", "thing?id=1,2,3")
+        val client = InstantiableClient(TestUtils.TEST_AUTH_TOKEN, engine = { engine })
+        val loader = client.thingsLoader(maxBatchSize = 2, batchWindow = 50.milliseconds)
+
+        val responses = loader.loadMany(arrayOf(1, 2, 3))
+
+        assertThat(engine.requestHistory).hasSize(2)
+        assertThat(engine.requestHistory.map { it.url.parameters["id"] })
+            .containsExactly("1,2", "3")
+            .inOrder()
+        assertThat(responses.map { it.data?.id }).containsExactly(1, 2, 3).inOrder()
+    }
+
+    @Test
+    fun `Returns no data for things that are not in the response`() = runBlocking {
+        val engine = TestUtils.setupMockEngine("thing?id=1,2,3")
+        val client = InstantiableClient(TestUtils.TEST_AUTH_TOKEN, engine = { engine })
+        val loader = client.thingsLoader(batchWindow = 1.milliseconds)
+
+        val response = loader.load(4)
+
+        assertThat(response.isSuccess()).isTrue()
+        assertThat(response.data).isNull()
+    }
+
+    @Test
+    fun `Throws when loading after closing`() {
+        val client = InstantiableClient(TestUtils.TEST_AUTH_TOKEN)
+        val loader = client.thingsLoader()
+
+        loader.close()
+
+        assertThrows<IllegalStateException> { runBlocking { loader.load(1) } }
+    }
+
+    @Test
+    fun `Completes batches that were sent when closed`() = runBlocking {
+        val engine = MockEngine {
+            delay(50)
+            respond(TestUtils.xml("thing?id=1,2,3").readAllBytes())
+        }
+        val client = InstantiableClient(TestUtils.TEST_AUTH_TOKEN, engine = { engine })
+        val loader = client.thingsLoader(maxBatchSize = 1)
+
+        val response = async { loader.load(1) }
+        delay(20)
+        loader.close()
+
+        assertThat(response.await().data?.id).isEqualTo(1)
+    }
+
+    @Test
+    fun `Fails loads waiting for a batch when closed`() = runBlocking {
+        val client = InstantiableClient(TestUtils.TEST_AUTH_TOKEN)
+        val loader = client.thingsLoader(batchWindow = 1.minutes)
+
+        val response = async { runCatching { loader.load(1) } }
+        delay(20)
+        loader.close()
+
+        assertThat(response.await().exceptionOrNull())
+            .isInstanceOf(IllegalStateException::class.java)
+    }
+}
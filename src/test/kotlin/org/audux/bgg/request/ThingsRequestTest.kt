@@ -19,9 +19,12 @@ import io.ktor.http.Parameters
 import io.ktor.http.URLBuilder
 import io.ktor.http.URLProtocol
 import io.ktor.http.Url
+import kotlinx.coroutines.flow.toList
 import kotlinx.coroutines.runBlocking
 import org.audux.bgg.BggClient
+import org.audux.bgg.BggClientConfiguration
 import org.audux.bgg.BggRequestException
+import org.audux.bgg.InstantiableClient
 import org.audux.bgg.common.ThingType
 import org.audux.bgg.util.TestUtils
 import org.junit.jupiter.api.Nested
@@ -136,6 +139,105 @@ class ThingsRequestTest {
         }
     }
 
+    @Test
+    fun `Streams things`() {
+        runBlocking {
+            val engine = TestUtils.setupMockEngine("thing?id=1,2,3", "thing?id=1,2,3")
+            BggClient.engine = { engine }
+
+            val things = BggClient.things(ids = arrayOf(1, 2, 3)).stream().toList()
+            val response = BggClient.things(ids = arrayOf(1, 2, 3)).call()
+
+            assertThat(engine.requestHistory[0].url).isEqualTo(engine.requestHistory[1].url)
+            assertThat(things.map { it.id }).containsExactly(1, 2, 3).inOrder()
+            assertThat(things).containsExactlyElementsIn(response.data!!.things).inOrder()
+        }
+    }
+
+    @Nested
+    inner class Chunks {
+        private val ids = (1..25).toList().toTypedArray()
+
+        private fun InstantiableClient.things(ids: Array<Int>) =
+            things(ids, arrayOf(), false, false, false, false, false, false, 1, null)
+
+        @Test
+        fun `Splits large id arrays into multiple requests`() = runBlocking {
+            val engine = TestUtils.setupMockEngine("thing?id=1,2,3", "thing?id=1")
+            val client =
+                InstantiableClient(
+                    TestUtils.TEST_AUTH_TOKEN,
+                    engine = { engine },
+                    configuration = BggClientConfiguration(maxConcurrentRequests = 1),
+                )
+
+            val response = client.things(ids = ids).call()
+
+            assertThat(engine.requestHistory.map { it.url.parameters["id"] })
+                .containsExactly((1..20).joinToString(","), "21,22,23,24,25")
+                .inOrder()
+            assertThat(response.isSuccess()).isTrue()
+            assertThat(response.data?.things?.map { it.id }).containsExactly(1, 2, 3, 1).inOrder()
+        }
+
+        @Test
+        fun `Skips failed chunks`() = runBlocking {
+            val engine = TestUtils.setupMockEngine("thing?id=1,2,3", "thread")
+            val client =
+                InstantiableClient(
+                    TestUtils.TEST_AUTH_TOKEN,
+                    engine = { engine },
+                    configuration = BggClientConfiguration(maxConcurrentRequests = 1),
+                )
+
+            val response = client.things(ids = ids).call()
+
+            assertThat(response.isSuccess()).isTrue()
+            assertThat(response.failedIds).containsExactlyElementsIn(21..25).inOrder()
+            assertThat(response.data?.things?.map { it.id }).containsExactly(1, 2, 3).inOrder()
+        }
+
+        @Test
+        fun `Reports an error when all chunks failed`() = runBlocking {
+            val engine = TestUtils.setupMockEngine("thread", "thread")
+            val client =
+                InstantiableClient(
+                    TestUtils.TEST_AUTH_TOKEN,
+                    engine = { engine },
+                    configuration = BggClientConfiguration(maxConcurrentRequests = 1),
+                )
+
+            val response = client.things(ids = ids).call()
+
+            assertThat(response.data).isNull()
+            assertThat(response.error).contains("Error requesting things 21,22,23,24,25: ")
+            assertThat(response.failedIds).containsExactlyElementsIn(ids).inOrder()
+        }
+
+        @Test
+        fun `Reports the failed ids of a single failed request`() = runBlocking {
+            val engine = TestUtils.setupMockEngine("thread")
+            val client = InstantiableClient(TestUtils.TEST_AUTH_TOKEN, engine = { engine })
+
+            val response = client.things(ids = arrayOf(1, 2, 3)).call()
+
+            assertThat(response.data).isNull()
+            assertThat(response.isError()).isTrue()
+            assertThat(response.failedIds).containsExactly(1, 2, 3).inOrder()
+        }
+
+        @Test
+        fun `Streams things of every chunk`() = runBlocking {
+            val engine = TestUtils.setupMockEngine("thing?id=1,2,3", "thing?id=1")
+            val client = InstantiableClient(TestUtils.TEST_AUTH_TOKEN, engine = { engine })
+
+            val things = client.things(ids = ids).stream().toList()
+
+            assertThat(engine.requestHistory).hasSize(2)
+            assertThat(things.map { it.id }).containsExactly(1, 2, 3, 1).inOrder()
+        }
+    }
+
     @Nested
     inner class Paginates {
         @Test
@@ -170,6 +272,75 @@ class ThingsRequestTest {
             assertThat(response.data?.things!![0].comments?.comments).hasSize(213)
         }
 
+        @Test
+        fun `Using the client it was created by`() = runBlocking {
+            val engine =
+                TestUtils.setupMockEngine(
+                    "thing?id=396790&comments=1&page=1",
+                    "thing?id=396790&comments=1&page=2",
+                    "thing?id=396790&comments=1&page=3",
+                )
+            val client = InstantiableClient(TestUtils.TEST_AUTH_TOKEN, engine = { engine })
+
+            val response =
+                client
+                    .things(
+                        ids = arrayOf(396790),
+                        types = arrayOf(),
+                        stats = false,
+                        versions = false,
+                        videos = false,
+                        marketplace = false,
+                        comments = true,
+                        ratingComments = false,
+                        page = 1,
+                        pageSize = null,
+                    )
+                    .paginate()
+                    .call()
+
+            assertThat(engine.requestHistory).hasSize(3)
+            assertThat(response.data?.things!![0].comments?.comments).hasSize(213)
+            assertThat(response.data?.things!![0].comments?.page).isEqualTo(3)
+        }
+
+        @Test
+        fun `Only for things with comments left`() = runBlocking {
+            val engine =
+                TestUtils.setupMockEngine(
+                    "thing?id=396790&comments=1&page=1",
+                    "thing?id=396790&comments=1&page=2",
+                    "thing?id=396790&comments=1&page=3",
+                )
+            BggClient.engine = { engine }
+
+            // Thing 1 isn't part of the response so it has no comments to paginate.
+            val response =
+                BggClient.things(ids = arrayOf(1, 396790), comments = true).paginate().call()
+
+            assertThat(engine.requestHistory.map { it.url })
+                .containsExactly(
+                    URLBuilder(
+                            protocol = URLProtocol.HTTPS,
+                            host = "boardgamegeek.com",
+                            pathSegments = listOf("xmlapi2", "thing"),
+                            parameters =
+                                Parameters.build {
+                                    append("id", "1,396790")
+                                    append("comments", "1")
+                                },
+                        )
+                        .build(),
+                    Url(
+                        "https://boardgamegeek.com/xmlapi2/thing?id=396790&comments=1&page=2&pagesize=100"
+                    ),
+                    Url(
+                        "https://boardgamegeek.com/xmlapi2/thing?id=396790&comments=1&page=3&pagesize=100"
+                    ),
+                )
+            assertThat(response.data?.things!![0].comments?.comments).hasSize(213)
+        }
+
         @Test
         fun `To the toPage parameter`() = runBlocking {
             val engine =
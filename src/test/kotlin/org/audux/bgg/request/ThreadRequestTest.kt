@@ -14,13 +14,20 @@
 package org.audux.bgg.request
 
 import com.google.common.truth.Truth.assertThat
+import io.ktor.client.engine.mock.MockEngine
+import io.ktor.client.engine.mock.respond
 import io.ktor.http.HttpMethod
 import io.ktor.http.Url
 import java.time.LocalDateTime
+import kotlinx.coroutines.flow.toList
 import kotlinx.coroutines.runBlocking
 import org.audux.bgg.BggClient
+import org.audux.bgg.BggRequestException
+import org.audux.bgg.InstantiableClient
 import org.audux.bgg.util.TestUtils
+import org.junit.jupiter.api.Nested
 import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
 
 /** Unit tests for [thread] extension function. */
 class ThreadRequestTest {
@@ -93,4 +100,112 @@ class ThreadRequestTest {
             assertThat(response.data?.articles).hasSize(13)
         }
     }
+
+    @Nested
+    inner class Pagination {
+        /** Responds with up to `count` of articles 1..12 starting at `minarticleid`. */
+        private val engine = MockEngine { request ->
+            val minArticleId = request.url.parameters["minarticleid"]?.toInt() ?: 1
+            val count = request.url.parameters["count"]?.toInt() ?: Int.MAX_VALUE
+            respond(thread((minArticleId..12).take(count)))
+        }
+        private val client = InstantiableClient(TestUtils.TEST_AUTH_TOKEN, engine = { engine })
+
+        @Test
+        fun `Requests pages after the last article of the previous page`(): Unit = runBlocking {
+            val response =
+                client
+                    .thread(1, minArticleId = null, minArticleDate = null, count = 5)
+                    .paginate()
+                    .call()
+
+            assertThat(engine.requestHistory.map { it.url.parameters["minarticleid"] })
+                .containsExactly(null, "6", "11")
+                .inOrder()
+            assertThat(engine.requestHistory.map { it.url.parameters["count"] }.distinct())
+                .containsExactly("5")
+            assertThat(response.data?.articles?.map { it.id }).containsExactlyElementsIn(1..12)
+        }
+
+        @Test
+        fun `Paginates up to the given page`(): Unit = runBlocking {
+            val response =
+                client
+                    .thread(1, minArticleId = 3, minArticleDate = null, count = 2)
+                    .paginate(toPage = 2)
+                    .call()
+
+            assertThat(engine.requestHistory).hasSize(2)
+            assertThat(response.data?.articles?.map { it.id }).containsExactly(3, 4, 5, 6)
+        }
+
+        @Test
+        fun `Uses the default page size without a count`() = runBlocking {
+            client
+                .thread(1, minArticleId = null, minArticleDate = null, count = null)
+                .paginate()
+                .call()
+
+            assertThat(engine.requestHistory).hasSize(1)
+            assertThat(engine.requestHistory[0].url.parameters["count"])
+                .isEqualTo("${PaginatedThread.PAGE_SIZE}")
+        }
+
+        @Test
+        fun `Stops paginating at an empty page`() = runBlocking {
+            val response =
+                client
+                    .thread(1, minArticleId = null, minArticleDate = null, count = 0)
+                    .paginate()
+                    .call()
+
+            assertThat(engine.requestHistory).hasSize(1)
+            assertThat(response.data?.articles).isEmpty()
+        }
+
+        @Test
+        fun `Streams pages and articles`() = runBlocking {
+            val request = client.thread(1, minArticleId = null, minArticleDate = null, count = 4)
+
+            val pages = request.paginateAsFlow().toList()
+            val articles = request.streamArticles().toList()
+
+            assertThat(pages.map { page -> page.articles.size }).containsExactly(4, 4, 4, 0)
+            assertThat(articles.map { it.id }).containsExactlyElementsIn(1..12).inOrder()
+        }
+
+        @Test
+        fun `Returns the error of the first page`() = runBlocking {
+            val engine = TestUtils.setupMockEngine("thread?id=0", "thread?id=0")
+            val client = InstantiableClient(TestUtils.TEST_AUTH_TOKEN, engine = { engine })
+
+            val response = client.thread(0, null, null, count = 5).paginate().call()
+
+            assertThat(response.isError()).isTrue()
+            assertThrows<BggRequestException> {
+                runBlocking { client.thread(0, null, null, count = 5).paginateAsFlow().toList() }
+            }
+            Unit
+        }
+
+        /** Returns a thread with the given articles, without `<articles>` when there are none. */
+        private fun thread(articleIds: List<Int>): String {
+            val articles =
+                if (articleIds.isEmpty()) ""
+                else "<articles>${articleIds.joinToString("") { article(it) }}</articles>"
+
+            return """<thread id="1" numarticles="12" link="https://boardgamegeek.com/thread/1"
+                termsofuse="https://boardgamegeek.com/xmlapi/termsofuse">
+                <subject>Thread</subject>
+                $articles
+            </thread>"""
+        }
+
+        private fun article(id: Int) =
+            """<article id="$id" username="user" numedits="0"
+                link="https://boardgamegeek.com/thread/1/article/$id"
+                postdate="2023-12-15T13:07:50-06:00" editdate="2023-12-15T13:07:50-06:00">
+                <subject>Re: Thread</subject><body>Article $id</body>
+            </article>"""
+    }
 }
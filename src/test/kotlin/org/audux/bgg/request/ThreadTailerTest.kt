@@ -0,0 +1,151 @@
+/**
+ * Copyright 2023-2024 Bram Wijnands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.audux.bgg.request
+
+import com.google.common.truth.Truth.assertThat
+import io.ktor.client.engine.mock.MockEngine
+import io.ktor.client.engine.mock.respond
+import kotlin.time.Duration.Companion.milliseconds
+import kotlinx.coroutines.flow.take
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.runBlocking
+import org.audux.bgg.InstantiableClient
+import org.audux.bgg.util.TestUtils
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+
+/** Unit tests for [ThreadTailer]. */
+class ThreadTailerTest {
+    @Test
+    fun `Returns all articles on the first poll`() = runBlocking {
+        val engine = engine()
+        val tailer = tailer(engine)
+        tailer.track(THREAD_ID)
+
+        val articles = tailer.poll(THREAD_ID).data!!
+
+        assertThat(engine.requestHistory[0].url.parameters["minarticleid"]).isEqualTo("1")
+        assertThat(engine.requestHistory[0].url.parameters["count"])
+            .isEqualTo("${PaginatedThread.PAGE_SIZE}")
+        assertThat(articles).hasSize(13)
+        assertThat(tailer.watermark(THREAD_ID)).isEqualTo(LAST_ARTICLE_ID)
+    }
+
+    @Test
+    fun `Only requests articles after the watermark`() = runBlocking {
+        val engine = engine()
+        val tailer = tailer(engine)
+        tailer.track(THREAD_ID)
+
+        tailer.poll(THREAD_ID)
+        val articles = tailer.poll(THREAD_ID).data
+
+        assertThat(engine.requestHistory[1].url.parameters["minarticleid"])
+            .isEqualTo("${LAST_ARTICLE_ID + 1}")
+        assertThat(articles).isEmpty()
+        assertThat(tailer.watermark(THREAD_ID)).isEqualTo(LAST_ARTICLE_ID)
+    }
+
+    @Test
+    fun `Skips articles up to the article it was tracked from`(): Unit = runBlocking {
+        val engine = engine()
+        val tailer = tailer(engine)
+        tailer.track(THREAD_ID, afterArticleId = 43568662)
+
+        val articles = tailer.poll(THREAD_ID).data!!
+
+        assertThat(articles.map { it.id }).containsExactly(LAST_ARTICLE_ID)
+    }
+
+    @Test
+    fun `Keeps the watermark when polling fails`() = runBlocking {
+        val tailer = tailer(TestUtils.setupMockEngine("thread?id=0"))
+        tailer.track(THREAD_ID, afterArticleId = 10)
+
+        val response = tailer.poll(THREAD_ID)
+
+        assertThat(response.isError()).isTrue()
+        assertThat(tailer.watermark(THREAD_ID)).isEqualTo(10)
+    }
+
+    @Test
+    fun `Throws when polling a thread that is not tracked`() {
+        val tailer = InstantiableClient(TestUtils.TEST_AUTH_TOKEN).threadTailer()
+
+        tailer.track(THREAD_ID)
+        tailer.untrack(THREAD_ID)
+
+        assertThat(tailer.threadIds).isEmpty()
+        assertThrows<IllegalStateException> { runBlocking { tailer.poll(THREAD_ID) } }
+    }
+
+    @Test
+    fun `Emits new articles of all tracked threads`(): Unit = runBlocking {
+        val engine = engine()
+        val tailer = tailer(engine)
+        tailer.track(THREAD_ID)
+        tailer.track(OTHER_THREAD_ID, afterArticleId = 43568662)
+
+        val articles = tailer.tail(pollInterval = 1.milliseconds).take(14).toList()
+
+        assertThat(articles.map { it.threadId }.distinct())
+            .containsExactly(THREAD_ID, OTHER_THREAD_ID)
+        assertThat(articles.filter { it.threadId == THREAD_ID }.map { it.article.id })
+            .isInOrder()
+        assertThat(articles.filter { it.threadId == OTHER_THREAD_ID }.map { it.article.id })
+            .containsExactly(LAST_ARTICLE_ID)
+    }
+
+    @Test
+    fun `Only moves the watermark past articles that were received`() = runBlocking {
+        val engine = engine()
+        val tailer = tailer(engine)
+        tailer.track(THREAD_ID)
+
+        val articles = tailer.tail(pollInterval = 1.milliseconds).take(2).toList()
+
+        assertThat(engine.requestHistory[0].url.parameters["count"])
+            .isEqualTo("${PaginatedThread.PAGE_SIZE}")
+        // The last received article may be emitted again, but later articles are never skipped.
+        assertThat(tailer.watermark(THREAD_ID)).isAtLeast(articles.first().article.id)
+        assertThat(tailer.watermark(THREAD_ID)).isAtMost(articles.last().article.id)
+    }
+
+    private fun tailer(engine: MockEngine) =
+        InstantiableClient(TestUtils.TEST_AUTH_TOKEN, engine = { engine }).threadTailer()
+
+    /**
+     * Responds with all articles of `thread.xml` after the requested `minarticleid`, for any
+     * requested thread id.
+     */
+    private fun engine() = MockEngine { request ->
+        val minArticleId = request.url.parameters["minarticleid"]?.toInt() ?: 0
+        if (minArticleId <= LAST_ARTICLE_ID) {
+            respond(TestUtils.xml("thread").readAllBytes())
+        } else {
+            respond(EMPTY_THREAD)
+        }
+    }
+
+    private companion object {
+        const val THREAD_ID = 3208373
+        const val OTHER_THREAD_ID = 1
+        const val LAST_ARTICLE_ID = 43571030
+        const val EMPTY_THREAD =
+            """<thread id="3208373" numarticles="13" link="https://boardgamegeek.com/thread/3208373"
+                termsofuse="https://boardgamegeek.com/xmlapi/termsofuse">
+                <subject>New Maps for Ark Nova + Marine World</subject>
+            </thread>"""
+    }
+}
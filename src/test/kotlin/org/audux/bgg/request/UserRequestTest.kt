@@ -111,9 +111,7 @@ class UserRequestTest {
                     Url(
                         "https://boardgamegeek.com/xmlapi2/user?name=Novaeux&buddies=1&guilds=1&page=2"
                     ),
-                    Url(
-                        "https://boardgamegeek.com/xmlapi2/user?name=Novaeux&buddies=1&guilds=1&page=3"
-                    ),
+                    Url("https://boardgamegeek.com/xmlapi2/user?name=Novaeux&buddies=1&page=3"),
                 )
             assertThat(response.data?.buddies?.total).isEqualTo(2_200)
             assertThat(response.data?.buddies?.buddies).hasSize(2_200)
@@ -227,9 +225,7 @@ class UserRequestTest {
                     Url(
                         "https://boardgamegeek.com/xmlapi2/user?name=Novaeux&buddies=1&guilds=1&page=2"
                     ),
-                    Url(
-                        "https://boardgamegeek.com/xmlapi2/user?name=Novaeux&buddies=1&guilds=1&page=3"
-                    ),
+                    Url("https://boardgamegeek.com/xmlapi2/user?name=Novaeux&buddies=1&page=3"),
                 )
             assertThat(response.data?.buddies?.total).isEqualTo(2_200)
             assertThat(response.data?.buddies?.buddies).hasSize(1_200)
@@ -264,9 +260,7 @@ class UserRequestTest {
                     Url(
                         "https://boardgamegeek.com/xmlapi2/user?name=Novaeux&buddies=1&guilds=1&page=2"
                     ),
-                    Url(
-                        "https://boardgamegeek.com/xmlapi2/user?name=Novaeux&buddies=1&guilds=1&page=3"
-                    ),
+                    Url("https://boardgamegeek.com/xmlapi2/user?name=Novaeux&buddies=1&page=3"),
                 )
             assertThat(response.data?.buddies?.total).isEqualTo(2_200)
             assertThat(response.data?.buddies?.buddies).hasSize(1_200)
@@ -301,9 +295,7 @@ class UserRequestTest {
                     Url(
                         "https://boardgamegeek.com/xmlapi2/user?name=Novaeux&buddies=1&guilds=1&page=2"
                     ),
-                    Url(
-                        "https://boardgamegeek.com/xmlapi2/user?name=Novaeux&buddies=1&guilds=1&page=3"
-                    ),
+                    Url("https://boardgamegeek.com/xmlapi2/user?name=Novaeux&buddies=1&page=3"),
                 )
             assertThat(response.data?.buddies?.total).isEqualTo(2_200)
             assertThat(response.data?.buddies?.buddies).hasSize(1_200)
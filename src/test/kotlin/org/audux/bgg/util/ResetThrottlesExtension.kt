@@ -0,0 +1,29 @@
+/**
+ * Copyright 2023-2024 Bram Wijnands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.audux.bgg.util
+
+import org.audux.bgg.plugin.ThrottleRegistry
+import org.junit.jupiter.api.extension.BeforeEachCallback
+import org.junit.jupiter.api.extension.ExtensionContext
+
+/**
+ * Clears the process-wide [ThrottleRegistry.DEFAULT] before every test so the request budget used
+ * by one test does not throttle the next. Registered automatically through
+ * `META-INF/services/org.junit.jupiter.api.extension.Extension`.
+ */
+class ResetThrottlesExtension : BeforeEachCallback {
+    override fun beforeEach(context: ExtensionContext) {
+        ThrottleRegistry.DEFAULT.clear()
+    }
+}